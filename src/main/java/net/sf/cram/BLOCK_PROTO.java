@@ -2,7 +2,6 @@ package net.sf.cram;
 
 import java.io.BufferedInputStream;
 import java.io.BufferedOutputStream;
-import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
 import java.io.EOFException;
 import java.io.File;
@@ -11,6 +10,8 @@ import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
@@ -31,10 +32,13 @@ import net.sf.cram.encoding.read_features.InsertionVariation;
 import net.sf.cram.encoding.read_features.ReadBase;
 import net.sf.cram.encoding.read_features.ReadFeature;
 import net.sf.cram.encoding.read_features.SubstitutionVariation;
+import net.sf.cram.io.BufferPool;
+import net.sf.cram.io.ByteArrayCursor;
 import net.sf.cram.io.DefaultBitInputStream;
 import net.sf.cram.io.DefaultBitOutputStream;
 import net.sf.cram.io.ExposedByteArrayOutputStream;
 import net.sf.cram.lossy.QualityScorePreservation;
+import net.sf.cram.ref.ReferenceRegion;
 import net.sf.cram.stats.CompressionHeaderFactory;
 import net.sf.cram.structure.Block;
 import net.sf.cram.structure.BlockContentType;
@@ -73,23 +77,19 @@ public class BLOCK_PROTO {
 	private static List<CramRecord> getRecords(Slice s, CompressionHeader h,
 			SAMFileHeader fileHeader) throws IllegalArgumentException,
 			IllegalAccessException, IOException {
-		SAMSequenceRecord sequence = fileHeader.getSequence(s.sequenceId);
-		String seqName = sequence.getSequenceName();
-		DataReaderFactory f = new DataReaderFactory();
-		Map<Integer, InputStream> inputMap = new HashMap<Integer, InputStream>();
-		for (Integer exId : s.external.keySet()) {
-			inputMap.put(exId, new ByteArrayInputStream(
-					s.external.get(exId).content));
-		}
-
-		Reader reader = f.buildReader(new DefaultBitInputStream(
-				new ByteArrayInputStream(s.coreBlock.content)), inputMap, h);
+		// records of multi-reference slices read their own sequence id:
+		SAMSequenceRecord sequence = s.sequenceId < 0 ? null : fileHeader
+				.getSequence(s.sequenceId);
+		Reader reader = buildReader(s, h);
 
 		List<CramRecord> records = new ArrayList<CramRecord>();
 		for (int i = 0; i < s.nofRecords; i++) {
 			CramRecord r = new CramRecord();
-			r.setSequenceName(seqName);
-			r.sequenceId = sequence.getSequenceIndex();
+			if (sequence != null) {
+				r.setSequenceName(sequence.getSequenceName());
+				r.sequenceId = sequence.getSequenceIndex();
+			} else
+				r.sequenceId = s.sequenceId;
 
 			try {
 				reader.read(r);
@@ -104,9 +104,104 @@ public class BLOCK_PROTO {
 		return records;
 	}
 
+	/**
+	 * Decodes a slice into columns, the columns are cleared first and their
+	 * arrays reused.
+	 */
+	static ColumnarSlice getColumns(Slice s, CompressionHeader h,
+			ColumnarSlice columns) throws IllegalArgumentException,
+			IllegalAccessException, IOException {
+		if (columns == null)
+			columns = new ColumnarSlice(s.nofRecords, 100);
+		columns.clear();
+		columns.sequenceId = s.sequenceId;
+		columns.alignmentStart = s.alignmentStart;
+		columns.ensureRecordCapacity(s.nofRecords);
+
+		Reader reader = buildReader(s, h);
+		for (int i = 0; i < s.nofRecords; i++)
+			reader.read(columns);
+
+		return columns;
+	}
+
+	/**
+	 * Collects the reference bases embedded in the slices of the container,
+	 * one region per sequence spanning all its slices. Bases between slices
+	 * are not stored and read as 'N', no record maps there.
+	 * 
+	 * @return regions by sequence id, empty if nothing is embedded
+	 */
+	static Map<Integer, ReferenceRegion> getEmbeddedReferences(Container c) {
+		Map<Integer, ReferenceRegion> regions = new HashMap<Integer, ReferenceRegion>();
+		for (Slice s : c.slices) {
+			if (s.embeddedRefBlockContentId < 0 || s.sequenceId < 0)
+				continue;
+
+			byte[] bases = s.external.get(s.embeddedRefBlockContentId).content;
+			ReferenceRegion region = new ReferenceRegion(bases,
+					s.alignmentStart - 1);
+			ReferenceRegion prev = regions.get(s.sequenceId);
+			if (prev != null) {
+				int start = Math.min(prev.offset, region.offset);
+				int end = Math.max(prev.getEnd(), region.getEnd());
+				byte[] merged = new byte[end - start];
+				Arrays.fill(merged, (byte) 'N');
+				System.arraycopy(prev.bases, 0, merged, prev.offset - start,
+						prev.bases.length);
+				System.arraycopy(bases, 0, merged, region.offset - start,
+						bases.length);
+				region = new ReferenceRegion(merged, start);
+			}
+			regions.put(s.sequenceId, region);
+		}
+		return regions;
+	}
+
+	private static Reader buildReader(Slice s, CompressionHeader h)
+			throws IllegalArgumentException, IllegalAccessException {
+		DataReaderFactory f = new DataReaderFactory();
+		Map<Integer, InputStream> inputMap = new HashMap<Integer, InputStream>();
+		for (Integer exId : s.external.keySet()) {
+			Block b = s.external.get(exId);
+			inputMap.put(exId, new ByteArrayCursor(b.content, 0,
+					b.rawContentSize));
+		}
+
+		Reader reader = f.buildReader(new DefaultBitInputStream(
+				new ByteArrayCursor(s.coreBlock.content, 0,
+						s.coreBlock.rawContentSize)), inputMap, h);
+		// files written before multi-reference slices have no reference ids:
+		if (h.eMap.get(EncodingKey.RI_RefId).id == EncodingID.NULL)
+			reader.refIdC = null;
+		return reader;
+	}
+
 	static Container buildContainer(List<CramRecord> records,
 			SAMFileHeader fileHeader, boolean preserveReadNames) throws IllegalArgumentException,
 			IllegalAccessException, IOException {
+		return buildContainer(records, fileHeader, preserveReadNames, 10000,
+				Long.MAX_VALUE, 0, null);
+	}
+
+	/**
+	 * Slices are cut when they reach either recordsPerSlice records or
+	 * basesPerSlice read bases. With a positive sliceWindow a slice also ends
+	 * where the alignment starts cross into the next window of sliceWindow
+	 * bases, so that slices hold reads from a single window.
+	 * <p>
+	 * Slices of a sequence found in embeddedReferences carry the reference
+	 * bases they span in an extra external block, the region must cover the
+	 * records of the sequence. The map may be null. Only single reference
+	 * slices can embed it, so slices are then also cut where the sequence
+	 * changes.
+	 */
+	static Container buildContainer(List<CramRecord> records,
+			SAMFileHeader fileHeader, boolean preserveReadNames,
+			int recordsPerSlice, long basesPerSlice, int sliceWindow,
+			Map<Integer, ReferenceRegion> embeddedReferences)
+			throws IllegalArgumentException, IllegalAccessException,
+			IOException {
 		// get stats, create compression header and slices
 		long time1 = System.nanoTime();
 		CompressionHeader h = new CompressionHeaderFactory().build(records);
@@ -116,32 +211,53 @@ public class BLOCK_PROTO {
 		h.unmappedQualityScoreIncluded = true;
 		h.readNamesIncluded = preserveReadNames;
 
-		int recordsPerSlice = 10000;
-
 		List<Slice> slices = new ArrayList<Slice>();
 
 		Container c = new Container();
 		c.h = h;
 		c.nofRecords = records.size();
 
+		boolean cutAtSequence = embeddedReferences != null
+				&& !embeddedReferences.isEmpty();
 		long time3 = System.nanoTime();
-		for (int i = 0; i < records.size(); i += recordsPerSlice) {
-			List<CramRecord> sliceRecords = records.subList(i,
-					Math.min(records.size(), i + recordsPerSlice));
-			for (CramRecord r : sliceRecords)
-				c.bases += r.getReadLength();
+		for (int i = 0; i < records.size();) {
+			int to = i;
+			long sliceBases = 0;
+			int window = window(records.get(i), sliceWindow);
+			int sequenceId = records.get(i).sequenceId;
+			while (to < records.size() && to - i < recordsPerSlice
+					&& sliceBases < basesPerSlice
+					&& window(records.get(to), sliceWindow) == window
+					&& (!cutAtSequence || records.get(to).sequenceId == sequenceId))
+				sliceBases += records.get(to++).getReadLength();
+			List<CramRecord> sliceRecords = records.subList(i, to);
+			i = to;
+			c.bases += sliceBases;
 			Slice slice = buildSlice(sliceRecords, h, fileHeader);
+			if (embeddedReferences != null && slice.sequenceId >= 0)
+				embedReference(slice,
+						embeddedReferences.get(slice.sequenceId), h);
 			slices.add(slice);
 
-			// assuming one sequence per container max:
-			if (c.sequenceId == -1 && slice.sequenceId != -1) {
+			if (slices.size() == 1) {
 				c.sequenceId = slice.sequenceId;
 				c.alignmentStart = slice.alignmentStart;
-				c.alignmentSpan = slice.alignmentSpan - c.alignmentStart;
-			}
+			} else if (slice.sequenceId != c.sequenceId)
+				c.sequenceId = Slice.MULTI_REFERENCE;
+			if (c.sequenceId >= 0)
+				c.alignmentSpan = Math.max(c.alignmentSpan,
+						slice.alignmentStart + slice.alignmentSpan
+								- c.alignmentStart);
 		}
 		long time4 = System.nanoTime();
 
+		// records of several sequences start from position 0 and restart
+		// from it whenever the sequence changes:
+		if (c.sequenceId == Slice.MULTI_REFERENCE) {
+			c.alignmentStart = 0;
+			c.alignmentSpan = 0;
+		}
+
 		c.slices = (Slice[]) slices.toArray(new Slice[slices.size()]);
 
 		c.buildHeaderTime = time2 - time1;
@@ -149,22 +265,79 @@ public class BLOCK_PROTO {
 		return c;
 	}
 
+	/**
+	 * Returns the arrays of the core and external blocks to the pool of the
+	 * current thread once the container is written, neither the container
+	 * nor its blocks may be used afterwards. The embedded reference blocks
+	 * are not pooled.
+	 */
+	static void releaseBuffers(Container c) {
+		BufferPool pool = BufferPool.get();
+		for (Slice s : c.slices) {
+			pool.release(BufferPool.CORE, s.coreBlock.content,
+					s.coreBlock.rawContentSize);
+			for (Block b : s.external.values())
+				if (b.contentId != s.embeddedRefBlockContentId)
+					pool.release(b.contentId, b.content, b.rawContentSize);
+			s.coreBlock = null;
+			s.external = null;
+		}
+	}
+
+	/**
+	 * @return the window of the record's alignment start, -1 for unmapped
+	 *         records or if windows are not used
+	 */
+	private static int window(CramRecord r, int windowSize) {
+		if (windowSize < 1 || r.segmentUnmapped)
+			return -1;
+		return (r.getAlignmentStart() - 1) / windowSize;
+	}
+
+	/**
+	 * Adds the reference bases from the slice start to its last aligned base as
+	 * an external block under the first content id after those of the
+	 * compression header.
+	 */
+	private static void embedReference(Slice slice, ReferenceRegion region,
+			CompressionHeader h) {
+		if (region == null)
+			return;
+		int start = slice.alignmentStart - 1;
+		int end = Math.min(start + slice.alignmentSpan, region.getEnd());
+		if (start < region.offset || end <= start) {
+			log.warn("Reference region does not cover slice at "
+					+ slice.alignmentStart + ", not embedded.");
+			return;
+		}
+
+		Block block = new Block();
+		block.contentType = BlockContentType.EXTERNAL;
+		block.contentId = Collections.max(h.externalIds) + 1;
+		block.setContent(Arrays.copyOfRange(region.bases, start
+				- region.offset, end - region.offset), end - start);
+		slice.external.put(block.contentId, block);
+		slice.embeddedRefBlockContentId = block.contentId;
+	}
+
 	private static Slice buildSlice(List<CramRecord> records,
 			CompressionHeader h, SAMFileHeader fileHeader)
 			throws IllegalArgumentException, IllegalAccessException,
 			IOException {
+		BufferPool pool = BufferPool.get();
 		Map<Integer, ExposedByteArrayOutputStream> map = new HashMap<Integer, ExposedByteArrayOutputStream>();
 		for (int id : h.externalIds) {
-			map.put(id, new ExposedByteArrayOutputStream());
+			map.put(id, pool.getStream(id));
 		}
 
 		DataWriterFactory f = new DataWriterFactory();
-		ExposedByteArrayOutputStream bitBAOS = new ExposedByteArrayOutputStream();
+		ExposedByteArrayOutputStream bitBAOS = pool.getStream(BufferPool.CORE);
 		DefaultBitOutputStream bos = new DefaultBitOutputStream(bitBAOS);
 		Writer writer = f.buildWriter(bos, map, h);
 
 		Slice slice = new Slice();
 		slice.nofRecords = records.size();
+		int alignmentEnd = -1;
 		for (CramRecord r : records) {
 			writer.write(r);
 
@@ -174,18 +347,31 @@ public class BLOCK_PROTO {
 			if (slice.alignmentStart == -1) {
 				slice.alignmentStart = r.getAlignmentStart();
 				slice.sequenceId = r.sequenceId;
+			} else if (r.sequenceId != slice.sequenceId)
+				slice.sequenceId = Slice.MULTI_REFERENCE;
+
+			// the span covers the reference bases of all reads:
+			int end = r.segmentUnmapped ? r.getAlignmentStart() : r
+					.calcualteAlignmentEnd();
+			if (end > alignmentEnd) {
+				alignmentEnd = end;
+				slice.alignmentSpan = alignmentEnd - slice.alignmentStart;
 			}
-
-			slice.alignmentSpan = r.getAlignmentStart() - slice.alignmentStart;
 		}
 
+		// a multi-reference slice keeps the start of its first record, which
+		// is where the decoding of alignment starts begins:
+		if (slice.sequenceId == Slice.MULTI_REFERENCE)
+			slice.alignmentSpan = 0;
+
 		slice.contentType = slice.alignmentSpan > -1 ? BlockContentType.MAPPED_SLICE
 				: BlockContentType.UNMAPPED_SLICE;
 
+		// closing flushes the last bits:
+		bos.close();
 		slice.coreBlock = new Block();
-		slice.coreBlock.content = bitBAOS.getBuffer();
+		slice.coreBlock.setContent(bitBAOS.getBuffer(), bitBAOS.size());
 		slice.coreBlock.contentType = BlockContentType.CORE;
-		bos.close();
 
 		slice.external = new HashMap<Integer, Block>();
 		for (Integer i : map.keySet()) {
@@ -194,7 +380,7 @@ public class BLOCK_PROTO {
 			Block externalBlock = new Block();
 			externalBlock.contentType = BlockContentType.EXTERNAL;
 			externalBlock.contentId = i;
-			externalBlock.content = os.getBuffer();
+			externalBlock.setContent(os.getBuffer(), os.size());
 			slice.external.put(i, externalBlock);
 		}
 
@@ -414,7 +600,7 @@ public class BLOCK_PROTO {
 				case M:
 				case X:
 				case EQ:
-					for (int i = readPos; i < ce.getLength(); i++) {
+					for (int i = 0; i < ce.getLength(); i++) {
 						byte readBase = samRecord.getReadBases()[readPos + i];
 						byte refBase = tracks.baseAt(refPos + i);
 						if (readBase != refBase)
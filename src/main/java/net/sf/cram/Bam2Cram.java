@@ -1,25 +1,31 @@
 package net.sf.cram;
 
-import java.io.BufferedOutputStream;
+import java.io.BufferedInputStream;
 import java.io.File;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.OutputStream;
 import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
-import java.util.TreeMap;
 import java.util.TreeSet;
 
 import net.sf.cram.ReadWrite.CramHeader;
+import net.sf.cram.io.AsyncBufferedOutputStream;
+import net.sf.cram.ref.ReferenceRegion;
+import net.sf.cram.ref.ReferenceSource;
+import net.sf.cram.lossy.BaseCategoryType;
 import net.sf.cram.lossy.QualityScorePreservation;
+import net.sf.cram.mask.RefMaskFile;
+import net.sf.cram.mask.RefMaskUtils;
 import net.sf.cram.structure.Container;
 import net.sf.cram.structure.Slice;
-import net.sf.picard.reference.ReferenceSequence;
 import net.sf.picard.reference.ReferenceSequenceFile;
-import net.sf.picard.reference.ReferenceSequenceFileFactory;
 import net.sf.picard.util.Log;
+import net.sf.samtools.BAMRecord;
 import net.sf.samtools.CigarElement;
 import net.sf.samtools.SAMFileHeader;
 import net.sf.samtools.SAMFileReader;
@@ -51,10 +57,59 @@ public class Bam2Cram {
 		return set;
 	}
 
-	private static List<CramRecord> convert(List<SAMRecord> samRecords,
-			SAMFileHeader samFileHeader, byte[] ref,
-			QualityScorePreservation preservation, boolean captureAllTags,
-			String captureTags, String ignoreTags) {
+	/**
+	 * Retires the track positions before the record and adds its coverage and
+	 * mismatches. Records of unsorted input may start behind the window, the
+	 * counts then start over from the record.
+	 */
+	static void addToTracks(SAMRecord samRecord, ReferenceTracks tracks) {
+		int refPos = samRecord.getAlignmentStart();
+		int readPos = 0;
+		if (refPos < tracks.getWindowPosition())
+			tracks.restartAt(refPos);
+		else
+			tracks.moveForwardTo(refPos);
+		for (CigarElement ce : samRecord.getCigar().getCigarElements()) {
+			if (ce.getOperator().consumesReferenceBases())
+				tracks.addCoverage(refPos, ce.getLength(), 1);
+
+			switch (ce.getOperator()) {
+			case M:
+			case X:
+			case EQ:
+				for (int i = 0; i < ce.getLength(); i++) {
+					byte readBase = samRecord.getReadBases()[readPos + i];
+					byte refBase = tracks.baseAt(refPos + i);
+					if (readBase != refBase)
+						tracks.addMismatches(refPos + i, 1);
+				}
+				break;
+
+			default:
+				break;
+			}
+
+			readPos += ce.getOperator().consumesReadBases() ? ce.getLength()
+					: 0;
+			refPos += ce.getOperator().consumesReferenceBases() ? ce
+					.getLength() : 0;
+		}
+	}
+
+	/**
+	 * Converts records of one reference sequence and appends them to
+	 * cramRecords.
+	 * 
+	 * @param prevAlStart
+	 *            the alignment start the first record's offset is taken from
+	 * @return the reference region covering the records, null for unplaced
+	 *         records
+	 */
+	private static ReferenceRegion convert(List<SAMRecord> samRecords,
+			SAMFileHeader samFileHeader, ReferenceSource referenceSource,
+			ReferenceTracks tracks, QualityScorePreservation preservation,
+			Sam2CramRecordFactory f, List<CramRecord> cramRecords,
+			int prevAlStart) {
 
 		int sequenceId = samRecords.get(0).getReferenceIndex();
 		String sequenceName = samRecords.get(0).getReferenceName();
@@ -62,6 +117,11 @@ public class Bam2Cram {
 		log.debug(String.format("Writing %d records for sequence %d, %s",
 				samRecords.size(), sequenceId, sequenceName));
 
+		if (sequenceId == SAMRecord.NO_ALIGNMENT_REFERENCE_INDEX) {
+			convertUnplaced(samRecords, preservation, f, cramRecords);
+			return null;
+		}
+
 		int alStart = Integer.MAX_VALUE;
 		int alEnd = Integer.MIN_VALUE;
 		for (SAMRecord samRecord : samRecords) {
@@ -78,20 +138,16 @@ public class Bam2Cram {
 		if (alEnd < alStart)
 			alEnd = alStart + 1000;
 
-		ReferenceTracks tracks = new ReferenceTracks(sequenceId, sequenceName,
-				ref, alEnd - alStart + 100);
-		tracks.moveForwardTo(alStart);
+		int windowSize = alEnd - alStart + 100;
+		ReferenceRegion region = referenceSource.getRegion(
+				samFileHeader.getSequence(sequenceId), alStart - 1, alStart
+						- 1 + windowSize);
+		// the tracks carry coverage over from the previous container:
+		tracks.setReference(region.bases, region.offset);
 
-		Sam2CramRecordFactory f = new Sam2CramRecordFactory(ref);
-		f.captureUnmappedBases = true;
-		f.captureUnmappedScores = true;
-		f.captureAllTags = captureAllTags;
-		f.captureTags = tagsNamesToSet(captureTags);
-		f.ignoreTags.addAll(tagsNamesToSet(captureTags));
+		f.setRefBases(region.bases, region.offset);
 
-		List<CramRecord> cramRecords = new ArrayList<CramRecord>();
-		int prevAlStart = samRecords.get(0).getAlignmentStart();
-		int index = 0;
+		int index = cramRecords.size();
 		for (SAMRecord samRecord : samRecords) {
 			if (samRecord.getAlignmentStart() > 0
 					&& alStart > samRecord.getAlignmentStart())
@@ -106,40 +162,35 @@ public class Bam2Cram {
 			prevAlStart = samRecord.getAlignmentStart();
 
 			cramRecords.add(cramRecord);
-			int refPos = samRecord.getAlignmentStart();
-			int readPos = 0;
-			for (CigarElement ce : samRecord.getCigar().getCigarElements()) {
-				if (ce.getOperator().consumesReferenceBases()) {
-					for (int i = 0; i < ce.getLength(); i++)
-						tracks.addCoverage(refPos + i, 1);
-				}
-				switch (ce.getOperator()) {
-				case M:
-				case X:
-				case EQ:
-					for (int i = readPos; i < ce.getLength(); i++) {
-						byte readBase = samRecord.getReadBases()[readPos + i];
-						byte refBase = tracks.baseAt(refPos + i);
-						if (readBase != refBase)
-							tracks.addMismatches(refPos + i, 1);
-					}
-					break;
-
-				default:
-					break;
-				}
-
-				readPos += ce.getOperator().consumesReadBases() ? ce
-						.getLength() : 0;
-				refPos += ce.getOperator().consumesReferenceBases() ? ce
-						.getLength() : 0;
-			}
-
+			addToTracks(samRecord, tracks);
 			preservation.addQualityScores(samRecord, cramRecord, tracks);
 		}
+		return region;
+	}
 
-		// mating:
-		Map<String, CramRecord> mateMap = new TreeMap<String, CramRecord>();
+	/**
+	 * Converts unplaced records, which never touch the reference or the
+	 * tracks: they keep their bases and have no read features.
+	 */
+	private static void convertUnplaced(List<SAMRecord> samRecords,
+			QualityScorePreservation preservation, Sam2CramRecordFactory f,
+			List<CramRecord> cramRecords) {
+		int index = cramRecords.size();
+		for (SAMRecord samRecord : samRecords) {
+			CramRecord cramRecord = f.createCramRecord(samRecord);
+			cramRecord.index = ++index;
+			cramRecord.alignmentStartOffsetFromPreviousRecord = 0;
+			cramRecords.add(cramRecord);
+			preservation.addQualityScores(samRecord, cramRecord, null);
+		}
+	}
+
+	/**
+	 * Links mates within the container, the others are detached.
+	 */
+	private static void mate(List<CramRecord> cramRecords) {
+		Map<String, CramRecord> mateMap = new HashMap<String, CramRecord>(
+				cramRecords.size());
 		for (CramRecord r : cramRecords) {
 			String name = r.getReadName();
 			CramRecord mate = mateMap.get(name);
@@ -166,8 +217,182 @@ public class Bam2Cram {
 			r.next = null;
 			r.previous = null;
 		}
+	}
+
+	/**
+	 * Embedding the reference costs about two bits per reference base, which
+	 * is cheap next to the reads once they cover the reference deeply
+	 * enough, and saves the reader from fetching it.
+	 * 
+	 * @return true if the reference of the records of one sequence should be
+	 *         embedded in the container
+	 */
+	private static boolean embedReference(List<SAMRecord> samRecords,
+			Params params) {
+		if (params.embedReference)
+			return true;
+		if (params.embedReferenceDepth < 1)
+			return false;
+
+		long bases = 0;
+		int alStart = Integer.MAX_VALUE;
+		int alEnd = 0;
+		for (SAMRecord samRecord : samRecords) {
+			if (samRecord.getReadUnmappedFlag())
+				continue;
+			bases += samRecord.getReadLength();
+			alStart = Math.min(alStart, samRecord.getAlignmentStart());
+			alEnd = Math.max(alEnd, samRecord.getAlignmentEnd());
+		}
+		return alEnd >= alStart
+				&& bases >= (long) params.embedReferenceDepth
+						* (alEnd - alStart + 1);
+	}
+
+	/**
+	 * Converts and writes the first count records, the rest stay in the list
+	 * for the next container.
+	 * 
+	 * @return the reference tracks for the records' sequence
+	 */
+	private static ReferenceTracks writeContainer(List<SAMRecord> samRecords,
+			int count, SAMFileHeader header, ReferenceSource referenceSource,
+			ReferenceTracks tracks, RefMaskFile refMaskFile,
+			QualityScorePreservation preservation, Sam2CramRecordFactory f,
+			Params params, OutputStream os, long[] stats) throws IOException,
+			IllegalAccessException {
+		List<SAMRecord> containerRecords = samRecords.subList(0, count);
+		// records of several sequences have absolute starts, see
+		// BLOCK_PROTO.buildContainer():
+		boolean multiRef = false;
+		int firstSequenceId = containerRecords.get(0).getReferenceIndex();
+		for (int i = 1; i < count && !multiRef; i++)
+			multiRef = containerRecords.get(i).getReferenceIndex()
+					.intValue() != firstSequenceId;
+		List<CramRecord> records = new ArrayList<CramRecord>(count);
+		Map<Integer, ReferenceRegion> embeddedReferences = new HashMap<Integer, ReferenceRegion>();
+		for (int from = 0; from < count;) {
+			SAMRecord first = containerRecords.get(from);
+			int sequenceId = first.getReferenceIndex();
+			int to = from + 1;
+			while (to < count
+					&& containerRecords.get(to).getReferenceIndex() == sequenceId)
+				to++;
+
+			if (sequenceId != SAMRecord.NO_ALIGNMENT_REFERENCE_INDEX
+					&& (tracks == null || tracks.getSequenceId() != sequenceId)) {
+				tracks = new ReferenceTracks(sequenceId,
+						first.getReferenceName(), new byte[0], 1024);
+				if (refMaskFile != null)
+					tracks.setKnownVariants(refMaskFile.getVariantMask(first
+							.getReferenceName()), refMaskFile.getPile(
+							first.getReferenceName(), RefMaskUtils.minHits));
+			}
+			ReferenceRegion region = convert(containerRecords.subList(from, to),
+					header, referenceSource, tracks, preservation, f, records,
+					multiRef ? 0 : first.getAlignmentStart());
+			if (region != null
+					&& embedReference(containerRecords.subList(from, to),
+							params))
+				embeddedReferences.put(sequenceId, region);
+			from = to;
+		}
+		mate(records);
+		containerRecords.clear();
+		Container container = BLOCK_PROTO.buildContainer(records, header,
+				params.preserveReadNames, params.maxSliceSize,
+				params.maxSliceBases, params.sliceWindow, embeddedReferences);
+		records.clear();
+		ReadWrite.writeContainer(container, os);
+		f.releaseRecords();
+		log.info(String
+				.format("CONTAINER WRITE TIMES: header build time %dms, slices build time %dms, io time %dms.",
+						container.buildHeaderTime / 1000000,
+						container.buildSlicesTime / 1000000,
+						container.writeTime / 1000000));
+
+		for (Slice s : container.slices) {
+			stats[0] += s.coreBlock.compressedContentSize;
+			for (Integer i : s.external.keySet())
+				stats[i + 1] += s.external.get(i).compressedContentSize;
+		}
+		BLOCK_PROTO.releaseBuffers(container);
+		return tracks;
+	}
 
-		return cramRecords;
+	/**
+	 * @return true if the record should start a new container after the
+	 *         container's last record: on a change of the reference sequence
+	 *         unless both are placed and the container is small enough to
+	 *         take records of more sequences, or on a change of window
+	 */
+	private static boolean endsContainer(SAMRecord record, SAMRecord last,
+			int containerSize, Params params) {
+		if (record.getReferenceIndex().intValue() != last.getReferenceIndex()
+				.intValue())
+			return containerSize >= params.minContainerSize
+					|| record.getReferenceIndex() < 0
+					|| last.getReferenceIndex() < 0;
+		return window(record, params.containerWindow) != window(last,
+				params.containerWindow);
+	}
+
+	/**
+	 * @return the window of the record's alignment start, -1 for unmapped
+	 *         records or if windows are not used
+	 */
+	private static int window(SAMRecord r, int windowSize) {
+		if (windowSize < 1 || r.getReadUnmappedFlag())
+			return -1;
+		return (r.getAlignmentStart() - 1) / windowSize;
+	}
+
+	/**
+	 * Heap allowance for the tags of records without BAM binary data, their
+	 * size is not known without decoding or encoding them.
+	 */
+	private static final int TAGS_HEAP_SIZE = 256;
+
+	/**
+	 * A rough heap footprint of a record and the CRAM record it is converted
+	 * to: bases and scores in both, cigar, name, tags and object overhead.
+	 * Only sizes known without decoding are used: tags of BAM records are
+	 * counted twice their binary size, once as read and once decoded later.
+	 */
+	private static int estimateHeapSize(SAMRecord r) {
+		int size = 512 + 4 * r.getReadLength() + 2 * r.getReadNameLength();
+		size += 32 * r.getCigarLength();
+		int tagsSize = r instanceof BAMRecord ? ((BAMRecord) r)
+				.getAttributesBinarySize() : -1;
+		// -1 also for BAM records changed since they were read:
+		size += tagsSize < 0 ? TAGS_HEAP_SIZE : 2 * tagsSize;
+		return size;
+	}
+
+	/**
+	 * Read names of records whose mate is expected later on the same
+	 * sequence, a container cut now would detach them from their mates.
+	 */
+	private static class OpenMates {
+		private Set<String> names = new HashSet<String>();
+
+		void add(SAMRecord r) {
+			if (!r.getReadPairedFlag()
+					|| r.getMateReferenceIndex().intValue() != r
+							.getReferenceIndex().intValue())
+				return;
+			if (!names.remove(r.getReadName())
+					&& r.getMateAlignmentStart() >= r.getAlignmentStart())
+				names.add(r.getReadName());
+		}
+
+		int size() {
+			return names.size();
+		}
+
+		void clear() {
+			names.clear();
+		}
 	}
 
 	private static void printUsage(JCommander jc) {
@@ -205,11 +430,6 @@ public class Bam2Cram {
 			System.exit(1);
 		}
 
-		if (params.bamFile == null) {
-			System.out.println("A BAM file is required. ");
-			System.exit(1);
-		}
-
 		char[] pass = null;
 		if (params.encrypt) {
 			String readLine = System.console().readLine(
@@ -217,32 +437,41 @@ public class Bam2Cram {
 			pass = readLine.toCharArray();
 		}
 
-		File bamFile = params.bamFile;
-		SAMFileReader samFileReader = new SAMFileReader(bamFile);
-		ReferenceSequenceFile referenceSequenceFile = ReferenceSequenceFileFactory
-				.getReferenceSequenceFile(params.referenceFasta);
-
-		ReferenceSequence sequence = null;
-		{
-			String seqName = null;
-			SAMRecordIterator iterator = samFileReader.iterator();
-			SAMRecord samRecord = iterator.next();
-			seqName = samRecord.getReferenceName();
-			iterator.close();
-			sequence = referenceSequenceFile.getSequence(seqName);
-		}
+		// standard input and output unless files are given:
+		SAMFileReader samFileReader = params.bamFile == null ? new SAMFileReader(
+				new BufferedInputStream(System.in))
+				: new SAMFileReader(params.bamFile);
+		ReferenceSequenceFile referenceSequenceFile = ReferenceSource
+				.openReferenceFile(params.referenceFasta);
+		ReferenceSource referenceSource = new ReferenceSource(
+				referenceSequenceFile);
 
 		List<SAMRecord> samRecords = new ArrayList<SAMRecord>(
 				params.maxContainerSize);
 		QualityScorePreservation preservation = new QualityScorePreservation(
 				params.qsSpec);
+		RefMaskFile refMaskFile = null;
+		if (params.refMaskFile != null) {
+			refMaskFile = new RefMaskFile(params.refMaskFile);
+			if (!preservation.hasBaseCategory(BaseCategoryType.KNOWN_VARIANT))
+				preservation.addPolicies("V40");
+		}
 
 		SAMRecordIterator iterator = samFileReader.iterator();
 
 		int prevSeqId = -1;
-		byte[] ref = sequence.getBases();
-		FileOutputStream fos = new FileOutputStream(params.outputCramFile);
-		OutputStream os = new BufferedOutputStream(fos);
+		ReferenceTracks tracks = null;
+		// containers go to plain files with a gathering write each, see
+		// ReadWrite.writeContainer(), other streams are written in the
+		// background:
+		AsyncBufferedOutputStream aos = null;
+		OutputStream os;
+		if (params.outputCramFile != null && !params.encrypt)
+			os = new FileOutputStream(params.outputCramFile);
+		else
+			os = aos = new AsyncBufferedOutputStream(
+					params.outputCramFile == null ? System.out
+							: new FileOutputStream(params.outputCramFile));
 
 		if (params.encrypt) {
 			CipherOutputStream_256 cos = new CipherOutputStream_256(os, pass,
@@ -250,71 +479,116 @@ public class Bam2Cram {
 			os = cos.getCipherOutputStream();
 		}
 
-		CramHeader h = new CramHeader(1, 0, params.bamFile.getName(),
-				samFileReader.getFileHeader());
+		CramHeader h = new CramHeader(1, 0, params.bamFile == null ? "stdin"
+				: params.bamFile.getName(), samFileReader.getFileHeader());
 		ReadWrite.writeCramHeader(h, os);
 
-		long bases = 0;
-		long coreBytes = 0;
-		long[] externalBytes = new long[10];
+		Sam2CramRecordFactory f = new Sam2CramRecordFactory();
+		f.captureUnmappedBases = true;
+		f.captureUnmappedScores = true;
+		f.captureAllTags = params.captureAllTags;
+		f.captureTags = tagsNamesToSet(params.captureTags);
+		f.ignoreTags.addAll(tagsNamesToSet(params.ignoreTags));
+		f.reuseRecords = true;
 
-		do {
+		long bases = 0;
+		// core bytes followed by bytes per external block:
+		long[] stats = new long[11];
+
+		int lookahead = params.mateLookahead < 0 ? params.maxContainerSize / 10
+				: params.mateLookahead;
+		OpenMates openMates = new OpenMates();
+		int bestCut = 0;
+		int bestOpen = 0;
+		// container size when it reached its budget, 0 until then:
+		int fullAt = 0;
+		long containerBases = 0;
+		long containerBytes = 0;
+		long memoryCap = params.maxContainerMemory * 1024L * 1024L;
+		while (iterator.hasNext() && params.maxRecords-- > 0) {
 			SAMRecord samRecord = iterator.next();
-			if (samRecord.getReferenceIndex() != prevSeqId
-					|| samRecords.size() >= params.maxContainerSize) {
-				if (!samRecords.isEmpty()) {
-					List<CramRecord> records = convert(samRecords,
-							samFileReader.getFileHeader(), ref, preservation,
-							params.captureAllTags, params.captureTags,
-							params.ignoreTags);
-					samRecords.clear();
-					Container container = BLOCK_PROTO.buildContainer(records,
-							samFileReader.getFileHeader(),
-							params.preserveReadNames);
-					records.clear();
-					ReadWrite.writeContainer(container, os);
-					log.info(String
-							.format("CONTAINER WRITE TIMES: header build time %dms, slices build time %dms, io time %dms.",
-									container.buildHeaderTime / 1000000,
-									container.buildSlicesTime / 1000000,
-									container.writeTime / 1000000));
-
-					for (Slice s : container.slices) {
-						coreBytes += s.coreBlock.compressedContentSize;
-						for (Integer i : s.external.keySet())
-							externalBytes[i] += s.external.get(i).compressedContentSize;
-					}
-				}
+			if (!samRecords.isEmpty()
+					&& endsContainer(samRecord,
+							samRecords.get(samRecords.size() - 1),
+							samRecords.size(), params)) {
+				tracks = writeContainer(samRecords, samRecords.size(),
+						samFileReader.getFileHeader(), referenceSource,
+						tracks, refMaskFile, preservation, f, params, os,
+						stats);
+				openMates.clear();
+				fullAt = 0;
+				containerBases = 0;
+				containerBytes = 0;
+			}
 
-				if (samRecord.getReferenceIndex() != SAMRecord.NO_ALIGNMENT_REFERENCE_INDEX) {
-					sequence = referenceSequenceFile.getSequence(samRecord
-							.getReferenceName());
-					prevSeqId = samRecord.getReferenceIndex();
-					ref = sequence.getBases();
-				}
+			if (samRecord.getReferenceIndex() != SAMRecord.NO_ALIGNMENT_REFERENCE_INDEX
+					&& samRecord.getReferenceIndex() != prevSeqId) {
+				prevSeqId = samRecord.getReferenceIndex();
+				// load while the container's records are being read:
+				SAMFileHeader header = samFileReader.getFileHeader();
+				referenceSource.prefetch(header.getSequence(prevSeqId));
+				referenceSource.prefetchNext(header, prevSeqId);
 			}
 
 			samRecords.add(samRecord);
+			openMates.add(samRecord);
 			bases += samRecord.getReadLength();
-
-			if (params.maxRecords-- < 1)
-				break;
-		} while (iterator.hasNext());
+			containerBases += samRecord.getReadLength();
+			containerBytes += estimateHeapSize(samRecord);
+
+			// a full container grows by up to lookahead records and is cut
+			// where the fewest mate pairs are split:
+			int size = samRecords.size();
+			if (fullAt == 0) {
+				if (size < params.maxContainerSize
+						&& containerBases < params.maxContainerBases
+						&& containerBytes < memoryCap / 2)
+					continue;
+				fullAt = size;
+				bestCut = size;
+				bestOpen = openMates.size();
+			} else if (openMates.size() < bestOpen) {
+				bestCut = size;
+				bestOpen = openMates.size();
+			}
+			if (bestOpen == 0 || size >= fullAt + lookahead
+					|| containerBytes >= memoryCap) {
+				if (containerBytes >= memoryCap)
+					bestCut = size;
+				tracks = writeContainer(samRecords, bestCut,
+						samFileReader.getFileHeader(), referenceSource,
+						tracks, refMaskFile, preservation, f, params, os,
+						stats);
+				openMates.clear();
+				fullAt = 0;
+				containerBases = 0;
+				containerBytes = 0;
+				for (SAMRecord r : samRecords) {
+					openMates.add(r);
+					containerBases += r.getReadLength();
+					containerBytes += estimateHeapSize(r);
+				}
+			}
+		}
+		if (!samRecords.isEmpty())
+			writeContainer(samRecords, samRecords.size(),
+					samFileReader.getFileHeader(), referenceSource, tracks,
+					refMaskFile, preservation, f, params, os, stats);
 		iterator.close();
 		samFileReader.close();
 		os.close();
-		fos.close();
 
 		StringBuilder sb = new StringBuilder();
-		sb.append(String.format("STATS: core %.2f b/b", 8f * coreBytes / bases));
-		for (int i = 0; i < externalBytes.length; i++)
-			if (externalBytes[i] > 0)
-				sb.append(String.format(", ex%d %.2f b/b, ", i, 8f
-						* externalBytes[i] / bases));
+		sb.append(String.format("STATS: core %.2f b/b", 8f * stats[0] / bases));
+		for (int i = 1; i < stats.length; i++)
+			if (stats[i] > 0)
+				sb.append(String.format(", ex%d %.2f b/b, ", i - 1, 8f
+						* stats[i] / bases));
 
 		log.info(sb.toString());
 		log.info(String.format("Compression: %.2f b/b.",
-				(8f * params.outputCramFile.length() / bases)));
+				(8f * (aos == null ? params.outputCramFile.length() : aos
+						.getBytesWritten()) / bases)));
 	}
 
 	@Parameters(commandDescription = "BAM to CRAM converter. ")
@@ -337,12 +611,39 @@ public class Bam2Cram {
 		@Parameter(names = { "-h", "--help" }, description = "Print help and quit")
 		boolean help = false;
 
-		@Parameter(names = { "--max-slice-size" }, hidden = true)
+		@Parameter(names = { "--max-slice-size" }, hidden = true, description = "Maximum number of records in a slice.")
 		int maxSliceSize = 10000;
 
-		@Parameter(names = { "--max-container-size" }, hidden = true)
+		@Parameter(names = { "--max-slice-bases" }, hidden = true, description = "Maximum number of read bases in a slice.")
+		long maxSliceBases = 5000000;
+
+		@Parameter(names = { "--max-container-size" }, hidden = true, description = "Maximum number of records in a container.")
 		int maxContainerSize = 100000;
 
+		@Parameter(names = { "--min-container-size" }, hidden = true, description = "Containers with fewer records go on with the records of the next reference sequence, packing short contigs together. Zero for one sequence per container.")
+		int minContainerSize = 10000;
+
+		@Parameter(names = { "--max-container-bases" }, hidden = true, description = "Maximum number of read bases in a container.")
+		long maxContainerBases = 50000000;
+
+		@Parameter(names = { "--max-container-memory" }, hidden = true, description = "Memory in MB the records of a container may take, containers are cut at half of it and never grow beyond it.")
+		int maxContainerMemory = 512;
+
+		@Parameter(names = { "--slice-window" }, description = "Align slice boundaries to windows of this many reference bases, for example 65536. Zero to cut slices by size only.")
+		int sliceWindow = 0;
+
+		@Parameter(names = { "--container-window" }, description = "Align container boundaries to windows of this many reference bases, should be a multiple of the slice window. Zero to cut containers by size only.")
+		int containerWindow = 0;
+
+		@Parameter(names = { "--embed-reference" }, description = "Store the reference bases each slice spans in the CRAM file, so that it decodes without the reference fasta file.")
+		boolean embedReference = false;
+
+		@Parameter(names = { "--embed-reference-depth" }, hidden = true, description = "Embed the reference where the reads of a container cover it this many times over on average. Zero to embed only when asked to.")
+		int embedReferenceDepth = 50;
+
+		@Parameter(names = { "--mate-lookahead" }, hidden = true, description = "Records a full container may grow by to keep mate pairs together, 10% of the container size by default.")
+		int mateLookahead = -1;
+
 		// not implemented yet:
 		// @Parameter(names = { "--capture-all-tags" }, description =
 		// "Capture all tags found in the source BAM file.")
@@ -361,6 +662,9 @@ public class Bam2Cram {
 		@Parameter(names = { "--lossy-quality-score-spec", "-L" }, description = "A string specifying what quality scores should be preserved.")
 		String qsSpec = "";
 
+		@Parameter(names = { "--ref-mask-file" }, converter = FileConverter.class, description = "Keep quality scores at the known variant sites of this reference mask file, see the refmask command. Adds V40 to the lossy spec unless it has a V policy already.")
+		File refMaskFile;
+
 		@Parameter(names = { "--encrypt" }, description = "Encrypt the CRAM file.")
 		boolean encrypt = false;
 
@@ -0,0 +1,396 @@
+/*******************************************************************************
+ * Copyright 2012 EMBL-EBI, Hinxton outstation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ ******************************************************************************/
+package net.sf.cram;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.StringWriter;
+import java.util.Arrays;
+import java.util.List;
+
+import net.sf.cram.encoding.read_features.DeletionVariation;
+import net.sf.cram.encoding.read_features.InsertBase;
+import net.sf.cram.encoding.read_features.InsertionVariation;
+import net.sf.cram.encoding.read_features.ReadBase;
+import net.sf.cram.encoding.read_features.ReadFeature;
+import net.sf.cram.encoding.read_features.SoftClipVariation;
+import net.sf.cram.encoding.read_features.SubstitutionVariation;
+import net.sf.samtools.SAMFileHeader;
+import net.sf.samtools.SAMSequenceRecord;
+import net.sf.samtools.SAMTagUtil;
+import net.sf.samtools.SAMTextHeaderCodec;
+import net.sf.samtools.util.BinaryCodec;
+import net.sf.samtools.util.BlockCompressedOutputStream;
+
+/**
+ * Writes normalized CRAM records as BAM straight into BGZF blocks, without
+ * going through SAMRecord. The CIGAR is derived from the read features the
+ * same way {@link Cram2BamRecordFactory} does it and tag values are copied in
+ * their binary form.
+ */
+public class BamBinaryWriter {
+	private static final byte[] BAM_MAGIC = "BAM\1".getBytes();
+	private static final int CIGAR_M = 0;
+	private static final int CIGAR_I = 1;
+	private static final int CIGAR_D = 2;
+	private static final int CIGAR_S = 4;
+	private static final short RG_TAG = SAMTagUtil.getSingleton().RG;
+
+	private static final byte[] baseCodes = new byte[256];
+	static {
+		Arrays.fill(baseCodes, (byte) 15);
+		String codes = "=ACMGRSVTWYHKDBN";
+		for (int i = 0; i < codes.length(); i++) {
+			baseCodes[codes.charAt(i)] = (byte) i;
+			baseCodes[Character.toLowerCase(codes.charAt(i))] = (byte) i;
+		}
+	}
+
+	private BlockCompressedOutputStream os;
+	private SAMFileHeader header;
+
+	private byte[] buf = new byte[1024];
+	private int size;
+	private int[] cigar = new int[16];
+	private int cigarLength;
+	private ReadTag[] sortedTags = new ReadTag[8];
+
+	public BamBinaryWriter(File file, SAMFileHeader header) throws IOException {
+		this(new BlockCompressedOutputStream(file), header);
+	}
+
+	public BamBinaryWriter(OutputStream os, SAMFileHeader header)
+			throws IOException {
+		this(new BlockCompressedOutputStream(os, null), header);
+	}
+
+	private BamBinaryWriter(BlockCompressedOutputStream os,
+			SAMFileHeader header) throws IOException {
+		this.os = os;
+		this.header = header;
+		writeHeader();
+	}
+
+	private void writeHeader() throws IOException {
+		StringWriter headerTextWriter = new StringWriter();
+		new SAMTextHeaderCodec().encode(headerTextWriter, header);
+
+		BinaryCodec codec = new BinaryCodec(os);
+		codec.writeBytes(BAM_MAGIC);
+		codec.writeString(headerTextWriter.toString(), true, false);
+		List<SAMSequenceRecord> sequences = header.getSequenceDictionary()
+				.getSequences();
+		codec.writeInt(sequences.size());
+		for (SAMSequenceRecord sequence : sequences) {
+			codec.writeString(sequence.getSequenceName(), true, true);
+			codec.writeInt(sequence.getSequenceLength());
+		}
+	}
+
+	public void write(CramRecord r) throws IOException {
+		int readLength = r.getReadLength();
+		if (r.segmentUnmapped)
+			cigarLength = 0;
+		else
+			buildCigar(r.getReadFeatures(), readLength);
+
+		int flags = getSAMFlags(r);
+		int alignmentStart = r.getAlignmentStart();
+		int alignmentEnd = 0;
+		if (!r.segmentUnmapped) {
+			int referenceLength = 0;
+			for (int i = 0; i < cigarLength; i++) {
+				int op = cigar[i] & 0xF;
+				if (op == CIGAR_M || op == CIGAR_D)
+					referenceLength += cigar[i] >>> 4;
+			}
+			alignmentEnd = alignmentStart + referenceLength - 1;
+		}
+		if (alignmentEnd <= 0)
+			alignmentEnd = alignmentStart;
+
+		String readName = r.getReadName();
+		int nameLength = readName.length() + 1;
+
+		size = 0;
+		ensureCapacity(36 + nameLength + 4 * cigarLength + (readLength + 1)
+				/ 2 + readLength);
+		writeInt(0); // block size, set at the end
+		writeInt(r.sequenceId);
+		writeInt(alignmentStart - 1);
+		writeInt((reg2bin(alignmentStart - 1, alignmentEnd) << 16)
+				| ((0xFF & r.getMappingQuality()) << 8) | nameLength);
+		writeInt((flags << 16) | cigarLength);
+		writeInt(readLength);
+		if (r.multiFragment) {
+			writeInt(r.mateSequnceID);
+			writeInt(r.mateAlignmentStart - 1);
+		} else {
+			writeInt(-1);
+			writeInt(-1);
+		}
+		writeInt(r.templateSize);
+
+		for (int i = 0; i < readName.length(); i++)
+			buf[size++] = (byte) readName.charAt(i);
+		buf[size++] = 0;
+
+		for (int i = 0; i < cigarLength; i++)
+			writeInt(cigar[i]);
+
+		byte[] bases = r.getReadBases();
+		for (int i = 0; i < readLength; i += 2) {
+			int code = baseCodes[0xFF & bases[i]] << 4;
+			if (i + 1 < readLength)
+				code |= baseCodes[0xFF & bases[i + 1]];
+			buf[size++] = (byte) code;
+		}
+
+		byte[] scores = r.getQualityScores();
+		if (scores == null)
+			Arrays.fill(buf, size, size + readLength, (byte) 0xFF);
+		else
+			System.arraycopy(scores, 0, buf, size, readLength);
+		size += readLength;
+
+		writeTags(r);
+
+		int blockSize = size - 4;
+		buf[0] = (byte) blockSize;
+		buf[1] = (byte) (blockSize >> 8);
+		buf[2] = (byte) (blockSize >> 16);
+		buf[3] = (byte) (blockSize >> 24);
+
+		os.write(buf, 0, size);
+	}
+
+	public void close() throws IOException {
+		os.close();
+	}
+
+	/**
+	 * Tags go out sorted by their binary code, like SAMRecord keeps them.
+	 */
+	private void writeTags(CramRecord r) {
+		int tagCount = 0;
+		if (r.tags != null) {
+			if (sortedTags.length < r.tags.size())
+				sortedTags = new ReadTag[r.tags.size()];
+			for (ReadTag tag : r.tags) {
+				int i = tagCount++;
+				for (; i > 0 && sortedTags[i - 1].code > tag.code; i--)
+					sortedTags[i] = sortedTags[i - 1];
+				sortedTags[i] = tag;
+			}
+		}
+
+		boolean writeReadGroup = r.getReadGroupID() < header.getReadGroups()
+				.size();
+		for (int i = 0; i < tagCount; i++) {
+			ReadTag tag = sortedTags[i];
+			if (writeReadGroup && RG_TAG < tag.code) {
+				writeReadGroup(r.getReadGroupID());
+				writeReadGroup = false;
+			}
+			if (writeReadGroup && RG_TAG == tag.code)
+				writeReadGroup = false;
+
+			byte[] value = tag.getValueAsByteArray();
+			ensureCapacity(size + 3 + value.length);
+			buf[size++] = (byte) tag.getKey().charAt(0);
+			buf[size++] = (byte) tag.getKey().charAt(1);
+			buf[size++] = (byte) tag.getType();
+			System.arraycopy(value, 0, buf, size, value.length);
+			size += value.length;
+			sortedTags[i] = null;
+		}
+		if (writeReadGroup)
+			writeReadGroup(r.getReadGroupID());
+	}
+
+	private void writeReadGroup(int id) {
+		ensureCapacity(size + 7);
+		buf[size++] = 'R';
+		buf[size++] = 'G';
+		// smallest integer type, as SAMRecord attributes would be written:
+		if (id <= Byte.MAX_VALUE) {
+			buf[size++] = 'c';
+			buf[size++] = (byte) id;
+		} else if (id <= 0xFF) {
+			buf[size++] = 'C';
+			buf[size++] = (byte) id;
+		} else if (id <= Short.MAX_VALUE) {
+			buf[size++] = 's';
+			writeShort(id);
+		} else if (id <= 0xFFFF) {
+			buf[size++] = 'S';
+			writeShort(id);
+		} else {
+			buf[size++] = 'i';
+			writeInt(id);
+		}
+	}
+
+	private static int getSAMFlags(CramRecord r) {
+		int flags = 0;
+		if (r.multiFragment) {
+			flags |= 0x1;
+			if (r.mateUmapped)
+				flags |= 0x8;
+			if (r.mateNegativeStrand)
+				flags |= 0x20;
+		}
+		if (r.properPair)
+			flags |= 0x2;
+		if (r.segmentUnmapped)
+			flags |= 0x4;
+		if (r.negativeStrand)
+			flags |= 0x10;
+		if (r.firstSegment)
+			flags |= 0x40;
+		if (r.lastSegment)
+			flags |= 0x80;
+		if (r.secondaryALignment)
+			flags |= 0x100;
+		if (r.vendorFiltered)
+			flags |= 0x200;
+		if (r.duplicate)
+			flags |= 0x400;
+		return flags;
+	}
+
+	private void addCigarElement(int length, int op) {
+		if (cigarLength == cigar.length)
+			cigar = Arrays.copyOf(cigar, cigarLength * 2);
+		cigar[cigarLength++] = (length << 4) | op;
+	}
+
+	/**
+	 * Same as Cram2BamRecordFactory.getCigar2 but producing BAM CIGAR ops.
+	 */
+	private void buildCigar(List<ReadFeature> features, int readLength) {
+		cigarLength = 0;
+		if (features == null || features.isEmpty()) {
+			addCigarElement(readLength, CIGAR_M);
+			return;
+		}
+
+		int lastOperator = CIGAR_M;
+		int lastOpLen = 0;
+		int lastOpPos = 1;
+		int co;
+		int rfLen;
+		for (ReadFeature f : features) {
+			int gap = f.getPosition() - (lastOpPos + lastOpLen);
+			if (gap > 0) {
+				if (lastOperator != CIGAR_M) {
+					addCigarElement(lastOpLen, lastOperator);
+					lastOpPos += lastOpLen;
+					lastOpLen = gap;
+				} else {
+					lastOpLen += gap;
+				}
+
+				lastOperator = CIGAR_M;
+			}
+
+			switch (f.getOperator()) {
+			case InsertionVariation.operator:
+				co = CIGAR_I;
+				rfLen = ((InsertionVariation) f).getSequence().length;
+				break;
+			case SoftClipVariation.operator:
+				co = CIGAR_S;
+				rfLen = ((SoftClipVariation) f).getSequence().length;
+				break;
+			case InsertBase.operator:
+				co = CIGAR_I;
+				rfLen = 1;
+				break;
+			case DeletionVariation.operator:
+				co = CIGAR_D;
+				rfLen = ((DeletionVariation) f).getLength();
+				break;
+			case SubstitutionVariation.operator:
+			case ReadBase.operator:
+				co = CIGAR_M;
+				rfLen = 1;
+				break;
+			default:
+				continue;
+			}
+
+			if (lastOperator != co) {
+				if (lastOpLen > 0)
+					addCigarElement(lastOpLen, lastOperator);
+				lastOperator = co;
+				lastOpLen = rfLen;
+				lastOpPos = f.getPosition();
+			} else
+				lastOpLen += rfLen;
+
+			if (co == CIGAR_D)
+				lastOpPos -= rfLen;
+		}
+
+		if (lastOperator != CIGAR_M) {
+			addCigarElement(lastOpLen, lastOperator);
+			if (readLength >= lastOpPos + lastOpLen)
+				addCigarElement(readLength - (lastOpLen + lastOpPos) + 1,
+						CIGAR_M);
+		} else if (readLength > lastOpPos - 1)
+			addCigarElement(readLength - lastOpPos + 1, CIGAR_M);
+
+		if (cigarLength == 0)
+			addCigarElement(readLength, CIGAR_M);
+	}
+
+	/**
+	 * The UCSC binning scheme as used by BAM indexes.
+	 */
+	private static int reg2bin(int beg, int end) {
+		--end;
+		if (beg >> 14 == end >> 14)
+			return ((1 << 15) - 1) / 7 + (beg >> 14);
+		if (beg >> 17 == end >> 17)
+			return ((1 << 12) - 1) / 7 + (beg >> 17);
+		if (beg >> 20 == end >> 20)
+			return ((1 << 9) - 1) / 7 + (beg >> 20);
+		if (beg >> 23 == end >> 23)
+			return ((1 << 6) - 1) / 7 + (beg >> 23);
+		if (beg >> 26 == end >> 26)
+			return ((1 << 3) - 1) / 7 + (beg >> 26);
+		return 0;
+	}
+
+	private void ensureCapacity(int capacity) {
+		if (buf.length < capacity)
+			buf = Arrays.copyOf(buf, Math.max(capacity, buf.length * 2));
+	}
+
+	private void writeInt(int value) {
+		buf[size++] = (byte) value;
+		buf[size++] = (byte) (value >> 8);
+		buf[size++] = (byte) (value >> 16);
+		buf[size++] = (byte) (value >> 24);
+	}
+
+	private void writeShort(int value) {
+		buf[size++] = (byte) value;
+		buf[size++] = (byte) (value >> 8);
+	}
+}
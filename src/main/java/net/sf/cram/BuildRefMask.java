@@ -0,0 +1,211 @@
+/*******************************************************************************
+ * Copyright 2012 EMBL-EBI, Hinxton outstation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ ******************************************************************************/
+package net.sf.cram;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+
+import net.sf.cram.mask.BitmapPositionMask;
+import net.sf.cram.mask.RefMaskFile;
+import net.sf.cram.mask.RefMaskUtils;
+import net.sf.cram.ref.ReferenceSource;
+import net.sf.picard.reference.ReferenceSequenceFile;
+import net.sf.picard.util.Log;
+import net.sf.samtools.CigarElement;
+import net.sf.samtools.SAMFileReader;
+import net.sf.samtools.SAMRecord;
+import net.sf.samtools.SAMRecordIterator;
+import net.sf.samtools.SAMSequenceRecord;
+
+import com.beust.jcommander.JCommander;
+import com.beust.jcommander.Parameter;
+import com.beust.jcommander.Parameters;
+import com.beust.jcommander.converters.FileConverter;
+
+/**
+ * Builds a reference mask file from a list of variant sites and/or the read
+ * bases piled up from a coordinate sorted BAM file.
+ */
+public class BuildRefMask {
+	private static Log log = Log.getInstance(BuildRefMask.class);
+
+	/**
+	 * Reads sequence name and 1-based position from the first two columns of
+	 * every line, lines starting with '#' are skipped. VCF files can be read
+	 * as is.
+	 */
+	private static Map<String, BitmapPositionMask.Builder> readVariants(
+			File file) throws IOException {
+		Map<String, BitmapPositionMask.Builder> map = new HashMap<String, BitmapPositionMask.Builder>();
+		BufferedReader reader = new BufferedReader(new FileReader(file));
+		try {
+			String line;
+			while ((line = reader.readLine()) != null) {
+				if (line.length() == 0 || line.startsWith("#"))
+					continue;
+				String[] chunks = line.split("\\s+", 3);
+				if (chunks.length < 2)
+					throw new RuntimeException("Expecting a sequence name and a position: "
+							+ line);
+
+				BitmapPositionMask.Builder builder = map.get(chunks[0]);
+				if (builder == null) {
+					builder = new BitmapPositionMask.Builder();
+					map.put(chunks[0], builder);
+				}
+				builder.add(Integer.parseInt(chunks[1]));
+			}
+		} finally {
+			reader.close();
+		}
+		return map;
+	}
+
+	private static void addToPile(SAMRecord record, RefMaskUtils.RefMask pile) {
+		byte[] bases = record.getReadBases();
+		int readPos = 0;
+		int refPos = record.getAlignmentStart() - 1;
+		for (CigarElement ce : record.getCigar().getCigarElements()) {
+			switch (ce.getOperator()) {
+			case M:
+			case X:
+			case EQ:
+				for (int i = 0; i < ce.getLength(); i++)
+					if (refPos + i < pile.length())
+						pile.addReadBase(refPos + i, bases[readPos + i],
+								(byte) 'N');
+				break;
+
+			default:
+				break;
+			}
+			readPos += ce.getOperator().consumesReadBases() ? ce.getLength()
+					: 0;
+			refPos += ce.getOperator().consumesReferenceBases() ? ce
+					.getLength() : 0;
+		}
+	}
+
+	private static void printUsage(JCommander jc) {
+		StringBuilder sb = new StringBuilder();
+		sb.append("\n");
+		jc.usage(sb);
+
+		System.out.println("Version "
+				+ BuildRefMask.class.getPackage().getImplementationVersion());
+		System.out.println(sb.toString());
+	}
+
+	public static void main(String[] args) throws IOException {
+		Params params = new Params();
+		JCommander jc = new JCommander(params);
+		try {
+			jc.parse(args);
+		} catch (Exception e) {
+			System.out
+					.println("Failed to parse parameteres, detailed message below: ");
+			System.out.println(e.getMessage());
+			System.out.println();
+			System.out.println("See usage: -h");
+			System.exit(1);
+		}
+
+		if (args.length == 0 || params.help) {
+			printUsage(jc);
+			System.exit(1);
+		}
+
+		if (params.reference == null || params.outputFile == null
+				|| (params.variantsFile == null && params.bamFile == null)) {
+			System.out
+					.println("A reference, an output file and a variants file or a BAM file are required.");
+			System.exit(1);
+		}
+
+		long time = System.currentTimeMillis();
+		ReferenceSequenceFile reference = ReferenceSource
+				.openReferenceFile(params.reference);
+		Map<String, BitmapPositionMask.Builder> variants = params.variantsFile == null ? new HashMap<String, BitmapPositionMask.Builder>()
+				: readVariants(params.variantsFile);
+
+		SAMFileReader reader = null;
+		SAMRecordIterator iterator = null;
+		SAMRecord next = null;
+		if (params.bamFile != null) {
+			reader = new SAMFileReader(params.bamFile);
+			iterator = reader.iterator();
+			next = iterator.hasNext() ? iterator.next() : null;
+		}
+
+		RefMaskFile.Writer writer = new RefMaskFile.Writer(params.outputFile);
+		for (SAMSequenceRecord sequence : reference.getSequenceDictionary()
+				.getSequences()) {
+			String name = sequence.getSequenceName();
+
+			RefMaskUtils.RefMask pile = null;
+			while (next != null && next.getReadUnmappedFlag())
+				next = iterator.hasNext() ? iterator.next() : null;
+			if (next != null && name.equals(next.getReferenceName())) {
+				pile = new RefMaskUtils.RefMask(sequence.getSequenceLength(),
+						RefMaskUtils.minHits);
+				while (next != null && name.equals(next.getReferenceName())) {
+					if (!next.getReadUnmappedFlag())
+						addToPile(next, pile);
+					next = iterator.hasNext() ? iterator.next() : null;
+				}
+			}
+
+			BitmapPositionMask.Builder builder = variants.remove(name);
+			writer.addSequence(name, sequence.getSequenceLength(),
+					builder == null ? null : builder.build(), pile);
+		}
+		writer.close();
+
+		if (next != null)
+			log.warn("Reads left over, the BAM file must be sorted in reference order: "
+					+ next.getReadName());
+		if (reader != null)
+			reader.close();
+		if (!variants.isEmpty())
+			log.warn("Variants on unknown sequences ignored: "
+					+ variants.keySet());
+
+		log.info(String.format("Reference mask written in %dms: %d bytes.",
+				System.currentTimeMillis() - time, params.outputFile.length()));
+	}
+
+	@Parameters(commandDescription = "Build a reference mask file of known variant sites.")
+	static class Params {
+		@Parameter(names = { "--reference-fasta-file", "-R" }, converter = FileConverter.class, description = "The reference fasta file, uncompressed and indexed (.fai file, use 'samtools faidx'). ")
+		File reference;
+
+		@Parameter(names = { "--variants-file" }, converter = FileConverter.class, description = "Variant sites, a sequence name and a 1-based position per line, for example a VCF file.")
+		File variantsFile;
+
+		@Parameter(names = { "--input-bam-file", "-I" }, converter = FileConverter.class, description = "A coordinate sorted BAM file to pile up the read bases from.")
+		File bamFile;
+
+		@Parameter(names = { "--output-file", "-O" }, converter = FileConverter.class, description = "The reference mask file to create.")
+		File outputFile;
+
+		@Parameter(names = { "-h", "--help" }, description = "Print help and quit")
+		boolean help = false;
+	}
+}
@@ -0,0 +1,381 @@
+/*******************************************************************************
+ * Copyright 2012 EMBL-EBI, Hinxton outstation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ ******************************************************************************/
+package net.sf.cram;
+
+import java.util.Arrays;
+
+import net.sf.cram.encoding.read_features.DeletionVariation;
+import net.sf.cram.encoding.read_features.InsertBase;
+import net.sf.cram.encoding.read_features.InsertionVariation;
+import net.sf.cram.encoding.read_features.SoftClipVariation;
+
+/**
+ * Decoded records of a slice stored column-wise: one primitive array per data
+ * series, shared byte arenas for bases, scores, names, insertions and tag
+ * values, and packed read feature arrays. The arrays only grow, so the same
+ * instance can be refilled for every slice of a stream. Records are accessed
+ * by index or through a {@link Cursor}.
+ */
+public class ColumnarSlice {
+	// bit flags as laid out by CramRecord.getFlags():
+	public static final int DUPLICATE = 1;
+	public static final int VENDOR_FILTERED = 1 << 1;
+	public static final int SECONDARY_ALIGNMENT = 1 << 2;
+	public static final int LAST_SEGMENT = 1 << 3;
+	public static final int FIRST_SEGMENT = 1 << 4;
+	public static final int NEGATIVE_STRAND = 1 << 5;
+	public static final int SEGMENT_UNMAPPED = 1 << 6;
+	public static final int PROPER_PAIR = 1 << 7;
+	public static final int MULTI_FRAGMENT = 1 << 8;
+
+	// compression flags as laid out by CramRecord.getCompressionFlags():
+	public static final int FORCE_PRESERVE_QS = 1;
+	public static final int DETACHED = 1 << 1;
+	public static final int MATE_DOWNSTREAM = 1 << 2;
+
+	public int sequenceId;
+	public int alignmentStart;
+
+	public int size = 0;
+
+	public int[] flags;
+	public byte[] compressionFlags;
+	public byte[] mateFlags;
+	public int[] readLength;
+	// sequenceId unless the slice holds several sequences:
+	public int[] sequenceIds;
+	public int[] alignmentStarts;
+	public int[] readGroup;
+	public byte[] mappingQuality;
+	public int[] recordsToNextFragment;
+	public int[] mateSequenceId;
+	public int[] mateAlignmentStart;
+	public int[] templateSize;
+
+	/**
+	 * Record i owns readLength[i] bytes of the bases and scores arenas
+	 * starting at baseOffset[i]. Bases are only present for unmapped reads
+	 * and scores only for records with preserved quality scores.
+	 */
+	public int[] baseOffset;
+	public byte[] bases;
+	public byte[] scores;
+
+	/**
+	 * Read name of record i is nameOffset[i]..nameOffset[i+1] in the names
+	 * arena, empty if names were not stored.
+	 */
+	public int[] nameOffset;
+	public byte[] names;
+
+	/**
+	 * Read features of record i are featureOffset[i]..featureOffset[i+1]. The
+	 * meaning of featureValue depends on the operator: base substitution code,
+	 * deletion length, a base, a quality score or, for insertions and soft
+	 * clips, an offset into the featureBytes arena with featureLength bytes.
+	 */
+	public int[] featureOffset;
+	public byte[] featureOperator;
+	public int[] featurePosition;
+	public int[] featureValue;
+	public int[] featureLength;
+	public byte[] featureScore;
+	public byte[] featureBytes;
+	public int featureCount = 0;
+	public int featureBytesSize = 0;
+
+	/**
+	 * Tags of record i are tagOffset[i]..tagOffset[i+1], values are stored in
+	 * BAM binary form in the tagBytes arena.
+	 */
+	public int[] tagOffset;
+	public int[] tagId;
+	public int[] tagValueOffset;
+	public int[] tagValueLength;
+	public byte[] tagBytes;
+	public int tagCount = 0;
+	public int tagBytesSize = 0;
+
+	public int basesSize = 0;
+	public int namesSize = 0;
+
+	public ColumnarSlice() {
+		this(1024, 100);
+	}
+
+	public ColumnarSlice(int records, int readLength) {
+		ensureRecordCapacity(records);
+		bases = new byte[records * readLength];
+		scores = new byte[records * readLength];
+		names = new byte[records * 16];
+		featureOperator = new byte[records];
+		featurePosition = new int[records];
+		featureValue = new int[records];
+		featureLength = new int[records];
+		featureScore = new byte[records];
+		featureBytes = new byte[records];
+		tagId = new int[records];
+		tagValueOffset = new int[records];
+		tagValueLength = new int[records];
+		tagBytes = new byte[records * 8];
+	}
+
+	public void clear() {
+		size = 0;
+		basesSize = 0;
+		namesSize = 0;
+		featureCount = 0;
+		featureBytesSize = 0;
+		tagCount = 0;
+		tagBytesSize = 0;
+	}
+
+	public void ensureRecordCapacity(int records) {
+		if (flags != null && flags.length >= records)
+			return;
+
+		int capacity = flags == null ? records : Math.max(records,
+				flags.length * 2);
+		flags = grow(flags, capacity);
+		compressionFlags = grow(compressionFlags, capacity);
+		mateFlags = grow(mateFlags, capacity);
+		readLength = grow(readLength, capacity);
+		sequenceIds = grow(sequenceIds, capacity);
+		alignmentStarts = grow(alignmentStarts, capacity);
+		readGroup = grow(readGroup, capacity);
+		mappingQuality = grow(mappingQuality, capacity);
+		recordsToNextFragment = grow(recordsToNextFragment, capacity);
+		mateSequenceId = grow(mateSequenceId, capacity);
+		mateAlignmentStart = grow(mateAlignmentStart, capacity);
+		templateSize = grow(templateSize, capacity);
+		baseOffset = grow(baseOffset, capacity);
+		nameOffset = grow(nameOffset, capacity + 1);
+		featureOffset = grow(featureOffset, capacity + 1);
+		tagOffset = grow(tagOffset, capacity + 1);
+	}
+
+	/**
+	 * Reserves arena space for the next record's bases and scores and returns
+	 * its offset.
+	 */
+	public int allocateBases(int length) {
+		int offset = basesSize;
+		if (bases.length < offset + length) {
+			int capacity = Math.max(offset + length, bases.length * 2);
+			bases = Arrays.copyOf(bases, capacity);
+			scores = Arrays.copyOf(scores, capacity);
+		}
+		basesSize += length;
+		return offset;
+	}
+
+	public void addName(byte[] name) {
+		if (names.length < namesSize + name.length)
+			names = Arrays.copyOf(names,
+					Math.max(namesSize + name.length, names.length * 2));
+		System.arraycopy(name, 0, names, namesSize, name.length);
+		namesSize += name.length;
+	}
+
+	public int addFeature(byte operator, int position, int value) {
+		if (featureOperator.length == featureCount) {
+			int capacity = featureCount * 2 + 1;
+			featureOperator = Arrays.copyOf(featureOperator, capacity);
+			featurePosition = Arrays.copyOf(featurePosition, capacity);
+			featureValue = Arrays.copyOf(featureValue, capacity);
+			featureLength = Arrays.copyOf(featureLength, capacity);
+			featureScore = Arrays.copyOf(featureScore, capacity);
+		}
+		featureOperator[featureCount] = operator;
+		featurePosition[featureCount] = position;
+		featureValue[featureCount] = value;
+		featureLength[featureCount] = 0;
+		featureScore[featureCount] = -1;
+		return featureCount++;
+	}
+
+	public int addFeatureBytes(byte operator, int position, byte[] data) {
+		if (featureBytes.length < featureBytesSize + data.length)
+			featureBytes = Arrays.copyOf(featureBytes, Math.max(
+					featureBytesSize + data.length, featureBytes.length * 2));
+		System.arraycopy(data, 0, featureBytes, featureBytesSize, data.length);
+
+		int index = addFeature(operator, position, featureBytesSize);
+		featureLength[index] = data.length;
+		featureBytesSize += data.length;
+		return index;
+	}
+
+	public void addTag(int id, byte[] value) {
+		if (tagId.length == tagCount) {
+			int capacity = tagCount * 2 + 1;
+			tagId = Arrays.copyOf(tagId, capacity);
+			tagValueOffset = Arrays.copyOf(tagValueOffset, capacity);
+			tagValueLength = Arrays.copyOf(tagValueLength, capacity);
+		}
+		if (tagBytes.length < tagBytesSize + value.length)
+			tagBytes = Arrays.copyOf(tagBytes,
+					Math.max(tagBytesSize + value.length, tagBytes.length * 2));
+		System.arraycopy(value, 0, tagBytes, tagBytesSize, value.length);
+
+		tagId[tagCount] = id;
+		tagValueOffset[tagCount] = tagBytesSize;
+		tagValueLength[tagCount] = value.length;
+		tagBytesSize += value.length;
+		tagCount++;
+	}
+
+	/**
+	 * Number of reference bases covered by the alignment of record i.
+	 */
+	public int getAlignmentSpan(int i) {
+		int span = readLength[i];
+		for (int f = featureOffset[i]; f < featureOffset[i + 1]; f++) {
+			switch (featureOperator[f]) {
+			case DeletionVariation.operator:
+				span += featureValue[f];
+				break;
+			case InsertionVariation.operator:
+			case SoftClipVariation.operator:
+				span -= featureLength[f];
+				break;
+			case InsertBase.operator:
+				span--;
+				break;
+			default:
+				break;
+			}
+		}
+		return span;
+	}
+
+	private static int[] grow(int[] array, int capacity) {
+		return array == null ? new int[capacity] : Arrays.copyOf(array,
+				capacity);
+	}
+
+	private static byte[] grow(byte[] array, int capacity) {
+		return array == null ? new byte[capacity] : Arrays.copyOf(array,
+				capacity);
+	}
+
+	public Cursor cursor() {
+		return new Cursor();
+	}
+
+	/**
+	 * A movable view over the records, no allocations happen while scanning.
+	 */
+	public class Cursor {
+		private int index = -1;
+
+		public boolean next() {
+			return ++index < size;
+		}
+
+		public void moveTo(int index) {
+			this.index = index;
+		}
+
+		public int getIndex() {
+			return index;
+		}
+
+		public int getFlags() {
+			return flags[index];
+		}
+
+		public boolean isSegmentUnmapped() {
+			return (flags[index] & SEGMENT_UNMAPPED) != 0;
+		}
+
+		public boolean isNegativeStrand() {
+			return (flags[index] & NEGATIVE_STRAND) != 0;
+		}
+
+		public boolean isMultiFragment() {
+			return (flags[index] & MULTI_FRAGMENT) != 0;
+		}
+
+		public boolean isDuplicate() {
+			return (flags[index] & DUPLICATE) != 0;
+		}
+
+		public boolean isSecondaryAlignment() {
+			return (flags[index] & SECONDARY_ALIGNMENT) != 0;
+		}
+
+		public boolean isProperPair() {
+			return (flags[index] & PROPER_PAIR) != 0;
+		}
+
+		public boolean isFirstSegment() {
+			return (flags[index] & FIRST_SEGMENT) != 0;
+		}
+
+		public boolean isLastSegment() {
+			return (flags[index] & LAST_SEGMENT) != 0;
+		}
+
+		public boolean isForcePreserveQualityScores() {
+			return (compressionFlags[index] & FORCE_PRESERVE_QS) != 0;
+		}
+
+		public int getSequenceId() {
+			return sequenceIds[index];
+		}
+
+		public int getAlignmentStart() {
+			return alignmentStarts[index];
+		}
+
+		public int getAlignmentSpan() {
+			return ColumnarSlice.this.getAlignmentSpan(index);
+		}
+
+		public int getReadLength() {
+			return readLength[index];
+		}
+
+		public int getMappingQuality() {
+			return 0xFF & mappingQuality[index];
+		}
+
+		public int getReadGroup() {
+			return readGroup[index];
+		}
+
+		public int getBaseOffset() {
+			return baseOffset[index];
+		}
+
+		public int getFirstFeature() {
+			return featureOffset[index];
+		}
+
+		public int getFeatureCount() {
+			return featureOffset[index + 1] - featureOffset[index];
+		}
+
+		public int getFirstTag() {
+			return tagOffset[index];
+		}
+
+		public int getTagCount() {
+			return tagOffset[index + 1] - tagOffset[index];
+		}
+	}
+}
@@ -4,21 +4,22 @@ import java.io.BufferedInputStream;
 import java.io.EOFException;
 import java.io.File;
 import java.io.FileInputStream;
+import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.util.List;
+import java.util.Map;
 
 import net.sf.cram.ReadWrite.CramHeader;
+import net.sf.cram.io.AsyncBufferedOutputStream;
+import net.sf.cram.ref.ReferenceRegion;
+import net.sf.cram.ref.ReferenceSource;
 import net.sf.cram.structure.Container;
-import net.sf.picard.reference.ReferenceSequence;
-import net.sf.picard.reference.ReferenceSequenceFile;
-import net.sf.picard.reference.ReferenceSequenceFileFactory;
 import net.sf.picard.util.Log;
 import net.sf.picard.util.Log.LogLevel;
 import net.sf.samtools.SAMFileWriter;
 import net.sf.samtools.SAMFileWriterFactory;
 import net.sf.samtools.SAMRecord;
-import net.sf.samtools.SAMSequenceRecord;
 import net.sf.samtools.util.SeekableFileStream;
 import uk.ac.ebi.embl.ega_cipher.SeekableCipherStream_256;
 
@@ -60,13 +61,8 @@ public class Cram2Bam {
 			System.exit(1);
 		}
 
-		if (params.reference == null) {
-			System.out.println("A reference fasta file is required.");
-			System.exit(1);
-		}
-
-		if (params.cramFile == null) {
-			System.out.println("A CRAM input file is required. ");
+		if (params.decrypt && params.cramFile == null) {
+			System.out.println("Decryption needs a CRAM input file. ");
 			System.exit(1);
 		}
 
@@ -79,11 +75,16 @@ public class Cram2Bam {
 
 		Log.setGlobalLogLevel(LogLevel.INFO);
 
-		ReferenceSequenceFile referenceSequenceFile = ReferenceSequenceFileFactory
-				.getReferenceSequenceFile(params.reference);
+		// files with embedded references decode without one:
+		ReferenceSource referenceSource = null;
+		if (params.reference != null)
+			referenceSource = new ReferenceSource(
+					ReferenceSource.openReferenceFile(params.reference));
 
-		FileInputStream fis = new FileInputStream(params.cramFile);
-		InputStream is = new BufferedInputStream(fis);
+		// standard input and output unless files are given:
+		InputStream is = new BufferedInputStream(
+				params.cramFile == null ? System.in : new FileInputStream(
+						params.cramFile));
 		if (params.decrypt) {
 			// CipherInputStream_256 cipherInputStream_256 = new
 			// CipherInputStream_256(bis, pass, 128) ;
@@ -100,18 +101,44 @@ public class Cram2Bam {
 		samFileWriterFactory.setCreateMd5File(false);
 		samFileWriterFactory.setUseAsyncIo(true);
 
-		SAMFileWriter writer = new SAMFileWriterFactory().makeSAMOrBAMWriter(
-				cramHeader.samFileHeader, true, params.outputFile);
+		SAMFileWriter writer = null;
+		BamBinaryWriter bamWriter = null;
+		if (params.outputFile != null
+				&& params.outputFile.getName().endsWith(".sam"))
+			writer = new SAMFileWriterFactory().makeSAMOrBAMWriter(
+					cramHeader.samFileHeader, true, params.outputFile);
+		else
+			bamWriter = new BamBinaryWriter(new AsyncBufferedOutputStream(
+					params.outputFile == null ? System.out
+							: new FileOutputStream(params.outputFile)),
+					cramHeader.samFileHeader);
 
+		int prevSeqId = -1;
 		while (true) {
 			Container c = null;
 			try {
 				c = ReadWrite.readContainer(cramHeader.samFileHeader, is);
 			} catch (EOFException e) {
-				writer.close();
+				if (writer != null)
+					writer.close();
+				else
+					bamWriter.close();
 				break;
 			}
 
+			Map<Integer, ReferenceRegion> embedded = BLOCK_PROTO
+					.getEmbeddedReferences(c);
+			if (c.sequenceId != prevSeqId && c.sequenceId >= 0
+					&& referenceSource != null
+					&& !embedded.containsKey(c.sequenceId)) {
+				// load while the container is being decoded:
+				prevSeqId = c.sequenceId;
+				referenceSource.prefetch(cramHeader.samFileHeader
+						.getSequence(prevSeqId));
+				referenceSource.prefetchNext(cramHeader.samFileHeader,
+						prevSeqId);
+			}
+
 			List<CramRecord> cramRecords = null;
 			try {
 				cramRecords = BLOCK_PROTO.getRecords(c.h, c,
@@ -119,35 +146,46 @@ public class Cram2Bam {
 			} catch (EOFException e) {
 				throw e;
 			}
-			SAMSequenceRecord sequence = cramHeader.samFileHeader
-					.getSequence(c.sequenceId);
-			ReferenceSequence referenceSequence = referenceSequenceFile
-					.getSequence(sequence.getSequenceName());
-			byte[] ref = referenceSequence.getBases();
-
 			long time1 = System.nanoTime();
 			CramNormalizer n = new CramNormalizer(cramHeader.samFileHeader,
-					ref, c.alignmentStart);
-			n.normalize(cramRecords, true);
+					null, c.alignmentStart);
+			n.restorePositionsAndPairing(cramRecords, true);
+			// one run of records per reference sequence:
+			for (int from = 0; from < cramRecords.size();) {
+				int to = CramNormalizer.sequenceRunEnd(cramRecords, from);
+				List<CramRecord> run = cramRecords.subList(from, to);
+				int sequenceId = run.get(0).sequenceId;
+				n.fetchReference(run, referenceSource,
+						cramHeader.samFileHeader.getSequence(sequenceId),
+						embedded.get(sequenceId));
+				n.restoreContent(run);
+				from = to;
+			}
 			long time2 = System.nanoTime();
 
-			Cram2BamRecordFactory c2sFactory = new Cram2BamRecordFactory(
-					cramHeader.samFileHeader);
-
 			long c2sTime = 0;
 			long sWriteTime = 0;
 
-			for (CramRecord r : cramRecords) {
+			if (bamWriter != null) {
 				long time = System.nanoTime();
-				SAMRecord s = c2sFactory.create(r);
-				c2sTime += System.nanoTime() - time;
-				try {
-					time = System.nanoTime();
-					writer.addAlignment(s);
-					sWriteTime += System.nanoTime() - time;
-				} catch (NullPointerException e) {
-					System.out.println(r.toString());
-					throw e;
+				for (CramRecord r : cramRecords)
+					bamWriter.write(r);
+				sWriteTime += System.nanoTime() - time;
+			} else {
+				Cram2BamRecordFactory c2sFactory = new Cram2BamRecordFactory(
+						cramHeader.samFileHeader);
+				for (CramRecord r : cramRecords) {
+					long time = System.nanoTime();
+					SAMRecord s = c2sFactory.create(r);
+					c2sTime += System.nanoTime() - time;
+					try {
+						time = System.nanoTime();
+						writer.addAlignment(s);
+						sWriteTime += System.nanoTime() - time;
+					} catch (NullPointerException e) {
+						System.out.println(r.toString());
+						throw e;
+					}
 				}
 			}
 
@@ -165,10 +203,10 @@ public class Cram2Bam {
 		@Parameter(names = { "--input-cram-file", "-I" }, converter = FileConverter.class, description = "The path to the CRAM file to uncompress. Omit if standard input (pipe).")
 		File cramFile;
 
-		@Parameter(names = { "--reference-fasta-file", "-R" }, converter = FileConverter.class, description = "Path to the reference fasta file, it must be uncompressed and indexed (use 'samtools faidx' for example).")
+		@Parameter(names = { "--reference-fasta-file", "-R" }, converter = FileConverter.class, description = "Path to the reference fasta file, it must be uncompressed and indexed (use 'samtools faidx' for example). Not needed for files with embedded references.")
 		File reference;
 
-		@Parameter(names = { "--output-bam-file", "-O" }, converter = FileConverter.class, description = "The path to the output BAM file.")
+		@Parameter(names = { "--output-bam-file", "-O" }, converter = FileConverter.class, description = "The path to the output BAM file. Omit if standard output (pipe).")
 		File outputFile;
 
 		@Parameter(names = { "-h", "--help" }, description = "Print help and quit")
@@ -17,25 +17,80 @@ import net.sf.samtools.CigarElement;
 import net.sf.samtools.CigarOperator;
 import net.sf.samtools.SAMFileHeader;
 import net.sf.samtools.SAMRecord;
+import net.sf.samtools.SAMRecordFactory;
 
 public class Cram2BamRecordFactory {
 
 	private SAMFileHeader header;
+	private SAMRecordFactory recordFactory;
 
 	public Cram2BamRecordFactory(SAMFileHeader header) {
+		this(header, null);
+	}
+
+	/**
+	 * @param recordFactory
+	 *            factory for the SAM records to fill, null means
+	 *            {@link CramSAMRecord}
+	 */
+	public Cram2BamRecordFactory(SAMFileHeader header,
+			SAMRecordFactory recordFactory) {
 		this.header = header;
+		this.recordFactory = recordFactory;
 	}
 
 	public SAMRecord create(CramRecord cramRecord) {
-		SAMRecord samRecord = new SAMRecord(header);
+		SAMRecord samRecord = recordFactory == null ? new CramSAMRecord(header)
+				: recordFactory.createSAMRecord(header);
 
 		samRecord.setReadName(cramRecord.getReadName());
+		copyFields(cramRecord, samRecord);
+		samRecord.setCigar(getCigar(cramRecord));
+		samRecord.setReadBases(cramRecord.getReadBases());
+		samRecord.setBaseQualities(cramRecord.getQualityScores());
+
+		if (cramRecord.getReadGroupID() < header.getReadGroups().size())
+			samRecord.setAttribute("RG", cramRecord.getReadGroupID());
+
+		if (samRecord instanceof CramSAMRecord)
+			((CramSAMRecord) samRecord).setReadTags(cramRecord.tags);
+		else if (cramRecord.tags != null)
+			for (ReadTag tag : cramRecord.tags) {
+				if (tag.isUnsignedArray())
+					samRecord.setUnsignedArrayAttribute(tag.getKey(),
+							tag.getValue());
+				else
+					samRecord.setAttribute(tag.getKey(), tag.getValue());
+			}
+
+		return samRecord;
+	}
+
+	/**
+	 * Creates a record with only flags, positions and mate information set.
+	 * Read name, bases, scores, cigar and MD/NM tags are restored from the
+	 * CRAM record when first accessed. The CRAM record must have gone through
+	 * {@link CramNormalizer#restorePositionsAndPairing(List, boolean)}.
+	 */
+	public CramSAMRecord createLazy(CramRecord cramRecord,
+			CramNormalizer normalizer, boolean restoreMD, boolean restoreNM) {
+		CramSAMRecord samRecord = new CramSAMRecord(header);
+		copyFields(cramRecord, samRecord);
+
+		if (cramRecord.getReadGroupID() < header.getReadGroups().size())
+			samRecord.setAttribute("RG", cramRecord.getReadGroupID());
+		samRecord.setReadTags(cramRecord.tags);
+
+		samRecord.setLazySource(cramRecord, normalizer, restoreMD, restoreNM);
+		return samRecord;
+	}
+
+	private static final void copyFields(CramRecord cramRecord,
+			SAMRecord samRecord) {
 		copyFlags(cramRecord, samRecord);
 		samRecord.setReferenceIndex(cramRecord.sequenceId);
 		samRecord.setAlignmentStart(cramRecord.getAlignmentStart());
 		samRecord.setMappingQuality(cramRecord.getMappingQuality());
-		samRecord.setCigar(getCigar2(cramRecord.getReadFeatures(),
-				cramRecord.getReadLength()));
 
 		if (samRecord.getReadPairedFlag()) {
 			samRecord.setMateReferenceIndex(cramRecord.mateSequnceID);
@@ -49,17 +104,6 @@ public class Cram2BamRecordFactory {
 		}
 
 		samRecord.setInferredInsertSize(cramRecord.templateSize);
-		samRecord.setReadBases(cramRecord.getReadBases());
-		samRecord.setBaseQualities(cramRecord.getQualityScores());
-
-		if (cramRecord.tags != null)
-			for (ReadTag tag : cramRecord.tags)
-				samRecord.setAttribute(tag.getKey(), tag.getValue());
-
-		if (cramRecord.getReadGroupID() < header.getReadGroups().size())
-			samRecord.setAttribute("RG", cramRecord.getReadGroupID());
-
-		return samRecord;
 	}
 
 	private static final void copyFlags(CramRecord cr, SAMRecord sr) {
@@ -74,7 +118,17 @@ public class Cram2BamRecordFactory {
 		sr.setDuplicateReadFlag(cr.duplicate);
 	}
 
-	private static final Cigar getCigar2(Collection<ReadFeature> features,
+	/**
+	 * @return the cigar of the record, empty for unmapped records
+	 */
+	static final Cigar getCigar(CramRecord cramRecord) {
+		if (cramRecord.segmentUnmapped)
+			return new Cigar();
+		return getCigar2(cramRecord.getReadFeatures(),
+				cramRecord.getReadLength());
+	}
+
+	static final Cigar getCigar2(Collection<ReadFeature> features,
 			int readLength) {
 		if (features == null || features.isEmpty()) {
 			CigarElement ce = new CigarElement(readLength, CigarOperator.M);
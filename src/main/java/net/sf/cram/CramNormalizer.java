@@ -13,8 +13,11 @@ import net.sf.cram.encoding.read_features.ReadBase;
 import net.sf.cram.encoding.read_features.ReadFeature;
 import net.sf.cram.encoding.read_features.SoftClipVariation;
 import net.sf.cram.encoding.read_features.SubstitutionVariation;
+import net.sf.cram.ref.ReferenceRegion;
+import net.sf.cram.ref.ReferenceSource;
 import net.sf.samtools.SAMFileHeader;
 import net.sf.samtools.SAMRecord;
+import net.sf.samtools.SAMSequenceRecord;
 
 public class CramNormalizer {
 	private SAMFileHeader header;
@@ -25,6 +28,7 @@ public class CramNormalizer {
 
 	private Map<Integer, CramRecord> pairingByIndexMap = new HashMap<Integer, CramRecord>();
 	private byte[] ref;
+	private int refOffset = 0;
 
 	public CramNormalizer(SAMFileHeader header, byte[] ref, int alignmentStart) {
 		this.header = header;
@@ -32,13 +36,129 @@ public class CramNormalizer {
 		this.alignmentStart = alignmentStart;
 	}
 
+	/**
+	 * @param ref
+	 *            reference bases, ref[0] being the base at zero-based
+	 *            position refOffset in the sequence
+	 */
+	public void setReference(byte[] ref, int refOffset) {
+		this.ref = ref;
+		this.refOffset = refOffset;
+	}
+
+	/**
+	 * Fetches just the part of the reference covered by the records, which
+	 * must have their positions restored already. Unplaced records, with a
+	 * null sequence, need no reference and nothing is fetched.
+	 */
+	public void fetchReference(List<CramRecord> records,
+			ReferenceSource source, SAMSequenceRecord sequence) {
+		fetchReference(records, source, sequence, null);
+	}
+
+	/**
+	 * As {@link #fetchReference(List, ReferenceSource, SAMSequenceRecord)}
+	 * but takes the bases from the reference embedded in the container when
+	 * it covers the records, the source is not touched then and may be null.
+	 */
+	public void fetchReference(List<CramRecord> records,
+			ReferenceSource source, SAMSequenceRecord sequence,
+			ReferenceRegion embedded) {
+		if (sequence == null) {
+			setReference(new byte[0], 0);
+			return;
+		}
+
+		int start = Integer.MAX_VALUE;
+		int end = 0;
+		for (int i = 0; i < records.size(); i++) {
+			CramRecord r = records.get(i);
+			if (r.segmentUnmapped)
+				continue;
+			start = Math.min(start, r.getAlignmentStart());
+			end = Math.max(end, r.calcualteAlignmentEnd());
+		}
+
+		if (end == 0) {
+			start = 1;
+			end = 1;
+		}
+		// end is one past the last aligned base:
+		if (embedded != null && embedded.offset <= start - 1
+				&& embedded.getEnd() >= end - 1) {
+			setReference(embedded.bases, embedded.offset);
+			return;
+		}
+		if (source == null)
+			throw new RuntimeException("No reference for sequence "
+					+ sequence.getSequenceName() + " from " + start);
+
+		ReferenceRegion region = source.getRegion(sequence, start - 1, end);
+		setReference(region.bases, region.offset);
+	}
+
+	/**
+	 * @return the index after the last record from index from on that has
+	 *         the same sequence as the record at from
+	 */
+	public static int sequenceRunEnd(List<CramRecord> records, int from) {
+		int sequenceId = records.get(from).sequenceId;
+		int to = from + 1;
+		while (to < records.size() && records.get(to).sequenceId == sequenceId)
+			to++;
+		return to;
+	}
+
 	public void normalize(List<CramRecord> records, boolean resetPairing) {
+		normalize(records, resetPairing, true);
+	}
+
+	/**
+	 * Restores read names, bases and scores of records that went through
+	 * {@link #restorePositionsAndPairing(List, boolean)}.
+	 */
+	public void restoreContent(List<CramRecord> records) {
+		for (int i = 0; i < records.size(); i++)
+			restoreContent(records.get(i));
+	}
+
+	private void restoreContent(CramRecord r) {
+		if (r.getReadName() == null)
+			r.setReadName(r.previous == null ? readNamePrefix + r.index
+					: r.previous.getReadName());
+		r.setReadBases(restoreReadBases(r));
+		r.setQualityScores(restoreQualityScores(r));
+	}
+
+	/**
+	 * Restores alignment starts, reference names, read indexes and mate
+	 * information but leaves read names, bases and scores untouched.
+	 */
+	public void restorePositionsAndPairing(List<CramRecord> records,
+			boolean resetPairing) {
+		normalize(records, resetPairing, false);
+	}
+
+	/**
+	 * Restores each record in a single pass. Mates are always upstream of the
+	 * record being restored, so their positions and names are already known.
+	 * Mates downstream within the list are linked directly, only those beyond
+	 * it go through the pairing map.
+	 */
+	private void normalize(List<CramRecord> records, boolean resetPairing,
+			boolean restoreContent) {
 		if (resetPairing)
 			pairingByIndexMap.clear();
 
-		for (CramRecord r : records) {
+		int size = records.size();
+		for (int i = 0; i < size; i++) {
+			CramRecord r = records.get(i);
 			r.index = ++readCounter;
 
+			// the first record of each further sequence has an absolute
+			// start:
+			if (i > 0 && r.sequenceId != records.get(i - 1).sequenceId)
+				alignmentStart = 0;
 			alignmentStart += r.alignmentStartOffsetFromPreviousRecord;
 			r.setAlignmentStart(alignmentStart);
 
@@ -47,108 +167,115 @@ public class CramNormalizer {
 			else
 				r.setSequenceName(header.getSequence(r.sequenceId)
 						.getSequenceName());
-		}
 
-		{// restore pairing first:
-			for (CramRecord r : records) {
-				if (!r.multiFragment || r.detached) {
-					r.recordsToNextFragment = -1;
-
-					r.next = null;
-					r.previous = null;
-					continue;
-				}
-
-				if (r.hasMateDownStream) {
-					pairingByIndexMap.put(
-							r.index + r.recordsToNextFragment + 1, r);
-				} else {
-					r.recordsToNextFragment = -1;
-					CramRecord prev = pairingByIndexMap.remove(r.index);
-					if (prev == null)
-						throw new RuntimeException("Pairing broken: "
-								+ r.toString());
-					else {
-						r.previous = prev;
-						prev.next = r;
-
-						r.mateAlignmentStart = prev.getAlignmentStart();
-						r.mateUmapped = prev.segmentUnmapped;
-						r.mateNegativeStrand = prev.negativeStrand;
-						r.mateSequnceID = prev.sequenceId;
-
-						prev.mateAlignmentStart = r.getAlignmentStart();
-						prev.mateUmapped = r.segmentUnmapped;
-						prev.mateNegativeStrand = r.negativeStrand;
-						prev.mateSequnceID = r.sequenceId;
-
-						if (r.firstSegment && prev.lastSegment) {
-							r.templateSize = Utils.computeInsertSize(r, prev);
-							prev.templateSize = -r.templateSize;
-						} else if (r.lastSegment && prev.firstSegment) {
-							prev.templateSize = Utils
-									.computeInsertSize(prev, r);
-							r.templateSize = -prev.templateSize;
-						}
-					}
-				}
+			if (!r.multiFragment || r.detached) {
+				r.recordsToNextFragment = -1;
+
+				r.next = null;
+				r.previous = null;
+			} else if (r.hasMateDownStream) {
+				int mate = i + r.recordsToNextFragment + 1;
+				if (mate < size)
+					records.get(mate).previous = r;
+				else
+					pairingByIndexMap.put(r.index + r.recordsToNextFragment
+							+ 1, r);
+			} else {
+				r.recordsToNextFragment = -1;
+				CramRecord prev = r.previous;
+				if (prev == null)
+					prev = pairingByIndexMap.remove(r.index);
+				if (prev == null)
+					throw new RuntimeException("Pairing broken: "
+							+ r.toString());
+				restoreMateInfo(r, prev);
 			}
-		}
 
-		// assign some read names if needed:
-		for (CramRecord r : records) {
-			if (r.getReadName() == null) {
-				String name = readNamePrefix + r.index;
-				r.setReadName(name);
-				if (r.next != null)
-					r.next.setReadName(name);
-				if (r.previous != null)
-					r.previous.setReadName(name);
-			}
+			if (restoreContent)
+				restoreContent(r);
 		}
+	}
 
-		// resolve bases:
-		for (CramRecord r : records) {
-			byte[] bases = restoreReadBases(r, ref);
-			r.setReadBases(bases);
+	private static void restoreMateInfo(CramRecord r, CramRecord prev) {
+		r.previous = prev;
+		prev.next = r;
+
+		r.mateAlignmentStart = prev.getAlignmentStart();
+		r.mateUmapped = prev.segmentUnmapped;
+		r.mateNegativeStrand = prev.negativeStrand;
+		r.mateSequnceID = prev.sequenceId;
+
+		prev.mateAlignmentStart = r.getAlignmentStart();
+		prev.mateUmapped = r.segmentUnmapped;
+		prev.mateNegativeStrand = r.negativeStrand;
+		prev.mateSequnceID = r.sequenceId;
+
+		if (r.firstSegment && prev.lastSegment) {
+			r.templateSize = Utils.computeInsertSize(r, prev);
+			prev.templateSize = -r.templateSize;
+		} else if (r.lastSegment && prev.firstSegment) {
+			prev.templateSize = Utils.computeInsertSize(prev, r);
+			r.templateSize = -prev.templateSize;
 		}
+	}
 
-		// restore read group:
-		for (CramRecord r : records) {
-			r.setReadGroupID(r.getReadGroupID());
-		}
+	/**
+	 * Read name of a record after normalization: the stored name or one made
+	 * up from the index of the first record of the template.
+	 */
+	public String restoreReadName(CramRecord r) {
+		if (r.getReadName() != null)
+			return r.getReadName();
+
+		CramRecord first = r;
+		while (first.previous != null)
+			first = first.previous;
+		return readNamePrefix + first.index;
+	}
 
-		// restore quality scores:
-		for (CramRecord r : records) {
-			if (!r.forcePreserveQualityScores) {
-				byte[] scores = new byte[r.getReadLength()];
-				Arrays.fill(scores, defaultQualityScore);
-				if (r.getReadFeatures() != null)
-					for (ReadFeature f : r.getReadFeatures()) {
-						if (f.getOperator() == BaseQualityScore.operator) {
-							int pos = f.getPosition();
-							byte q = ((BaseQualityScore) f).getQualityScore();
-
-							try {
-								scores[pos-1] = q;
-							} catch (ArrayIndexOutOfBoundsException e) {
-								System.err.println("PROBLEM CAUSED BY:");
-								System.err.println(r.toString());
-								throw e;
-							}
-						}
+	public byte[] restoreReadBases(CramRecord r) {
+		// unmapped reads carry their own bases:
+		if (r.segmentUnmapped && r.getReadBases() != null)
+			return r.getReadBases();
+		return restoreReadBases(r, ref, refOffset);
+	}
 
+	public byte[] restoreQualityScores(CramRecord r) {
+		if (!r.forcePreserveQualityScores) {
+			byte[] scores = new byte[r.getReadLength()];
+			Arrays.fill(scores, defaultQualityScore);
+			if (r.getReadFeatures() != null)
+				for (ReadFeature f : r.getReadFeatures()) {
+					if (f.getOperator() == BaseQualityScore.operator) {
+						int pos = f.getPosition();
+						byte q = ((BaseQualityScore) f).getQualityScore();
+
+						try {
+							scores[pos - 1] = q;
+						} catch (ArrayIndexOutOfBoundsException e) {
+							System.err.println("PROBLEM CAUSED BY:");
+							System.err.println(r.toString());
+							throw e;
+						}
 					}
 
-				r.setQualityScores(scores);
-			} else {
-				byte[] scores = r.getQualityScores();
-				for (int i = 0; i < scores.length; i++)
-					if (scores[i] == -1)
-						scores[i] = defaultQualityScore;
-			}
-
+				}
+			return scores;
 		}
+
+		byte[] scores = r.getQualityScores();
+		for (int i = 0; i < scores.length; i++)
+			if (scores[i] == -1)
+				scores[i] = defaultQualityScore;
+		return scores;
+	}
+
+	public byte[] getReference() {
+		return ref;
+	}
+
+	public int getReferenceOffset() {
+		return refOffset;
 	}
 
 	public void restoreQualityScores(byte defaultQualityScore,
@@ -177,23 +304,30 @@ public class CramNormalizer {
 		return len;
 	}
 
-	private static final byte[] restoreReadBases(CramRecord record, byte[] ref) {
+	private static final byte[] restoreReadBases(CramRecord record,
+			byte[] ref, int refOffset) {
 		int readLength = (int) record.getReadLength();
 		byte[] bases = new byte[readLength];
 
-		int posInRead = 1;
-		int alignmentStart = record.getAlignmentStart() - 1;
-
-		int posInSeq = 0;
-		if (record.getReadFeatures() == null
-				|| record.getReadFeatures().isEmpty()) {
+		int alignmentStart = record.getAlignmentStart() - 1 - refOffset;
+		List<ReadFeature> variations = record.getReadFeatures();
+		if (variations == null || variations.isEmpty()) {
 			System.arraycopy(ref, alignmentStart, bases, 0, bases.length);
 			return bases;
 		}
-		List<ReadFeature> variations = record.getReadFeatures();
+
+		// reference spans between features are copied in one go:
+		int posInRead = 1;
+		int posInSeq = 0;
+		boolean hasReadBases = false;
 		for (ReadFeature v : variations) {
-			for (; posInRead < v.getPosition(); posInRead++)
-				bases[posInRead - 1] = ref[alignmentStart + posInSeq++];
+			int gap = v.getPosition() - posInRead;
+			if (gap > 0) {
+				System.arraycopy(ref, alignmentStart + posInSeq, bases,
+						posInRead - 1, gap);
+				posInRead += gap;
+				posInSeq += gap;
+			}
 
 			switch (v.getOperator()) {
 			case SubstitutionVariation.operator:
@@ -202,43 +336,40 @@ public class CramNormalizer {
 				byte base = sv.getBaseChange().getBaseForReference(refBase);
 				sv.setBase(base);
 				sv.setRefernceBase(refBase);
-				bases[posInRead++ - 1] = sv.getBase();
+				bases[posInRead++ - 1] = base;
 				posInSeq++;
 				break;
 			case InsertionVariation.operator:
-				InsertionVariation iv = (InsertionVariation) v;
-				for (int i = 0; i < iv.getSequence().length; i++)
-					bases[posInRead++ - 1] = iv.getSequence()[i];
+				byte[] insertion = ((InsertionVariation) v).getSequence();
+				System.arraycopy(insertion, 0, bases, posInRead - 1,
+						insertion.length);
+				posInRead += insertion.length;
 				break;
 			case SoftClipVariation.operator:
-				SoftClipVariation sc = (SoftClipVariation) v;
-				for (int i = 0; i < sc.getSequence().length; i++)
-					bases[posInRead++ - 1] = sc.getSequence()[i];
+				byte[] clip = ((SoftClipVariation) v).getSequence();
+				System.arraycopy(clip, 0, bases, posInRead - 1, clip.length);
+				posInRead += clip.length;
 				break;
 			case DeletionVariation.operator:
-				DeletionVariation dv = (DeletionVariation) v;
-				posInSeq += dv.getLength();
+				posInSeq += ((DeletionVariation) v).getLength();
 				break;
 			case InsertBase.operator:
-				InsertBase ib = (InsertBase) v;
-				bases[posInRead++ - 1] = ib.getBase();
+				bases[posInRead++ - 1] = ((InsertBase) v).getBase();
 				break;
-			}
-		}
-		for (; posInRead <= readLength; posInRead++)
-			bases[posInRead - 1] = ref[alignmentStart + posInSeq++];
-
-		// ReadBase overwrites bases:
-		for (ReadFeature v : variations) {
-			switch (v.getOperator()) {
 			case ReadBase.operator:
-				ReadBase rb = (ReadBase) v;
-				bases[v.getPosition() - 1] = rb.getBase();
-				break;
-			default:
+				hasReadBases = true;
 				break;
 			}
 		}
+		if (posInRead <= readLength)
+			System.arraycopy(ref, alignmentStart + posInSeq, bases,
+					posInRead - 1, readLength - posInRead + 1);
+
+		// ReadBase overwrites bases:
+		if (hasReadBases)
+			for (ReadFeature v : variations)
+				if (v.getOperator() == ReadBase.operator)
+					bases[v.getPosition() - 1] = ((ReadBase) v).getBase();
 
 		return bases;
 	}
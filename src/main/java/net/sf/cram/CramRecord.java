@@ -404,6 +404,56 @@ public class CramRecord implements Serializable{
 		this.readName = readName;
 	}
 
+	/**
+	 * Clears the record so that it can be filled again, the read feature list
+	 * is kept and emptied.
+	 */
+	public void reset() {
+		tags = null;
+		index = 0;
+		alignmentStart = 0;
+		alignmentStartOffsetFromPreviousRecord = 0;
+		readLength = 0;
+		recordsToNextFragment = -1;
+		readBases = null;
+		qualityScores = null;
+		if (readFeatures != null)
+			readFeatures.clear();
+		readGroupID = 0;
+
+		flags = null;
+		multiFragment = false;
+		properPair = false;
+		segmentUnmapped = false;
+		negativeStrand = false;
+		firstSegment = false;
+		lastSegment = false;
+		secondaryALignment = false;
+		vendorFiltered = false;
+		duplicate = false;
+
+		next = null;
+		previous = null;
+
+		mateFlags = null;
+		mateUmapped = false;
+		mateNegativeStrand = false;
+
+		compressionFlags = null;
+		hasMateDownStream = false;
+		detached = false;
+		forcePreserveQualityScores = false;
+
+		mateSequnceID = 0;
+		mateAlignmentStart = 0;
+		mappingQuality = 0;
+		sequenceName = null;
+		sequenceId = 0;
+		readName = null;
+		templateSize = 0;
+		counter = 1;
+	}
+
 	public int calcualteAlignmentEnd() {
 		if (readFeatures == null || readFeatures.isEmpty())
 			return alignmentStart + readLength;
@@ -0,0 +1,225 @@
+/*******************************************************************************
+ * Copyright 2012 EMBL-EBI, Hinxton outstation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ ******************************************************************************/
+package net.sf.cram;
+
+import java.util.Collection;
+
+import net.sf.samtools.Cigar;
+import net.sf.samtools.SAMBinaryTagAndValue;
+import net.sf.samtools.SAMFileHeader;
+import net.sf.samtools.SAMRecord;
+import net.sf.samtools.SAMTagUtil;
+
+/**
+ * A SAM record restored from CRAM. Tags are kept in their binary form as read
+ * from the CRAM stream and are only turned into attribute objects when
+ * accessed. Records created with a lazy source restore read name, bases,
+ * scores, cigar and MD/NM tags from the CRAM record on first access.
+ */
+public class CramSAMRecord extends SAMRecord {
+	private static final short MD = SAMTagUtil.getSingleton().MD;
+	private static final short NM = SAMTagUtil.getSingleton().NM;
+
+	private Collection<ReadTag> readTags;
+
+	private CramRecord cramRecord;
+	private CramNormalizer normalizer;
+	private boolean lazyReadName = false;
+	private boolean lazyBases = false;
+	private boolean lazyScores = false;
+	private boolean lazyCigar = false;
+	private boolean lazyMD = false;
+	private boolean lazyNM = false;
+
+	public CramSAMRecord(SAMFileHeader header) {
+		super(header);
+	}
+
+	void setLazySource(CramRecord cramRecord, CramNormalizer normalizer,
+			boolean restoreMD, boolean restoreNM) {
+		this.cramRecord = cramRecord;
+		this.normalizer = normalizer;
+		lazyReadName = true;
+		lazyBases = true;
+		lazyScores = true;
+		lazyCigar = true;
+		lazyMD = restoreMD;
+		lazyNM = restoreNM;
+	}
+
+	@Override
+	public String getReadName() {
+		if (lazyReadName) {
+			lazyReadName = false;
+			super.setReadName(normalizer.restoreReadName(cramRecord));
+		}
+		return super.getReadName();
+	}
+
+	@Override
+	public int getReadNameLength() {
+		return getReadName().length();
+	}
+
+	@Override
+	public void setReadName(String value) {
+		lazyReadName = false;
+		super.setReadName(value);
+	}
+
+	@Override
+	public byte[] getReadBases() {
+		if (lazyBases) {
+			lazyBases = false;
+			super.setReadBases(normalizer.restoreReadBases(cramRecord));
+		}
+		return super.getReadBases();
+	}
+
+	@Override
+	public int getReadLength() {
+		if (lazyBases)
+			return cramRecord.getReadLength();
+		return super.getReadLength();
+	}
+
+	@Override
+	public void setReadBases(byte[] value) {
+		lazyBases = false;
+		super.setReadBases(value);
+	}
+
+	@Override
+	public byte[] getBaseQualities() {
+		if (lazyScores) {
+			lazyScores = false;
+			super.setBaseQualities(normalizer.restoreQualityScores(cramRecord));
+		}
+		return super.getBaseQualities();
+	}
+
+	@Override
+	public void setBaseQualities(byte[] value) {
+		lazyScores = false;
+		super.setBaseQualities(value);
+	}
+
+	@Override
+	public Cigar getCigar() {
+		if (lazyCigar) {
+			lazyCigar = false;
+			super.setCigar(Cram2BamRecordFactory.getCigar(cramRecord));
+		}
+		return super.getCigar();
+	}
+
+	@Override
+	public String getCigarString() {
+		if (lazyCigar)
+			getCigar();
+		return super.getCigarString();
+	}
+
+	@Override
+	public void setCigar(Cigar cigar) {
+		lazyCigar = false;
+		super.setCigar(cigar);
+	}
+
+	@Override
+	public void setCigarString(String value) {
+		lazyCigar = false;
+		super.setCigarString(value);
+	}
+
+	private void restoreMdAndNm() {
+		if (!lazyMD && !lazyNM)
+			return;
+
+		boolean md = lazyMD, nm = lazyNM;
+		lazyMD = false;
+		lazyNM = false;
+		// unmapped reads have no alignment to compare with:
+		if (getReadUnmappedFlag())
+			return;
+		Utils.calculateMdAndNmTags(this, normalizer.getReference(),
+				normalizer.getReferenceOffset(), md, nm);
+	}
+
+	public void setReadTags(Collection<ReadTag> tags) {
+		this.readTags = tags;
+	}
+
+	private void decodeTags() {
+		if (readTags == null)
+			return;
+
+		Collection<ReadTag> tags = readTags;
+		readTags = null;
+		for (ReadTag tag : tags)
+			super.setAttribute(tag.code, tag.getValue(), tag.isUnsignedArray());
+	}
+
+	@Override
+	public Object getAttribute(short tag) {
+		decodeTags();
+		if (tag == MD || tag == NM)
+			restoreMdAndNm();
+		return super.getAttribute(tag);
+	}
+
+	@Override
+	public boolean isUnsignedArrayAttribute(String tag) {
+		decodeTags();
+		return super.isUnsignedArrayAttribute(tag);
+	}
+
+	@Override
+	protected void setAttribute(short tag, Object value, boolean isUnsignedArray) {
+		decodeTags();
+		if (tag == MD)
+			lazyMD = false;
+		else if (tag == NM)
+			lazyNM = false;
+		super.setAttribute(tag, value, isUnsignedArray);
+	}
+
+	@Override
+	public void clearAttributes() {
+		readTags = null;
+		lazyMD = false;
+		lazyNM = false;
+		super.clearAttributes();
+	}
+
+	@Override
+	protected SAMBinaryTagAndValue getBinaryAttributes() {
+		decodeTags();
+		restoreMdAndNm();
+		return super.getBinaryAttributes();
+	}
+
+	@Override
+	protected void eagerDecode() {
+		getReadName();
+		getReadBases();
+		getBaseQualities();
+		getCigar();
+		decodeTags();
+		restoreMdAndNm();
+		super.eagerDecode();
+	}
+}
@@ -26,6 +26,10 @@ import com.beust.jcommander.Parameters;
 public class CramTools {
 	public static final String CRAM2BAM_COMMAND = "bam";
 	public static final String BAM2CRAM_COMMAND = "cram";
+	public static final String PACK_REFERENCE_COMMAND = "packref";
+	public static final String QS_EXPLORE_COMMAND = "qs-explore";
+	public static final String REF_MASK_COMMAND = "refmask";
+	public static final String FLAGSTAT_COMMAND = "flagstat";
 
 	private static Log log = Log.getInstance(CramTools.class);
 
@@ -37,9 +41,17 @@ public class CramTools {
 
 		Cram2Bam.Params cram2BamParams = new Cram2Bam.Params();
 		Bam2Cram.Params bam2CramParams = new Bam2Cram.Params();
+		PackReference.Params packReferenceParams = new PackReference.Params();
+		QualityScoreExplorer.Params qsExploreParams = new QualityScoreExplorer.Params();
+		BuildRefMask.Params refMaskParams = new BuildRefMask.Params();
+		FlagStat.Params flagStatParams = new FlagStat.Params();
 
 		jc.addCommand(CRAM2BAM_COMMAND, cram2BamParams);
 		jc.addCommand(BAM2CRAM_COMMAND, bam2CramParams);
+		jc.addCommand(PACK_REFERENCE_COMMAND, packReferenceParams);
+		jc.addCommand(QS_EXPLORE_COMMAND, qsExploreParams);
+		jc.addCommand(REF_MASK_COMMAND, refMaskParams);
+		jc.addCommand(FLAGSTAT_COMMAND, flagStatParams);
 
 		jc.parse(args);
 
@@ -70,6 +82,14 @@ public class CramTools {
 			Cram2Bam.main(commandArgs);
 		else if (BAM2CRAM_COMMAND.equals(command))
 			Bam2Cram.main(commandArgs);
+		else if (PACK_REFERENCE_COMMAND.equals(command))
+			PackReference.main(commandArgs);
+		else if (QS_EXPLORE_COMMAND.equals(command))
+			QualityScoreExplorer.main(commandArgs);
+		else if (REF_MASK_COMMAND.equals(command))
+			BuildRefMask.main(commandArgs);
+		else if (FLAGSTAT_COMMAND.equals(command))
+			FlagStat.main(commandArgs);
 
 	}
 
@@ -0,0 +1,199 @@
+/*******************************************************************************
+ * Copyright 2012 EMBL-EBI, Hinxton outstation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ ******************************************************************************/
+package net.sf.cram;
+
+import java.io.BufferedInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+import net.sf.cram.ReadWrite.CramHeader;
+import net.sf.cram.structure.Container;
+import net.sf.cram.structure.Slice;
+import net.sf.picard.util.Log;
+import net.sf.picard.util.Log.LogLevel;
+import net.sf.samtools.SAMFileHeader;
+import net.sf.samtools.SAMSequenceRecord;
+
+import com.beust.jcommander.JCommander;
+import com.beust.jcommander.Parameter;
+import com.beust.jcommander.Parameters;
+import com.beust.jcommander.converters.FileConverter;
+
+/**
+ * Counts records by flag and by reference sequence, like 'samtools flagstat'
+ * and 'samtools idxstats'. Slices are decoded into a {@link ColumnarSlice}
+ * reused for the whole stream, no reference is needed since bases are never
+ * restored.
+ */
+public class FlagStat {
+	private final SAMFileHeader header;
+
+	long total = 0;
+	long secondary = 0;
+	long duplicates = 0;
+	long mapped = 0;
+	long paired = 0;
+	long read1 = 0;
+	long read2 = 0;
+	long properlyPaired = 0;
+
+	final long[] mappedBySequence;
+	final long[] unmappedBySequence;
+	long unplaced = 0;
+
+	FlagStat(SAMFileHeader header) {
+		this.header = header;
+		int sequences = header.getSequenceDictionary().size();
+		mappedBySequence = new long[sequences];
+		unmappedBySequence = new long[sequences];
+	}
+
+	void add(ColumnarSlice columns) {
+		ColumnarSlice.Cursor cursor = columns.cursor();
+		while (cursor.next()) {
+			total++;
+			if (cursor.isSecondaryAlignment())
+				secondary++;
+			if (cursor.isDuplicate())
+				duplicates++;
+			if (!cursor.isSegmentUnmapped())
+				mapped++;
+			if (cursor.isMultiFragment()) {
+				paired++;
+				if (cursor.isFirstSegment())
+					read1++;
+				if (cursor.isLastSegment())
+					read2++;
+				if (cursor.isProperPair())
+					properlyPaired++;
+			}
+
+			int sequenceId = cursor.getSequenceId();
+			if (sequenceId < 0)
+				unplaced++;
+			else if (cursor.isSegmentUnmapped())
+				unmappedBySequence[sequenceId]++;
+			else
+				mappedBySequence[sequenceId]++;
+		}
+	}
+
+	/**
+	 * Reads a CRAM stream to the end and counts its records.
+	 */
+	static FlagStat read(InputStream is) throws IOException,
+			IllegalArgumentException, IllegalAccessException {
+		CramHeader cramHeader = ReadWrite.readCramHeader(is);
+		FlagStat stat = new FlagStat(cramHeader.samFileHeader);
+
+		ColumnarSlice columns = new ColumnarSlice();
+		while (true) {
+			Container c = null;
+			try {
+				c = ReadWrite.readContainer(cramHeader.samFileHeader, is);
+			} catch (EOFException e) {
+				break;
+			}
+
+			for (Slice s : c.slices) {
+				columns = BLOCK_PROTO.getColumns(s, c.h, columns);
+				stat.add(columns);
+			}
+		}
+		return stat;
+	}
+
+	private static String percent(long count, long of) {
+		return of == 0 ? "N/A" : String.format("%.2f%%", 100f * count / of);
+	}
+
+	void print() {
+		System.out.println(String.format("%d in total", total));
+		System.out.println(String.format("%d secondary", secondary));
+		System.out.println(String.format("%d duplicates", duplicates));
+		System.out.println(String.format("%d mapped (%s)", mapped,
+				percent(mapped, total)));
+		System.out.println(String.format("%d paired in sequencing", paired));
+		System.out.println(String.format("%d read1", read1));
+		System.out.println(String.format("%d read2", read2));
+		System.out.println(String.format("%d properly paired (%s)",
+				properlyPaired, percent(properlyPaired, paired)));
+
+		System.out.println();
+		System.out.println("sequence\tlength\tmapped\tunmapped");
+		for (int i = 0; i < mappedBySequence.length; i++) {
+			SAMSequenceRecord sequence = header.getSequence(i);
+			System.out.println(String.format("%s\t%d\t%d\t%d",
+					sequence.getSequenceName(), sequence.getSequenceLength(),
+					mappedBySequence[i], unmappedBySequence[i]));
+		}
+		System.out.println(String.format("*\t0\t0\t%d", unplaced));
+	}
+
+	private static void printUsage(JCommander jc) {
+		StringBuilder sb = new StringBuilder();
+		sb.append("\n");
+		jc.usage(sb);
+
+		System.out.println("Version "
+				+ FlagStat.class.getPackage().getImplementationVersion());
+		System.out.println(sb.toString());
+	}
+
+	public static void main(String[] args) throws IOException,
+			IllegalArgumentException, IllegalAccessException {
+		Params params = new Params();
+		JCommander jc = new JCommander(params);
+		try {
+			jc.parse(args);
+		} catch (Exception e) {
+			System.out
+					.println("Failed to parse parameteres, detailed message below: ");
+			System.out.println(e.getMessage());
+			System.out.println();
+			System.out.println("See usage: -h");
+			System.exit(1);
+		}
+
+		if (params.help) {
+			printUsage(jc);
+			System.exit(1);
+		}
+
+		Log.setGlobalLogLevel(LogLevel.INFO);
+
+		InputStream is = new BufferedInputStream(
+				params.cramFile == null ? System.in : new FileInputStream(
+						params.cramFile));
+		try {
+			read(is).print();
+		} finally {
+			is.close();
+		}
+	}
+
+	@Parameters(commandDescription = "Count CRAM records by flag and by reference sequence.")
+	static class Params {
+		@Parameter(names = { "--input-cram-file", "-I" }, converter = FileConverter.class, description = "The path to the CRAM file. Omit if standard input (pipe).")
+		File cramFile;
+
+		@Parameter(names = { "-h", "--help" }, description = "Print help and quit")
+		boolean help = false;
+	}
+}
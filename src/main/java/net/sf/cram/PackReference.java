@@ -0,0 +1,93 @@
+/*******************************************************************************
+ * Copyright 2012 EMBL-EBI, Hinxton outstation
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ ******************************************************************************/
+package net.sf.cram;
+
+import java.io.File;
+import java.io.IOException;
+
+import net.sf.cram.ref.MappedFastaSequenceFile;
+import net.sf.cram.ref.PackedReferenceFile;
+import net.sf.picard.util.Log;
+
+import com.beust.jcommander.JCommander;
+import com.beust.jcommander.Parameter;
+import com.beust.jcommander.Parameters;
+import com.beust.jcommander.converters.FileConverter;
+
+public class PackReference {
+	private static Log log = Log.getInstance(PackReference.class);
+
+	private static void printUsage(JCommander jc) {
+		StringBuilder sb = new StringBuilder();
+		sb.append("\n");
+		jc.usage(sb);
+
+		System.out.println("Version "
+				+ PackReference.class.getPackage().getImplementationVersion());
+		System.out.println(sb.toString());
+	}
+
+	public static void main(String[] args) throws IOException {
+		Params params = new Params();
+		JCommander jc = new JCommander(params);
+		try {
+			jc.parse(args);
+		} catch (Exception e) {
+			System.out
+					.println("Failed to parse parameteres, detailed message below: ");
+			System.out.println(e.getMessage());
+			System.out.println();
+			System.out.println("See usage: -h");
+			System.exit(1);
+		}
+
+		if (args.length == 0 || params.help) {
+			printUsage(jc);
+			System.exit(1);
+		}
+
+		if (params.reference == null || params.outputFile == null) {
+			System.out
+					.println("A reference fasta file and an output file are required.");
+			System.exit(1);
+		}
+
+		if (!MappedFastaSequenceFile.canOpen(params.reference)) {
+			System.out
+					.println("The reference fasta file must be indexed, try executing 'samtools faidx "
+							+ params.reference.getAbsolutePath() + "'");
+			System.exit(1);
+		}
+
+		long time = System.currentTimeMillis();
+		PackedReferenceFile.write(new MappedFastaSequenceFile(
+				params.reference), params.outputFile);
+		log.info(String.format("Packed reference written in %dms: %d bytes.",
+				System.currentTimeMillis() - time, params.outputFile.length()));
+	}
+
+	@Parameters(commandDescription = "Pack a fasta reference into 2 bits per base.")
+	static class Params {
+		@Parameter(names = { "--reference-fasta-file", "-R" }, converter = FileConverter.class, description = "Path to the reference fasta file, it must be uncompressed and indexed (use 'samtools faidx' for example).")
+		File reference;
+
+		@Parameter(names = { "--output-file", "-O" }, converter = FileConverter.class, description = "The packed reference file to create. It can be used in place of the fasta file.")
+		File outputFile;
+
+		@Parameter(names = { "-h", "--help" }, description = "Print help and quit")
+		boolean help = false;
+	}
+}
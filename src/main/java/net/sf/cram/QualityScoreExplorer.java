@@ -0,0 +1,275 @@
+/*******************************************************************************
+ * Copyright 2012 EMBL-EBI, Hinxton outstation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ ******************************************************************************/
+package net.sf.cram;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.zip.GZIPOutputStream;
+
+import net.sf.cram.lossy.QualityScoreDecisionTable;
+import net.sf.cram.lossy.QualityScorePreservation;
+import net.sf.cram.ref.ReferenceRegion;
+import net.sf.cram.ref.ReferenceSource;
+import net.sf.picard.util.Log;
+import net.sf.samtools.SAMFileHeader;
+import net.sf.samtools.SAMFileReader;
+import net.sf.samtools.SAMRecord;
+import net.sf.samtools.SAMRecordIterator;
+
+import com.beust.jcommander.JCommander;
+import com.beust.jcommander.Parameter;
+import com.beust.jcommander.Parameters;
+import com.beust.jcommander.converters.FileConverter;
+
+/**
+ * Evaluates lossy quality score specifications in a single pass over a BAM
+ * file. Records are read in batches, the reference tracks are updated once
+ * per record and every specification is then applied to the batch in
+ * parallel. For each specification the quality score stream Bam2Cram would
+ * write is compressed per batch, the way external blocks are compressed, and
+ * compared with the original scores.
+ */
+public class QualityScoreExplorer {
+	private static Log log = Log.getInstance(QualityScoreExplorer.class);
+
+	private static final byte DEFAULT_QUALITY_SCORE = '?' - '!';
+
+	/**
+	 * Results for one specification, only touched by one thread at a time.
+	 */
+	private static class Candidate implements Callable<Void> {
+		final String spec;
+		final QualityScoreDecisionTable table;
+
+		long scores = 0;
+		long changed = 0;
+		long streamBytes = 0;
+		long compressedBytes = 0;
+
+		private List<SAMRecord> records;
+		private List<ReferenceTracks> tracks;
+		private ByteArrayOutputStream stream = new ByteArrayOutputStream();
+		private byte[] buf = new byte[0];
+
+		Candidate(String spec) {
+			this.spec = spec;
+			table = new QualityScoreDecisionTable(new QualityScorePreservation(
+					spec).getPolicyList());
+		}
+
+		void setBatch(List<SAMRecord> records, List<ReferenceTracks> tracks) {
+			this.records = records;
+			this.tracks = tracks;
+		}
+
+		@Override
+		public Void call() throws IOException {
+			stream.reset();
+			for (int i = 0; i < records.size(); i++) {
+				SAMRecord record = records.get(i);
+				byte[] qs = record.getBaseQualities();
+				int length = record.getReadLength();
+				if (buf.length < length)
+					buf = new byte[length];
+
+				int flags = table.apply(record, tracks.get(i), buf);
+				boolean force = (flags & QualityScoreDecisionTable.FORCE_PRESERVE) != 0;
+
+				for (int j = 0; j < length; j++) {
+					byte score = buf[j];
+					if (force || score > -1)
+						stream.write(score);
+					if (score == -1)
+						score = DEFAULT_QUALITY_SCORE;
+					if (score != qs[j])
+						changed++;
+				}
+				scores += length;
+			}
+
+			streamBytes += stream.size();
+			ByteArrayOutputStream baos = new ByteArrayOutputStream();
+			GZIPOutputStream gos = new GZIPOutputStream(baos);
+			stream.writeTo(gos);
+			gos.close();
+			compressedBytes += baos.size();
+			return null;
+		}
+	}
+
+	private static void evaluate(List<SAMRecord> records,
+			SAMFileHeader header, ReferenceSource referenceSource,
+			ReferenceTracks tracks, List<Candidate> candidates,
+			ExecutorService executor) throws InterruptedException,
+			ExecutionException {
+
+		SAMRecord first = records.get(0);
+		if (first.getReferenceIndex() != SAMRecord.NO_ALIGNMENT_REFERENCE_INDEX) {
+			// unsorted input may hold earlier records later in the batch:
+			int alStart = first.getAlignmentStart();
+			int alEnd = alStart;
+			for (SAMRecord record : records) {
+				if (record.getAlignmentStart() > 0)
+					alStart = Math.min(alStart, record.getAlignmentStart());
+				alEnd = Math.max(alEnd, record.getAlignmentEnd());
+			}
+			ReferenceRegion region = referenceSource.getRegion(
+					header.getSequence(first.getReferenceIndex()),
+					alStart - 1, alEnd + 100);
+			tracks.setReference(region.bases, region.offset);
+		}
+
+		// the coverage each record sees, shared by all candidates:
+		List<ReferenceTracks> snapshots = new ArrayList<ReferenceTracks>(
+				records.size());
+		for (SAMRecord record : records) {
+			if (record.getAlignmentStart() > 0)
+				Bam2Cram.addToTracks(record, tracks);
+			snapshots.add(tracks.snapshot(record.getAlignmentStart(),
+					record.getReadLength()));
+		}
+
+		List<Future<Void>> futures = new ArrayList<Future<Void>>();
+		for (Candidate c : candidates) {
+			c.setBatch(records, snapshots);
+			futures.add(executor.submit(c));
+		}
+		for (Future<Void> f : futures)
+			f.get();
+	}
+
+	private static void printUsage(JCommander jc) {
+		StringBuilder sb = new StringBuilder();
+		sb.append("\n");
+		jc.usage(sb);
+
+		System.out.println("Version "
+				+ QualityScoreExplorer.class.getPackage()
+						.getImplementationVersion());
+		System.out.println(sb.toString());
+	}
+
+	public static void main(String[] args) throws IOException,
+			InterruptedException, ExecutionException {
+		Params params = new Params();
+		JCommander jc = new JCommander(params);
+		try {
+			jc.parse(args);
+		} catch (Exception e) {
+			System.out
+					.println("Failed to parse parameteres, detailed message below: ");
+			System.out.println(e.getMessage());
+			System.out.println();
+			System.out.println("See usage: -h");
+			System.exit(1);
+		}
+
+		if (args.length == 0 || params.help) {
+			printUsage(jc);
+			System.exit(1);
+		}
+
+		if (params.bamFile == null || params.referenceFasta == null
+				|| params.specs == null || params.specs.isEmpty()) {
+			System.out
+					.println("A BAM file, a reference fasta file and at least one spec are required.");
+			System.exit(1);
+		}
+
+		List<Candidate> candidates = new ArrayList<Candidate>();
+		for (String spec : params.specs)
+			candidates.add(new Candidate(spec));
+
+		SAMFileReader reader = new SAMFileReader(params.bamFile);
+		SAMFileHeader header = reader.getFileHeader();
+		ReferenceSource referenceSource = new ReferenceSource(
+				ReferenceSource.openReferenceFile(params.referenceFasta));
+		ExecutorService executor = Executors.newFixedThreadPool(Math.max(1,
+				Math.min(params.threads, candidates.size())));
+
+		long time = System.currentTimeMillis();
+		List<SAMRecord> records = new ArrayList<SAMRecord>(params.batchSize);
+		ReferenceTracks tracks = null;
+		SAMRecordIterator iterator = reader.iterator();
+		try {
+			while (iterator.hasNext() && params.maxRecords-- > 0) {
+				SAMRecord record = iterator.next();
+				if (!records.isEmpty()
+						&& (record.getReferenceIndex().intValue() != records
+								.get(0).getReferenceIndex().intValue() || records
+								.size() >= params.batchSize)) {
+					evaluate(records, header, referenceSource, tracks,
+							candidates, executor);
+					records.clear();
+				}
+
+				if (tracks == null
+						|| tracks.getSequenceId() != record.getReferenceIndex())
+					tracks = new ReferenceTracks(record.getReferenceIndex(),
+							record.getReferenceName(), new byte[0], 1024);
+				records.add(record);
+			}
+			if (!records.isEmpty())
+				evaluate(records, header, referenceSource, tracks, candidates,
+						executor);
+		} finally {
+			executor.shutdown();
+		}
+		iterator.close();
+		reader.close();
+		log.info(String.format("Specs evaluated in %dms.",
+				System.currentTimeMillis() - time));
+
+		System.out.println("spec\tscores\tQS bytes\tcompressed bytes\tbits per score\tchanged");
+		for (Candidate c : candidates)
+			System.out.println(String.format("%s\t%d\t%d\t%d\t%.3f\t%.2f%%",
+					c.spec, c.scores, c.streamBytes, c.compressedBytes,
+					c.scores == 0 ? 0f : 8f * c.compressedBytes / c.scores,
+					c.scores == 0 ? 0f : 100f * c.changed / c.scores));
+	}
+
+	@Parameters(commandDescription = "Compare lossy quality score specs on a BAM file.")
+	static class Params {
+		@Parameter(names = { "--input-bam-file", "-I" }, converter = FileConverter.class, description = "Path to a coordinate sorted BAM file.")
+		File bamFile;
+
+		@Parameter(names = { "--reference-fasta-file", "-R" }, converter = FileConverter.class, description = "The reference fasta file, uncompressed and indexed (.fai file, use 'samtools faidx'). ")
+		File referenceFasta;
+
+		@Parameter(names = { "--lossy-quality-score-spec", "-L" }, description = "A quality score spec to evaluate, repeat for more specs.")
+		List<String> specs;
+
+		@Parameter(names = { "--max-records" }, description = "Stop after this many records. ")
+		int maxRecords = Integer.MAX_VALUE;
+
+		@Parameter(names = { "--batch-size" }, description = "Number of records per batch, the scores are compressed per batch.")
+		int batchSize = 10000;
+
+		@Parameter(names = { "--threads" }, description = "Number of specs evaluated at the same time.")
+		int threads = Runtime.getRuntime().availableProcessors();
+
+		@Parameter(names = { "-h", "--help" }, description = "Print help and quit")
+		boolean help = false;
+	}
+}
@@ -50,11 +50,18 @@ public class ReadTag implements Comparable<ReadTag> {
 	public short code;
 	private byte index;
 
+	/**
+	 * Value in BAM binary form, the value object is only restored from it when
+	 * asked for.
+	 */
+	private byte[] data;
+
 	public ReadTag(int id, byte[] dataAsByteArray) {
-		char type = (char) (0xFF & id);
+		type = (char) (0xFF & id);
 		key = new String(new char[] { (char) ((id >> 16) & 0xFF),
 				(char) ((id >> 8) & 0xFF) });
-		value = restoreValueFromByteArray(type, dataAsByteArray);
+		data = dataAsByteArray;
+		keyAndType = key + ":" + type;
 		keyType3Bytes = this.key + this.type;
 
 		keyType3BytesAsInt = id;
@@ -113,7 +120,7 @@ public class ReadTag implements Comparable<ReadTag> {
 	}
 
 	public SAMTagAndValue createSAMTag() {
-		return new SAMTagAndValue(key, value);
+		return new SAMTagAndValue(key, getValue());
 	}
 
 	public static ReadTag deriveTypeFromKeyAndType(String keyAndType,
@@ -150,9 +157,13 @@ public class ReadTag implements Comparable<ReadTag> {
 		ReadTag foe = (ReadTag) obj;
 		if (!key.equals(foe.key))
 			return false;
-		if (value == null && foe.value == null)
+		if (data != null && foe.data != null)
+			return Arrays.equals(data, foe.data);
+		Object value = getValue();
+		Object foeValue = foe.getValue();
+		if (value == null && foeValue == null)
 			return true;
-		if (value != null && value.equals(foe.value))
+		if (value != null && value.equals(foeValue))
 			return true;
 
 		return false;
@@ -164,6 +175,8 @@ public class ReadTag implements Comparable<ReadTag> {
 	}
 
 	public Object getValue() {
+		if (value == null && data != null)
+			value = restoreValueFromByteArray(type, data);
 		return value;
 	}
 
@@ -176,12 +189,54 @@ public class ReadTag implements Comparable<ReadTag> {
 	}
 
 	public byte[] getValueAsByteArray() {
-		return writeSingleValue((byte)type, value, false) ;
+		if (data == null)
+			data = writeSingleValue((byte) type, value, false);
+		return data;
+	}
+
+	public boolean isUnsignedArray() {
+		return type == 'B' && Character.isUpperCase(getValueAsByteArray()[0]);
 	}
 
 	public static Object restoreValueFromByteArray(char type, byte[] array) {
-		ByteBuffer buf = ByteBuffer.wrap(array) ;
-		return readSingleValue((byte) type, buf, null) ;
+		ByteBuffer buf = ByteBuffer.wrap(array);
+		buf.order(ByteOrder.LITTLE_ENDIAN);
+		return readSingleValue((byte) type, buf, null);
+	}
+
+	/**
+	 * Returns the number of bytes taken by a tag value of the given type
+	 * stored in BAM binary form starting at the offset.
+	 */
+	public static int binaryValueLength(byte[] data, int offset, char type) {
+		switch (type) {
+		case 'A':
+		case 'c':
+		case 'C':
+			return 1;
+		case 's':
+		case 'S':
+			return 2;
+		case 'i':
+		case 'I':
+		case 'f':
+			return 4;
+		case 'Z':
+		case 'H':
+			int end = offset;
+			while (data[end] != 0)
+				end++;
+			return end - offset + 1;
+		case 'B':
+			int count = (0xFF & data[offset + 1])
+					| ((0xFF & data[offset + 2]) << 8)
+					| ((0xFF & data[offset + 3]) << 16)
+					| ((0xFF & data[offset + 4]) << 24);
+			char elementType = (char) Character.toLowerCase(data[offset]);
+			return 5 + count * binaryValueLength(data, offset, elementType);
+		default:
+			throw new SAMFormatException("Unrecognized tag type: " + type);
+		}
 	}
 
 	// copied from net.sf.samtools.BinaryTagCodec 1.62:
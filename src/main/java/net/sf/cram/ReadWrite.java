@@ -2,12 +2,14 @@ package net.sf.cram;
 
 import java.io.ByteArrayInputStream;
 import java.io.DataInputStream;
+import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
 import java.io.OutputStreamWriter;
 import java.nio.ByteBuffer;
 import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.HashMap;
@@ -18,6 +20,8 @@ import java.util.zip.GZIPInputStream;
 import java.util.zip.GZIPOutputStream;
 
 import net.sf.cram.encoding.NullEncoding;
+import net.sf.cram.io.BufferPool;
+import net.sf.cram.io.ByteArrayCursor;
 import net.sf.cram.io.ByteBufferUtils;
 import net.sf.cram.io.ExposedByteArrayOutputStream;
 import net.sf.cram.structure.Block;
@@ -102,21 +106,34 @@ public class ReadWrite {
 		return h;
 	}
 
-	private static void writeBlock(Block b, OutputStream os) throws IOException {
+	/**
+	 * Compresses the block and adds its header and data to the buffers. The
+	 * buffers wrap the arrays the bytes were produced in, nothing is copied.
+	 * Compressed data is also added to pooled, its arrays come from the
+	 * buffer pool.
+	 */
+	private static void serializeBlock(Block b, List<ByteBuffer> buffers,
+			List<ByteBuffer> pooled) throws IOException {
 
 		log.debug("WRITING BLOCK: " + b.toString());
 
-		b.rawContentSize = b.content.length;
 		b.compressedContentSize = b.rawContentSize;
-		ExposedByteArrayOutputStream baos = new ExposedByteArrayOutputStream();
+		ByteBuffer data;
 		switch (b.method) {
 		case 0:
+			data = ByteBuffer.wrap(b.content, 0, b.rawContentSize);
 			break;
 		case 1:
+			// room for incompressible data, so that the buffer never grows:
+			ExposedByteArrayOutputStream baos = new ExposedByteArrayOutputStream(
+					BufferPool.get().getArray(BufferPool.COMPRESSED,
+							b.rawContentSize + b.rawContentSize / 1000 + 64));
 			GZIPOutputStream gos = new GZIPOutputStream(baos);
-			gos.write(b.content);
+			gos.write(b.content, 0, b.rawContentSize);
 			gos.close();
 			b.compressedContentSize = baos.size();
+			data = ByteBuffer.wrap(baos.getBuffer(), 0, baos.size());
+			pooled.add(data);
 			break;
 		default:
 			throw new RuntimeException("Unknown compression method: "
@@ -138,44 +155,62 @@ public class ReadWrite {
 		ByteBufferUtils.writeUnsignedITF8(b.rawContentSize, buf);
 
 		buf.flip();
-		byte[] header = new byte[buf.limit()];
-		buf.get(header);
-		os.write(header);
-
-		if (b.method == 0)
-			os.write(b.content);
-		else
-			os.write(baos.getBuffer(), 0, baos.size());
+		buffers.add(buf);
+		buffers.add(data);
 	}
 
-	private static Block readBlock(InputStream is) throws IOException {
-		Block b = new Block();
+	private static int size(List<ByteBuffer> buffers) {
+		int size = 0;
+		for (ByteBuffer buf : buffers)
+			size += buf.remaining();
+		return size;
+	}
 
-		int method = is.read();
-		b.contentType = BlockContentType.values()[is.read()];
-		b.contentId = ByteBufferUtils.readUnsignedITF8(is);
-		int compresssedSize = ByteBufferUtils.readUnsignedITF8(is);
-		int rawSize = ByteBufferUtils.readUnsignedITF8(is);
+	/**
+	 * Writes the buffers with a single gathering write when the stream is a
+	 * file, one write per buffer otherwise.
+	 */
+	private static void write(List<ByteBuffer> buffers, OutputStream os)
+			throws IOException {
+		if (os instanceof FileOutputStream) {
+			FileChannel channel = ((FileOutputStream) os).getChannel();
+			ByteBuffer[] array = buffers.toArray(new ByteBuffer[buffers
+					.size()]);
+			long remaining = size(buffers);
+			while (remaining > 0)
+				remaining -= channel.write(array);
+			return;
+		}
 
-		byte[] compressedContent = new byte[compresssedSize];
-		DataInputStream dis = new DataInputStream(is);
-		dis.readFully(compressedContent);
-		ByteArrayInputStream bais = new ByteArrayInputStream(compressedContent);
+		for (ByteBuffer buf : buffers)
+			os.write(buf.array(), buf.arrayOffset() + buf.position(),
+					buf.remaining());
+	}
+
+	private static Block readBlock(ByteArrayCursor cursor) throws IOException {
+		Block b = new Block();
 
+		int method = cursor.read();
+		b.contentType = BlockContentType.values()[cursor.read()];
+		b.contentId = cursor.readITF8();
+		int compresssedSize = cursor.readITF8();
+		int rawSize = cursor.readITF8();
+
+		InputStream is = cursor.slice(compresssedSize);
 		switch (method) {
 		case 0:
-			is = bais;
 			break;
 		case 1:
-			is = new GZIPInputStream(bais);
+			is = new GZIPInputStream(is);
 			break;
 
 		default:
 			throw new RuntimeException("Unknown compression method: " + method);
 		}
 
-		dis = new DataInputStream(is);
-		b.content = new byte[rawSize];
+		DataInputStream dis = new DataInputStream(is);
+		b.setContent(new byte[rawSize], rawSize);
+		b.compressedContentSize = compresssedSize;
 		dis.readFully(b.content);
 
 		log.debug("READ BLOCK: " + b.toString());
@@ -205,10 +240,9 @@ public class ReadWrite {
 			ByteBufferUtils.writeUnsignedITF8(cid, content);
 
 		// embeded ref content id
-		ByteBufferUtils.writeUnsignedITF8(-1, content);
+		ByteBufferUtils.writeUnsignedITF8(s.embeddedRefBlockContentId, content);
 		content.flip();
-		b.content = new byte[content.limit()];
-		content.get(b.content);
+		b.setContent(content.array(), content.limit());
 
 		return b;
 	}
@@ -223,17 +257,17 @@ public class ReadWrite {
 
 		Slice s = new Slice();
 		s.contentType = b.contentType;
-		ByteBuffer buf = ByteBuffer.wrap(b.content);
-		s.sequenceId = ByteBufferUtils.readUnsignedITF8(buf);
-		s.alignmentStart = ByteBufferUtils.readUnsignedITF8(buf);
-		s.alignmentSpan = ByteBufferUtils.readUnsignedITF8(buf);
-		s.nofRecords = ByteBufferUtils.readUnsignedITF8(buf);
-		int blockCount = ByteBufferUtils.readUnsignedITF8(buf);
-		int externalCount = ByteBufferUtils.readUnsignedITF8(buf);
+		ByteArrayCursor cursor = new ByteArrayCursor(b.content, 0,
+				b.rawContentSize);
+		s.sequenceId = cursor.readITF8();
+		s.alignmentStart = cursor.readITF8();
+		s.alignmentSpan = cursor.readITF8();
+		s.nofRecords = cursor.readITF8();
+		int blockCount = cursor.readITF8();
+		int externalCount = cursor.readITF8();
 		int[] externalIds = new int[externalCount];
-		for (int i = 0; i < externalCount; i++)
-			externalIds[i] = ByteBufferUtils.readUnsignedITF8(buf);
-		int embededRefContentId = ByteBufferUtils.readUnsignedITF8(buf);
+		cursor.readITF8(externalIds, 0, externalCount);
+		s.embeddedRefBlockContentId = cursor.readITF8();
 
 		s.coreBlock = blocks.removeFirst();
 
@@ -250,7 +284,11 @@ public class ReadWrite {
 		b.contentId = 0;
 		b.method = 1;
 
-		ByteBuffer buf = ByteBuffer.allocate(1024 * 1024);
+		BufferPool pool = BufferPool.get();
+		ByteBuffer buf = ByteBuffer.wrap(pool.getArray(
+				BufferPool.COMPRESSION_HEADER, 1024 * 1024));
+		// one buffer for the maps in turn:
+		byte[] mapArray = pool.getArray(BufferPool.ENCODING_MAP, 1024 * 100);
 
 		ByteBufferUtils.writeUnsignedITF8(c.sequenceId, buf);
 		ByteBufferUtils.writeUnsignedITF8(c.alignmentStart, buf);
@@ -260,7 +298,7 @@ public class ReadWrite {
 		ByteBufferUtils.writeUnsignedITF8(0, buf);
 
 		{ // preservation map:
-			ByteBuffer mapBuf = ByteBuffer.allocate(1024 * 100);
+			ByteBuffer mapBuf = ByteBuffer.wrap(mapArray);
 			ByteBufferUtils.writeUnsignedITF8(4, mapBuf);
 			mapBuf.put("MI".getBytes());
 			mapBuf.put((byte) (c.h.mappedQualityScoreIncluded ? 1 : 0));
@@ -274,16 +312,12 @@ public class ReadWrite {
 			mapBuf.put("RN".getBytes());
 			mapBuf.put((byte) (c.h.readNamesIncluded ? 1 : 0));
 
-			mapBuf.flip();
-			byte[] mapBytes = new byte[mapBuf.limit()];
-			mapBuf.get(mapBytes);
-
-			ByteBufferUtils.writeUnsignedITF8(mapBytes.length, buf);
-			buf.put(mapBytes);
+			ByteBufferUtils.writeUnsignedITF8(mapBuf.position(), buf);
+			buf.put(mapArray, 0, mapBuf.position());
 		}
 
 		{ // encoding map:
-			ByteBuffer mapBuf = ByteBuffer.allocate(1024 * 100);
+			ByteBuffer mapBuf = ByteBuffer.wrap(mapArray);
 			ByteBufferUtils.writeUnsignedITF8(c.h.eMap.size(), mapBuf);
 			for (EncodingKey eKey : c.h.eMap.keySet()) {
 				mapBuf.put((byte) eKey.name().charAt(0));
@@ -294,16 +328,12 @@ public class ReadWrite {
 				ByteBufferUtils.writeUnsignedITF8(params.params.length, mapBuf);
 				mapBuf.put(params.params);
 			}
-			mapBuf.flip();
-			byte[] mapBytes = new byte[mapBuf.limit()];
-			mapBuf.get(mapBytes);
-
-			ByteBufferUtils.writeUnsignedITF8(mapBytes.length, buf);
-			buf.put(mapBytes);
+			ByteBufferUtils.writeUnsignedITF8(mapBuf.position(), buf);
+			buf.put(mapArray, 0, mapBuf.position());
 		}
 
 		{ // tag encoding map:
-			ByteBuffer mapBuf = ByteBuffer.allocate(1024 * 100);
+			ByteBuffer mapBuf = ByteBuffer.wrap(mapArray);
 			ByteBufferUtils.writeUnsignedITF8(c.h.tMap.size(), mapBuf);
 			for (Integer eKey : c.h.tMap.keySet()) {
 				ByteBufferUtils.writeUnsignedITF8(eKey, mapBuf);
@@ -313,17 +343,14 @@ public class ReadWrite {
 				ByteBufferUtils.writeUnsignedITF8(params.params.length, mapBuf);
 				mapBuf.put(params.params);
 			}
-			mapBuf.flip();
-			byte[] mapBytes = new byte[mapBuf.limit()];
-			mapBuf.get(mapBytes);
-
-			ByteBufferUtils.writeUnsignedITF8(mapBytes.length, buf);
-			buf.put(mapBytes);
+			ByteBufferUtils.writeUnsignedITF8(mapBuf.position(), buf);
+			buf.put(mapArray, 0, mapBuf.position());
 		}
 
+		pool.release(BufferPool.ENCODING_MAP, mapArray, 0);
+
 		buf.flip();
-		b.content = new byte[buf.limit()];
-		buf.get(b.content);
+		b.setContent(buf.array(), buf.limit());
 
 		return b;
 	}
@@ -416,40 +443,43 @@ public class ReadWrite {
 		return h;
 	}
 
+	/**
+	 * Serializes the container into buffers of known sizes first, then writes
+	 * the container header and all blocks at once without copying them into
+	 * an intermediate buffer.
+	 */
 	public static void writeContainer(Container c, OutputStream os)
 			throws IOException {
 
 		long time1 = System.nanoTime();
-		ExposedByteArrayOutputStream baos = new ExposedByteArrayOutputStream();
+		List<ByteBuffer> buffers = new ArrayList<ByteBuffer>();
+		List<ByteBuffer> pooled = new ArrayList<ByteBuffer>();
 
 		Block block = createCompressionHeaderBlock(c);
 		block.method = 1;
-		writeBlock(block, baos);
+		serializeBlock(block, buffers, pooled);
 		c.blockCount = 1;
 
-		List<Integer> landmarks = new ArrayList<Integer>();
+		c.landmarks = new int[c.slices.length];
 		for (int i = 0; i < c.slices.length; i++) {
 			Slice s = c.slices[i];
-			landmarks.add(baos.size());
+			c.landmarks[i] = size(buffers);
 
 			Block sliceBlock = createMappedSliceHeaderBlock(s);
 			sliceBlock.method = 0;
-			writeBlock(sliceBlock, baos);
+			serializeBlock(sliceBlock, buffers, pooled);
 			s.coreBlock.method = 1;
-			writeBlock(s.coreBlock, baos);
+			serializeBlock(s.coreBlock, buffers, pooled);
 			for (Integer contentId : s.external.keySet()) {
 				Block b = s.external.get(contentId);
 				b.method = 1;
-				writeBlock(b, baos);
+				serializeBlock(b, buffers, pooled);
 			}
 			c.blockCount += 2 + s.external.size();
 		}
-		c.landmarks = new int[landmarks.size()];
-		for (int i = 0; i < c.landmarks.length; i++)
-			c.landmarks[i] = landmarks.get(i);
 
 		ByteBuffer buf = ByteBuffer.allocate(1024);
-		ByteBufferUtils.writeUnsignedITF8(baos.size(), buf);
+		ByteBufferUtils.writeUnsignedITF8(size(buffers), buf);
 		ByteBufferUtils.writeUnsignedITF8(c.sequenceId, buf);
 		ByteBufferUtils.writeUnsignedITF8(c.alignmentStart, buf);
 		ByteBufferUtils.writeUnsignedITF8(c.alignmentSpan, buf);
@@ -458,13 +488,17 @@ public class ReadWrite {
 		ByteBufferUtils.writeUnsignedITF8(c.landmarks.length, buf);
 		for (int i = 0; i < c.landmarks.length; i++)
 			ByteBufferUtils.writeUnsignedITF8(c.landmarks[i], buf);
-
 		buf.flip();
-		byte[] header = new byte[buf.limit()];
-		buf.get(header);
 
-		os.write(header);
-		os.write(baos.getBuffer(), 0, baos.size());
+		// all buffers are kept for the final write:
+		buffers.add(0, buf);
+		write(buffers, os);
+
+		BufferPool pool = BufferPool.get();
+		pool.release(BufferPool.COMPRESSION_HEADER, block.content,
+				block.rawContentSize);
+		for (ByteBuffer data : pooled)
+			pool.release(BufferPool.COMPRESSED, data.array(), data.limit());
 
 		long time2 = System.nanoTime();
 
@@ -493,12 +527,16 @@ public class ReadWrite {
 		for (int i = 0; i < c.landmarks.length; i++)
 			c.landmarks[i] = ByteBufferUtils.readUnsignedITF8(is);
 
+		// the blocks are parsed from the container bytes read at once:
+		byte[] data = new byte[containerByteSize];
+		new DataInputStream(is).readFully(data);
+		ByteArrayCursor cursor = new ByteArrayCursor(data);
 		if (fromBlock > 0)
-			is.skip(c.landmarks[fromBlock]);
+			cursor.skip(c.landmarks[fromBlock]);
 
 		LinkedList<Block> blocks = new LinkedList<Block>();
 		for (int i = 0; i < c.blockCount; i++) {
-			blocks.add(readBlock(is));
+			blocks.add(readBlock(cursor));
 		}
 
 		c.h = readCompressionHeader(blocks.removeFirst());
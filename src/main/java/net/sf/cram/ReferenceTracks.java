@@ -1,30 +1,93 @@
 package net.sf.cram;
 
-import java.util.Arrays;
+import net.sf.cram.mask.PositionMask;
+import net.sf.cram.mask.RefMaskUtils;
 
+/**
+ * Coverage and mismatch counts along a reference sequence for coordinate
+ * sorted reads. The counts live in a circular buffer that starts at the
+ * window position and is extended as reads are added; positions behind the
+ * window are retired and their slots reused, so the buffer only needs to span
+ * the reads overlapping the current position rather than a whole container.
+ * The same instance can be carried across containers of one sequence, with
+ * {@link #setReference(byte[], int)} switching the reference region.
+ * <p>
+ * Coverage is recorded as a difference array: adding a range touches only its
+ * two ends and the counts are turned into prefix sums as they are queried.
+ * Positions below {@link #summed} hold coverage, those above it hold deltas.
+ */
 public class ReferenceTracks {
+	private static final int MIN_CAPACITY = 1024;
+
 	private int sequenceId;
 	private String sequenceName;
 	private byte[] reference;
+	private int refOffset;
 
+	// live positions are [position, end), positions below summed are summed:
 	private int position;
+	private int end;
+	private int summed;
+	// coverage at summed - 1:
+	private int running = 0;
+
+	private int mask;
+	private int[] coverage;
+	private int[] mismatches;
 
-	// a copy of ref bases for the given range:
-	private final byte[] bases;
-	private final short[] coverage;
-	private final short[] mismatches;
+	private PositionMask variants;
+	private RefMaskUtils.RefMask pile;
 
 	public ReferenceTracks(int sequenceId, String sequenceName,
 			byte[] reference, int windowSize) {
+		this(sequenceId, sequenceName, reference, 0, windowSize);
+	}
+
+	/**
+	 * @param reference
+	 *            reference bases, reference[0] being the base at zero-based
+	 *            position refOffset in the sequence
+	 * @param windowSize
+	 *            initial capacity of the buffer, it grows to the longest
+	 *            alignment seen
+	 */
+	public ReferenceTracks(int sequenceId, String sequenceName,
+			byte[] reference, int refOffset, int windowSize) {
+		this(sequenceId, sequenceName, reference, refOffset, refOffset + 1,
+				Math.max(MIN_CAPACITY, windowSize));
+	}
+
+	private ReferenceTracks(int sequenceId, String sequenceName,
+			byte[] reference, int refOffset, int position, int capacity) {
 		this.sequenceId = sequenceId;
 		this.sequenceName = sequenceName;
-		this.reference = reference;
-		bases = new byte[windowSize];
-		coverage = new short[windowSize];
-		mismatches = new short[windowSize];
-		position = 1;
+		setReference(reference, refOffset);
 
-		reset();
+		capacity = Integer.highestOneBit(Math.max(1, capacity - 1)) << 1;
+		coverage = new int[capacity];
+		mismatches = new int[capacity];
+		mask = capacity - 1;
+
+		this.position = position;
+		end = position;
+		summed = position;
+	}
+
+	/**
+	 * @return a copy of the counts for length positions from start, sharing
+	 *         the reference bases
+	 */
+	public ReferenceTracks snapshot(int start, int length) {
+		ReferenceTracks copy = new ReferenceTracks(sequenceId, sequenceName,
+				reference, refOffset, start, length);
+		copy.setKnownVariants(variants, pile);
+		copy.extendTo(start + length);
+		copy.summed = copy.end;
+		for (int pos = start; pos < copy.end; pos++) {
+			copy.coverage[pos & copy.mask] = coverageAt(pos);
+			copy.mismatches[pos & copy.mask] = mismatchesAt(pos);
+		}
+		return copy;
 	}
 
 	public int getSequenceId() {
@@ -35,75 +98,190 @@ public class ReferenceTracks {
 		return sequenceName;
 	}
 
+	/**
+	 * Replaces the reference bases, counts collected so far are kept.
+	 */
+	public void setReference(byte[] reference, int refOffset) {
+		this.reference = reference;
+		this.refOffset = refOffset;
+	}
+
+	/**
+	 * @param variants
+	 *            known variant sites, 1-based, may be null
+	 * @param pile
+	 *            read base counters, 0-based, may be null
+	 */
+	public void setKnownVariants(PositionMask variants,
+			RefMaskUtils.RefMask pile) {
+		this.variants = variants;
+		this.pile = pile;
+	}
+
+	/**
+	 * @return true if the 1-based position is a known variant site or the
+	 *         pile counters show enough non-reference bases there
+	 */
+	public boolean isKnownVariant(int pos) {
+		if (variants != null && variants.isMasked(pos))
+			return true;
+		return pile != null && pile.shouldStore(pos - 1, baseAt(pos));
+	}
+
 	public int getWindowPosition() {
 		return position;
 	}
 
 	public int getWindowLength() {
-		return bases.length;
+		return end - position;
 	}
 
 	public int getReferenceLength() {
-		return reference.length;
+		return refOffset + reference.length;
 	}
 
+	/**
+	 * Retires all positions before newPos.
+	 */
 	public void moveForwardTo(int newPos) {
 		if (newPos < position)
 			throw new RuntimeException(
 					"Cannot shift to smaller position on the reference.");
-		if (newPos == position)
-			return;
-
-		System.arraycopy(reference, newPos - 1, bases, 0, bases.length);
 
-		if (newPos > position && position + bases.length - newPos > 0) {
-			System.arraycopy(coverage, (newPos - position), coverage, 0,
-					(position - newPos + coverage.length));
-			System.arraycopy(mismatches, (newPos - position), mismatches,
-					0, (position - newPos + coverage.length));
-		} else {
-			Arrays.fill(coverage, (short) 0);
-			Arrays.fill(mismatches, (short) 0);
+		int retired = Math.min(newPos, end);
+		sumTo(retired);
+		for (int pos = position; pos < retired; pos++) {
+			coverage[pos & mask] = 0;
+			mismatches[pos & mask] = 0;
 		}
 
-		this.position = newPos;
+		position = newPos;
+		if (end < newPos) {
+			end = newPos;
+			summed = newPos;
+		}
 	}
 
 	public void reset() {
-		System.arraycopy(reference, position - 1, bases, 0, bases.length);
-		Arrays.fill(coverage, (short) 0);
-		Arrays.fill(mismatches, (short) 0);
+		for (int pos = position; pos < end; pos++) {
+			coverage[pos & mask] = 0;
+			mismatches[pos & mask] = 0;
+		}
+		end = position;
+		summed = position;
+		running = 0;
+	}
+
+	/**
+	 * Drops all counts and starts the window at newPos, which may be behind
+	 * the current window.
+	 */
+	public void restartAt(int newPos) {
+		reset();
+		position = newPos;
+		end = newPos;
+		summed = newPos;
 	}
 
+	/**
+	 * Retires the positions before start and makes room for length positions
+	 * from there.
+	 */
 	public void ensureRange(int start, int length) {
-		if (length > bases.length)
-			throw new RuntimeException("Requested window is too big: "
-					+ length);
 		if (start < position)
 			throw new RuntimeException("Cannot move the window backwords: "
 					+ start);
 
-		if (start + length > position + bases.length)
-			moveForwardTo(start);
+		moveForwardTo(start);
+		extendTo(start + length);
 	}
 
+	private void extendTo(int newEnd) {
+		if (newEnd <= end)
+			return;
+
+		if (newEnd - position > coverage.length) {
+			int capacity = Integer.highestOneBit(newEnd - position - 1) << 1;
+			int[] newCoverage = new int[capacity];
+			int[] newMismatches = new int[capacity];
+			int newMask = capacity - 1;
+			for (int pos = position; pos < end; pos++) {
+				newCoverage[pos & newMask] = coverage[pos & mask];
+				newMismatches[pos & newMask] = mismatches[pos & mask];
+			}
+			coverage = newCoverage;
+			mismatches = newMismatches;
+			mask = newMask;
+		}
+		end = newEnd;
+	}
+
+	/**
+	 * Turns deltas into coverage for all positions before pos.
+	 */
+	private void sumTo(int pos) {
+		for (; summed < pos; summed++) {
+			running += coverage[summed & mask];
+			coverage[summed & mask] = running;
+		}
+	}
+
+	/**
+	 * @return the reference base at the 1-based position, N beyond the
+	 *         reference region
+	 */
 	public final byte baseAt(int pos) {
-		return bases[pos - this.position];
+		int index = pos - 1 - refOffset;
+		if (index < 0 || index >= reference.length)
+			return 'N';
+		return reference[index];
 	}
 
-	public final short coverageAt(int pos) {
-		return coverage[pos - this.position];
+	public final int coverageAt(int pos) {
+		if (pos < position)
+			return 0;
+		if (pos >= end)
+			return 0;
+		sumTo(pos + 1);
+		return coverage[pos & mask];
 	}
 
-	public final short mismatchesAt(int pos) {
-		return mismatches[pos - this.position];
+	public final int mismatchesAt(int pos) {
+		if (pos < position || pos >= end)
+			return 0;
+		return mismatches[pos & mask];
 	}
 
 	public final void addCoverage(int pos, int amount) {
-		coverage[pos - this.position] += amount;
+		addCoverage(pos, 1, amount);
+	}
+
+	/**
+	 * Adds amount to the coverage of length positions from start.
+	 */
+	public final void addCoverage(int start, int length, int amount) {
+		if (length < 1)
+			return;
+		if (start < position)
+			throw new RuntimeException("Position already retired: " + start);
+
+		int stop = start + length;
+		extendTo(stop + 1);
+
+		int pos = start;
+		for (; pos < summed && pos < stop; pos++)
+			coverage[pos & mask] += amount;
+		if (pos < stop) {
+			coverage[pos & mask] += amount;
+			coverage[stop & mask] -= amount;
+		}
 	}
 
 	public final void addMismatches(int pos, int amount) {
-		mismatches[pos - this.position] += amount;
+		if (pos < position)
+			throw new RuntimeException("Position already retired: " + pos);
+
+		extendTo(pos + 1);
+		mismatches[pos & mask] += amount;
 	}
-}
\ No newline at end of file
+}
@@ -9,14 +9,18 @@ import java.io.InputStream;
 import java.util.ArrayList;
 import java.util.Iterator;
 import java.util.List;
+import java.util.Map;
 
 import net.sf.cram.ReadWrite.CramHeader;
+import net.sf.cram.ref.ReferenceRegion;
+import net.sf.cram.ref.ReferenceSource;
 import net.sf.cram.structure.Container;
-import net.sf.picard.reference.ReferenceSequence;
 import net.sf.picard.reference.ReferenceSequenceFile;
 import net.sf.picard.util.Log;
+import net.sf.samtools.DefaultSAMRecordFactory;
 import net.sf.samtools.SAMFileHeader.SortOrder;
 import net.sf.samtools.SAMRecord;
+import net.sf.samtools.SAMRecordFactory;
 import net.sf.samtools.SAMRecordIterator;
 import net.sf.samtools.SAMSequenceRecord;
 import net.sf.samtools.util.CloseableIterator;
@@ -29,18 +33,36 @@ public class SAMIterator implements SAMRecordIterator {
 	private ArrayList<SAMRecord> records;
 	private int recordCounter = 0;
 	private SAMRecord nextRecord = null;
-	private ReferenceSequenceFile referenceSequenceFile;
+	private ReferenceSource referenceSource;
 	private boolean restoreNMTag = true;
 	private boolean restoreMDTag = true;
+	private SAMRecordFactory samRecordFactory;
+	private int prevSeqId = -1;
 
 	public SAMIterator(InputStream is,
 			ReferenceSequenceFile referenceSequenceFile) throws IOException {
 		this.is = is;
-		this.referenceSequenceFile = referenceSequenceFile;
+		// files with embedded references decode without one:
+		if (referenceSequenceFile != null)
+			this.referenceSource = new ReferenceSource(referenceSequenceFile);
 		cramHeader = ReadWrite.readCramHeader(is);
 		records = new ArrayList<SAMRecord>(100000);
 	}
 
+	/**
+	 * Records are created lazily as {@link CramSAMRecord}s unless a factory
+	 * other than the default one is given, in which case every field is
+	 * restored upfront.
+	 */
+	public void setSAMRecordFactory(SAMRecordFactory samRecordFactory) {
+		this.samRecordFactory = samRecordFactory;
+	}
+
+	private boolean isLazy() {
+		return samRecordFactory == null
+				|| samRecordFactory instanceof DefaultSAMRecordFactory;
+	}
+
 	public CramHeader getCramHeader() {
 		return cramHeader;
 	}
@@ -59,35 +81,67 @@ public class SAMIterator implements SAMRecordIterator {
 			return;
 		}
 
+		Map<Integer, ReferenceRegion> embedded = BLOCK_PROTO
+				.getEmbeddedReferences(c);
+		if (c.sequenceId != prevSeqId && c.sequenceId >= 0
+				&& referenceSource != null
+				&& !embedded.containsKey(c.sequenceId)) {
+			// load while the container is being decoded:
+			prevSeqId = c.sequenceId;
+			referenceSource.prefetch(cramHeader.samFileHeader
+					.getSequence(prevSeqId));
+			referenceSource.prefetchNext(cramHeader.samFileHeader, prevSeqId);
+		}
+
 		List<CramRecord> cramRecords = null;
 		try {
 			cramRecords = BLOCK_PROTO.getRecords(c.h, c, cramHeader.samFileHeader);
 		} catch (EOFException e) {
 			throw e;
 		}
-		SAMSequenceRecord sequence = cramHeader.samFileHeader
-				.getSequence(c.sequenceId);
-		ReferenceSequence referenceSequence = referenceSequenceFile
-				.getSequence(sequence.getSequenceName());
-		byte[] ref = referenceSequence.getBases();
-
 		long time1 = System.nanoTime();
-		CramNormalizer n = new CramNormalizer(cramHeader.samFileHeader, ref,
+		CramNormalizer n = new CramNormalizer(cramHeader.samFileHeader, null,
 				c.alignmentStart);
-		n.normalize(cramRecords, true);
+		n.restorePositionsAndPairing(cramRecords, true);
+		boolean lazy = isLazy();
 		long time2 = System.nanoTime();
 
 		Cram2BamRecordFactory c2sFactory = new Cram2BamRecordFactory(
-				cramHeader.samFileHeader);
+				cramHeader.samFileHeader, lazy ? null : samRecordFactory);
 
 		long c2sTime = 0;
 
-		for (CramRecord r : cramRecords) {
-			long time = System.nanoTime();
-			SAMRecord s = c2sFactory.create(r);
-			c2sTime += System.nanoTime() - time;
-			Utils.calculateMdAndNmTags(s, ref, restoreMDTag, restoreNMTag) ;
-			records.add(s);
+		// one run of records per reference sequence, lazy records keep the
+		// normalizer holding their reference:
+		for (int from = 0; from < cramRecords.size();) {
+			int to = CramNormalizer.sequenceRunEnd(cramRecords, from);
+			List<CramRecord> run = cramRecords.subList(from, to);
+			CramNormalizer rn = from == 0 ? n : new CramNormalizer(
+					cramHeader.samFileHeader, null, 0);
+			SAMSequenceRecord sequence = cramHeader.samFileHeader
+					.getSequence(run.get(0).sequenceId);
+			rn.fetchReference(run, referenceSource, sequence,
+					embedded.get(run.get(0).sequenceId));
+			if (!lazy)
+				rn.restoreContent(run);
+
+			for (CramRecord r : run) {
+				long time = System.nanoTime();
+				SAMRecord s;
+				if (lazy)
+					s = c2sFactory.createLazy(r, rn, restoreMDTag,
+							restoreNMTag);
+				else {
+					s = c2sFactory.create(r);
+					if (!r.segmentUnmapped)
+						Utils.calculateMdAndNmTags(s, rn.getReference(),
+								rn.getReferenceOffset(), restoreMDTag,
+								restoreNMTag);
+				}
+				c2sTime += System.nanoTime() - time;
+				records.add(s);
+			}
+			from = to;
 		}
 		log.info(String.format(
 				"CONTAINER READ: io %dms, parse %dms, norm %dms, convert %dms",
@@ -114,7 +114,7 @@ public class SCSTest {
 				case M:
 				case X:
 				case EQ:
-					for (int i = readPos; i < ce.getLength(); i++) {
+					for (int i = 0; i < ce.getLength(); i++) {
 						byte readBase = samRecord.getReadBases()[readPos + i];
 						byte refBase = tracks.baseAt(refPos + i);
 						if (readBase != refBase)
@@ -15,10 +15,8 @@
  ******************************************************************************/
 package net.sf.cram;
 
-import java.nio.ByteBuffer;
 import java.util.ArrayList;
 import java.util.Arrays;
-import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
@@ -33,12 +31,14 @@ import net.sf.cram.encoding.read_features.SoftClipVariation;
 import net.sf.cram.encoding.read_features.SubstitutionVariation;
 import net.sf.cram.mask.RefMaskUtils;
 import net.sf.picard.util.Log;
+import net.sf.samtools.BAMRecord;
 import net.sf.samtools.CigarElement;
 import net.sf.samtools.CigarOperator;
 import net.sf.samtools.SAMReadGroupRecord;
 import net.sf.samtools.SAMRecord;
 import net.sf.samtools.SAMRecord.SAMTagAndValue;
 import net.sf.samtools.SAMTag;
+import net.sf.samtools.SAMTagUtil;
 
 public class Sam2CramRecordFactory {
 	private enum TREAT_TYPE {
@@ -55,13 +55,49 @@ public class Sam2CramRecordFactory {
 	public final static byte ignorePositionsWithQualityScore = -1;
 
 	private byte[] refBases;
+	private int refOffset = 0;
 	private byte[] refSNPs;
 	private RefMaskUtils.RefMask refPile;
 
 	public boolean captureUnmappedBases = true;
 	public boolean captureUnmappedScores = false;
 
-	private ByteBuffer insertionBuf = ByteBuffer.allocate(1024);
+	/**
+	 * When set the records and read features are taken from pools owned by
+	 * the factory, they stay valid only until {@link #releaseRecords()} is
+	 * called.
+	 */
+	public boolean reuseRecords = false;
+	private Pool<CramRecord> recordPool = new Pool<CramRecord>() {
+		CramRecord create() {
+			return new CramRecord();
+		}
+	};
+	private Pool<SubstitutionVariation> substitutionPool = new Pool<SubstitutionVariation>() {
+		SubstitutionVariation create() {
+			return new SubstitutionVariation();
+		}
+	};
+	private Pool<DeletionVariation> deletionPool = new Pool<DeletionVariation>() {
+		DeletionVariation create() {
+			return new DeletionVariation();
+		}
+	};
+	private Pool<InsertBase> insertBasePool = new Pool<InsertBase>() {
+		InsertBase create() {
+			return new InsertBase();
+		}
+	};
+	private Pool<SoftClipVariation> softClipPool = new Pool<SoftClipVariation>() {
+		SoftClipVariation create() {
+			return new SoftClipVariation();
+		}
+	};
+	private Pool<BaseQualityScore> scorePool = new Pool<BaseQualityScore>() {
+		BaseQualityScore create() {
+			return new BaseQualityScore(0, (byte) 0);
+		}
+	};
 
 	private static Log log = Log.getInstance(Sam2CramRecordFactory.class);
 
@@ -79,6 +115,8 @@ public class Sam2CramRecordFactory {
 	public boolean preserveReadNames = false;
 	public Set<String> captureTags = new TreeSet<String>();
 	public Set<String> ignoreTags = new TreeSet<String>();
+	private short[] ignoreTagCodes;
+	private short[] captureTagCodes;
 	{
 		ignoreTags.add(SAMTag.NM.name());
 		ignoreTags.add(SAMTag.MD.name());
@@ -104,8 +142,26 @@ public class Sam2CramRecordFactory {
 	public Sam2CramRecordFactory() {
 	}
 
+	/**
+	 * Returns all pooled records and read features to the pools, the records
+	 * created so far must not be used after this.
+	 */
+	public void releaseRecords() {
+		recordPool.release();
+		substitutionPool.release();
+		deletionPool.release();
+		insertBasePool.release();
+		softClipPool.release();
+		scorePool.release();
+	}
+
 	public CramRecord createCramRecord(SAMRecord record) {
-		CramRecord cramRecord = new CramRecord();
+		CramRecord cramRecord;
+		if (reuseRecords) {
+			cramRecord = recordPool.get();
+			cramRecord.reset();
+		} else
+			cramRecord = new CramRecord();
 		if (record.getReadPairedFlag()) {
 			cramRecord.mateAlignmentStart = record.getMateAlignmentStart();
 			cramRecord.mateUmapped = record.getMateUnmappedFlag();
@@ -167,36 +223,8 @@ public class Sam2CramRecordFactory {
 		// cramRecord.getQualityScores()[i] += QS_asciiOffset;
 		landedTotalScores += cramRecord.getReadLength();
 
-		if (captureAllTags) {
-			List<SAMTagAndValue> attributes = record.getAttributes();
-			if (attributes != null && !attributes.isEmpty()) {
-				List<ReadTag> tags = new ArrayList<ReadTag>(attributes.size());
-				for (SAMTagAndValue tv : attributes) {
-					if (ignoreTags.contains(tv.tag))
-						continue;
-
-					ReadTag ra = ReadTag.deriveTypeFromValue(tv.tag, tv.value);
-					tags.add(ra);
-				}
-				cramRecord.tags = tags;
-			}
-		} else {
-			if (!captureTags.isEmpty()) {
-				List<SAMTagAndValue> attributes = record.getAttributes();
-				if (attributes != null && !attributes.isEmpty()) {
-					List<ReadTag> tags = new ArrayList<ReadTag>(
-							attributes.size());
-					for (SAMTagAndValue tv : attributes) {
-						if (captureTags.contains(tv.tag)) {
-							ReadTag ra = ReadTag.deriveTypeFromValue(tv.tag,
-									tv.value);
-							tags.add(ra);
-						}
-					}
-					cramRecord.tags = tags;
-				}
-			}
-		}
+		if (captureAllTags || !captureTags.isEmpty())
+			cramRecord.tags = createTags(record);
 
 		cramRecord.vendorFiltered = record.getReadFailsVendorQualityCheckFlag();
 
@@ -206,6 +234,73 @@ public class Sam2CramRecordFactory {
 		return cramRecord;
 	}
 
+	private List<ReadTag> createTags(SAMRecord record) {
+		if (record instanceof BAMRecord) {
+			byte[] raw = ((BAMRecord) record).getVariableBinaryRepresentation();
+			if (raw != null)
+				return createTagsFromBinary((BAMRecord) record, raw);
+		}
+
+		List<SAMTagAndValue> attributes = record.getAttributes();
+		if (attributes == null || attributes.isEmpty())
+			return null;
+
+		List<ReadTag> tags = new ArrayList<ReadTag>(attributes.size());
+		for (SAMTagAndValue tv : attributes) {
+			if (captureAllTags ? ignoreTags.contains(tv.tag) : !captureTags
+					.contains(tv.tag))
+				continue;
+
+			tags.add(ReadTag.deriveTypeFromValue(tv.tag, tv.value));
+		}
+		return tags;
+	}
+
+	/**
+	 * Copies tag values straight out of the undecoded BAM record data, this
+	 * avoids building attribute objects only to serialise them back into bytes.
+	 */
+	private List<ReadTag> createTagsFromBinary(BAMRecord record, byte[] raw) {
+		if (ignoreTagCodes == null) {
+			ignoreTagCodes = toSortedTagCodes(ignoreTags);
+			captureTagCodes = toSortedTagCodes(captureTags);
+		}
+
+		int readLength = record.getReadLength();
+		int pos = record.getReadNameLength() + 1 + 4
+				* record.getCigarLength() + (readLength + 1) / 2 + readLength;
+		if (pos >= raw.length)
+			return null;
+
+		List<ReadTag> tags = new ArrayList<ReadTag>();
+		while (pos < raw.length) {
+			short code = (short) ((0xFF & raw[pos]) | ((0xFF & raw[pos + 1]) << 8));
+			char type = (char) raw[pos + 2];
+			int valueLength = ReadTag.binaryValueLength(raw, pos + 3, type);
+
+			boolean capture = captureAllTags ? Arrays.binarySearch(
+					ignoreTagCodes, code) < 0 : Arrays.binarySearch(
+					captureTagCodes, code) >= 0;
+			if (capture) {
+				int id = ((0xFF & raw[pos]) << 16) | ((0xFF & raw[pos + 1]) << 8)
+						| (0xFF & type);
+				tags.add(new ReadTag(id, Arrays.copyOfRange(raw, pos + 3, pos
+						+ 3 + valueLength)));
+			}
+			pos += 3 + valueLength;
+		}
+		return tags;
+	}
+
+	private static short[] toSortedTagCodes(Set<String> tags) {
+		short[] codes = new short[tags.size()];
+		int i = 0;
+		for (String tag : tags)
+			codes[i++] = SAMTagUtil.getSingleton().makeBinaryTag(tag);
+		Arrays.sort(codes);
+		return codes;
+	}
+
 	/**
 	 * A wrapper method to provide better diagnostics for
 	 * ArrayIndexOutOfBoundsException.
@@ -228,7 +323,9 @@ public class Sam2CramRecordFactory {
 
 	private List<ReadFeature> createVariations(CramRecord cramRecord,
 			SAMRecord samRecord) {
-		List<ReadFeature> features = new LinkedList<ReadFeature>();
+		List<ReadFeature> features = cramRecord.getReadFeatures();
+		if (features == null || !reuseRecords)
+			features = new ArrayList<ReadFeature>();
 		int zeroBasedPositionInRead = 0;
 		int alignmentStartOffset = 0;
 		int cigarElementLength = 0;
@@ -246,8 +343,11 @@ public class Sam2CramRecordFactory {
 			switch (operator) {
 			case D:
 			case N:
-				features.add(new DeletionVariation(zeroBasedPositionInRead + 1,
-						cigarElementLength));
+				DeletionVariation dv = reuseRecords ? deletionPool.get()
+						: new DeletionVariation();
+				dv.setPosition(zeroBasedPositionInRead + 1);
+				dv.setLength(cigarElementLength);
+				features.add(dv);
 				break;
 			case H:
 				break;
@@ -301,6 +401,16 @@ public class Sam2CramRecordFactory {
 		return features;
 	}
 
+	private BaseQualityScore createScore(int position, byte score) {
+		if (!reuseRecords)
+			return new BaseQualityScore(position, score);
+
+		BaseQualityScore bqs = scorePool.get();
+		bqs.setPosition(position);
+		bqs.setQualityScore(score);
+		return bqs;
+	}
+
 	private void addSoftClip(List<ReadFeature> features,
 			int zeroBasedPositionInRead, int cigarElementLength, byte[] bases,
 			byte[] scores) {
@@ -308,33 +418,32 @@ public class Sam2CramRecordFactory {
 				zeroBasedPositionInRead, zeroBasedPositionInRead
 						+ cigarElementLength);
 
-		SoftClipVariation v = new SoftClipVariation(
-				zeroBasedPositionInRead + 1, insertedBases);
+		SoftClipVariation v = reuseRecords ? softClipPool.get()
+				: new SoftClipVariation();
+		v.setPosition(zeroBasedPositionInRead + 1);
+		v.setSequence(insertedBases);
 		features.add(v);
 	}
 
 	private void addInsertion(List<ReadFeature> features,
 			int zeroBasedPositionInRead, int cigarElementLength, byte[] bases,
 			byte[] scores) {
-		byte[] insertedBases = Arrays.copyOfRange(bases,
-				zeroBasedPositionInRead, zeroBasedPositionInRead
-						+ cigarElementLength);
-
-		for (int i = 0; i < insertedBases.length; i++) {
+		for (int i = 0; i < cigarElementLength; i++) {
 			// single base insertion:
-			InsertBase ib = new InsertBase();
+			InsertBase ib = reuseRecords ? insertBasePool.get()
+					: new InsertBase();
 			ib.setPosition(zeroBasedPositionInRead + 1 + i);
-			ib.setBase(insertedBases[i]);
+			ib.setBase(bases[zeroBasedPositionInRead + i]);
 			features.add(ib);
-			if (losslessQS)
+			if (losslessQS || scores.length == 0)
 				continue;
-			boolean qualityMasked = (scores[i] < uncategorisedQualityScoreCutoff);
+			boolean qualityMasked = (scores[zeroBasedPositionInRead + i] < uncategorisedQualityScoreCutoff);
 			if (captureInsertScores || qualityMasked) {
 				byte score = (byte) (QS_asciiOffset + scores[zeroBasedPositionInRead
 						+ i]);
 				// if (score >= QS_asciiOffset) {
-				features.add(new BaseQualityScore(zeroBasedPositionInRead + 1
-						+ i, score));
+				features.add(createScore(zeroBasedPositionInRead + 1 + i,
+						score));
 				landedTotalScores++;
 				// }
 			}
@@ -356,18 +465,19 @@ public class Sam2CramRecordFactory {
 			oneBasedPositionInRead = i + fromPosInRead + 1;
 			int refCoord = (int) (cramRecord.getAlignmentStart() + i + alignmentStartOffset) - 1;
 			qualityAdded = false;
-			if (refCoord >= refBases.length)
+			if (refCoord - refOffset >= refBases.length)
 				refBase = 'N';
 			else
-				refBase = refBases[refCoord];
+				refBase = refBases[refCoord - refOffset];
 
 			if (bases[i + fromPosInRead] != refBase) {
-				SubstitutionVariation sv = new SubstitutionVariation();
+				SubstitutionVariation sv = reuseRecords ? substitutionPool
+						.get() : new SubstitutionVariation();
 				sv.setPosition(oneBasedPositionInRead);
 				sv.setBase(bases[i + fromPosInRead]);
 				sv.setRefernceBase(refBase);
-				sv.setBaseChange(new BaseChange(sv.getRefernceBase(), sv
-						.getBase()));
+				sv.setBaseChange(BaseChange.valueOf(BaseChange.toInt(refBase,
+						bases[i + fromPosInRead])));
 
 				features.add(sv);
 
@@ -377,8 +487,7 @@ public class Sam2CramRecordFactory {
 				if (captureSubtitutionScores) {
 					byte score = (byte) (QS_asciiOffset + qualityScore[i
 							+ fromPosInRead]);
-					features.add(new BaseQualityScore(oneBasedPositionInRead,
-							score));
+					features.add(createScore(oneBasedPositionInRead, score));
 					qualityAdded = true;
 				}
 			}
@@ -391,8 +500,7 @@ public class Sam2CramRecordFactory {
 				if (snpOrNot != 0) {
 					byte score = (byte) (QS_asciiOffset + qualityScore[i
 							+ fromPosInRead]);
-					features.add(new BaseQualityScore(oneBasedPositionInRead,
-							score));
+					features.add(createScore(oneBasedPositionInRead, score));
 					qualityAdded = true;
 					landedRefMaskScores++;
 				}
@@ -402,8 +510,7 @@ public class Sam2CramRecordFactory {
 				if (refPile.shouldStore(refCoord, refBase)) {
 					byte score = (byte) (QS_asciiOffset + qualityScore[i
 							+ fromPosInRead]);
-					features.add(new BaseQualityScore(oneBasedPositionInRead,
-							score));
+					features.add(createScore(oneBasedPositionInRead, score));
 					qualityAdded = true;
 					landedPiledScores++;
 				}
@@ -413,7 +520,7 @@ public class Sam2CramRecordFactory {
 			if (!qualityAdded && qualityMasked) {
 				byte score = (byte) (QS_asciiOffset + qualityScore[i
 						+ fromPosInRead]);
-				features.add(new BaseQualityScore(oneBasedPositionInRead, score));
+				features.add(createScore(oneBasedPositionInRead, score));
 				qualityAdded = true;
 			}
 
@@ -480,7 +587,17 @@ public class Sam2CramRecordFactory {
 	}
 
 	public void setRefBases(byte[] refBases) {
+		setRefBases(refBases, 0);
+	}
+
+	/**
+	 * @param refBases
+	 *            reference bases, refBases[0] being the base at zero-based
+	 *            position refOffset in the sequence
+	 */
+	public void setRefBases(byte[] refBases, int refOffset) {
 		this.refBases = refBases;
+		this.refOffset = refOffset;
 	}
 
 	public byte[] getRefSNPs() {
@@ -503,4 +620,21 @@ public class Sam2CramRecordFactory {
 		this.refPile = refPile;
 	}
 
+
+	private static abstract class Pool<T> {
+		private List<T> items = new ArrayList<T>();
+		private int used = 0;
+
+		abstract T create();
+
+		T get() {
+			if (used == items.size())
+				items.add(create());
+			return items.get(used++);
+		}
+
+		void release() {
+			used = 0;
+		}
+	}
 }
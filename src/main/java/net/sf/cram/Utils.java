@@ -381,10 +381,20 @@ public class Utils {
 	 */
 	public static void calculateMdAndNmTags(SAMRecord record, byte[] ref,
 			boolean calcMD, boolean calcNM) {
+		calculateMdAndNmTags(record, ref, 0, calcMD, calcNM);
+	}
+
+	/**
+	 * @param ref
+	 *            reference bases, ref[0] being the base at zero-based
+	 *            position refOffset in the sequence
+	 */
+	public static void calculateMdAndNmTags(SAMRecord record, byte[] ref,
+			int refOffset, boolean calcMD, boolean calcNM) {
 		Cigar cigar = record.getCigar();
 		List<CigarElement> cigarElements = cigar.getCigarElements();
 		byte[] seq = record.getReadBases();
-		int start = record.getAlignmentStart() - 1;
+		int start = record.getAlignmentStart() - 1 - refOffset;
 		int i, x, y, u = 0;
 		int nm = 0;
 		StringBuffer str = new StringBuffer();
@@ -9,8 +9,8 @@ import java.util.ArrayList;
 import java.util.List;
 
 import net.sf.cram.ReadWrite.CramHeader;
+import net.sf.cram.ref.ReferenceSource;
 import net.sf.picard.reference.ReferenceSequenceFile;
-import net.sf.picard.reference.ReferenceSequenceFileFactory;
 import net.sf.picard.sam.SamFileValidator;
 import net.sf.picard.util.Log;
 import net.sf.picard.util.Log.LogLevel;
@@ -69,8 +69,8 @@ public class ValidateCramFile {
 
 		Log.setGlobalLogLevel(LogLevel.INFO);
 
-		ReferenceSequenceFile referenceSequenceFile = ReferenceSequenceFileFactory
-				.getReferenceSequenceFile(params.reference);
+		ReferenceSequenceFile referenceSequenceFile = ReferenceSource
+				.openReferenceFile(params.reference);
 
 		FileInputStream fis = new FileInputStream(params.cramFile);
 		BufferedInputStream bis = new BufferedInputStream(fis);
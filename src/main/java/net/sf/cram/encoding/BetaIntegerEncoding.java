@@ -22,6 +22,11 @@ public class BetaIntegerEncoding implements Encoding<Integer> {
 		this.bitLimit = bitLimit;
 	}
 
+	public BetaIntegerEncoding(int offset, int bitLimit) {
+		this.offset = offset;
+		this.bitLimit = bitLimit;
+	}
+
 	@Override
 	public EncodingID id() {
 		return ENCODING_ID;
@@ -6,12 +6,15 @@ import java.io.OutputStream;
 
 import net.sf.cram.io.BitInputStream;
 import net.sf.cram.io.BitOutputStream;
+import net.sf.cram.io.ByteArrayCursor;
 import net.sf.cram.io.ByteBufferUtils;
 
 
 public class ExternalIntegerCodec implements BitCodec<Integer> {
 	private OutputStream os;
 	private InputStream is;
+	// decodes straight from the block when it is one:
+	private ByteArrayCursor cursor;
 	private OutputStream nullOS = new OutputStream() {
 
 		@Override
@@ -30,10 +33,14 @@ public class ExternalIntegerCodec implements BitCodec<Integer> {
 	public ExternalIntegerCodec(OutputStream os, InputStream is) {
 		this.os = os;
 		this.is = is;
+		if (is instanceof ByteArrayCursor)
+			cursor = (ByteArrayCursor) is;
 	}
 
 	@Override
 	public Integer read(BitInputStream bis) throws IOException {
+		if (cursor != null)
+			return cursor.readITF8();
 		return ByteBufferUtils.readUnsignedITF8(is);
 	}
 
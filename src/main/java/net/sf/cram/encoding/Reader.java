@@ -5,6 +5,7 @@ import java.nio.charset.Charset;
 import java.util.ArrayList;
 import java.util.Map;
 
+import net.sf.cram.ColumnarSlice;
 import net.sf.cram.CramRecord;
 import net.sf.cram.DataSeriesType;
 import net.sf.cram.EncodingKey;
@@ -35,6 +36,9 @@ public class Reader {
 	@DataSeries(key = EncodingKey.RL_ReadLength, type = DataSeriesType.INT)
 	public DataReader<Integer> readLengthC;
 
+	@DataSeries(key = EncodingKey.RI_RefId, type = DataSeriesType.INT)
+	public DataReader<Integer> refIdC;
+
 	@DataSeries(key = EncodingKey.AP_AlignmentPositionOffset, type = DataSeriesType.INT)
 	public DataReader<Integer> alStartC;
 
@@ -106,6 +110,9 @@ public class Reader {
 		r.setCompressionFlags(compBitFlagsC.readData());
 
 		r.setReadLength(readLengthC.readData());
+		// absent in files written before multi-reference slices:
+		if (refIdC != null)
+			r.sequenceId = refIdC.readData();
 		r.alignmentStartOffsetFromPreviousRecord = alStartC.readData();
 		r.setReadGroupID(readGroupC.readData());
 
@@ -224,4 +231,119 @@ public class Reader {
 
 		recordCount++;
 	}
+
+	/**
+	 * Reads the next record into the columns, appending it after the last
+	 * one.
+	 */
+	public void read(ColumnarSlice s) throws IOException {
+		int i = s.size;
+		s.ensureRecordCapacity(i + 1);
+
+		s.flags[i] = bitFlagsC.readData();
+		byte compressionFlags = compBitFlagsC.readData();
+		s.compressionFlags[i] = compressionFlags;
+
+		int readLength = readLengthC.readData();
+		s.readLength[i] = readLength;
+		s.sequenceIds[i] = refIdC == null ? s.sequenceId : refIdC.readData();
+		int offset = alStartC.readData();
+		// the first record of each further sequence has an absolute start:
+		if (i == 0)
+			s.alignmentStarts[i] = s.alignmentStart;
+		else if (s.sequenceIds[i] != s.sequenceIds[i - 1])
+			s.alignmentStarts[i] = offset;
+		else
+			s.alignmentStarts[i] = s.alignmentStarts[i - 1] + offset;
+		s.readGroup[i] = readGroupC.readData();
+
+		s.nameOffset[i] = s.namesSize;
+		if (captureReadNames)
+			s.addName(readNameC.readData());
+
+		s.mateFlags[i] = 0;
+		s.recordsToNextFragment[i] = -1;
+		if ((compressionFlags & ColumnarSlice.DETACHED) != 0) {
+			s.mateFlags[i] = mbfc.readData();
+			if (!captureReadNames)
+				s.addName(readNameC.readData());
+
+			s.mateSequenceId[i] = mrc.readData();
+			s.mateAlignmentStart[i] = malsc.readData();
+			s.templateSize[i] = tsc.readData();
+			detachedCount++;
+		} else if ((compressionFlags & ColumnarSlice.MATE_DOWNSTREAM) != 0)
+			s.recordsToNextFragment[i] = distanceC.readData();
+		s.nameOffset[i + 1] = s.namesSize;
+
+		s.tagOffset[i] = s.tagCount;
+		int tagCount = tagCountC.readData();
+		for (int t = 0; t < tagCount; t++) {
+			int id = tagNameAndTypeC.readData();
+			s.addTag(id, tagValueCodecs.get(id).readData());
+		}
+		s.tagOffset[i + 1] = s.tagCount;
+
+		int mark = testC.readData();
+		if (Writer.TEST_MARK != mark) {
+			System.err.println("Record counter=" + recordCount);
+			throw new RuntimeException("Test mark not found.");
+		}
+
+		int baseOffset = s.allocateBases(readLength);
+		s.baseOffset[i] = baseOffset;
+		boolean preserveScores = (compressionFlags & ColumnarSlice.FORCE_PRESERVE_QS) != 0;
+
+		s.featureOffset[i] = s.featureCount;
+		if ((s.flags[i] & ColumnarSlice.SEGMENT_UNMAPPED) == 0) {
+			int size = nfc.readData();
+			int prevPos = 0;
+			for (int f = 0; f < size; f++) {
+				byte operator = fc.readData();
+
+				int pos = prevPos + fp.readData();
+				prevPos = pos;
+
+				switch (operator) {
+				case ReadBase.operator:
+					int index = s.addFeature(operator, pos, bc.readData());
+					s.featureScore[index] = qc.readData();
+					break;
+				case SubstitutionVariation.operator:
+					s.addFeature(operator, pos, bsc.readData());
+					break;
+				case InsertionVariation.operator:
+				case SoftClipVariation.operator:
+					s.addFeatureBytes(operator, pos, inc.readData());
+					break;
+				case DeletionVariation.operator:
+					s.addFeature(operator, pos, dlc.readData());
+					break;
+				case InsertBase.operator:
+					s.addFeature(operator, pos, bc.readData());
+					break;
+				case BaseQualityScore.operator:
+					s.addFeature(operator, pos, qc.readData());
+					break;
+				default:
+					throw new RuntimeException(
+							"Unknown read feature operator: " + operator);
+				}
+			}
+
+			s.mappingQuality[i] = mqc.readData();
+		} else {
+			s.mappingQuality[i] = 0;
+			for (int b = 0; b < readLength; b++)
+				s.bases[baseOffset + b] = bc.readData();
+		}
+		s.featureOffset[i + 1] = s.featureCount;
+
+		if (preserveScores)
+			for (int b = 0; b < readLength; b++)
+				s.scores[baseOffset + b] = qc.readData();
+
+		s.size++;
+		recordCount++;
+	}
 }
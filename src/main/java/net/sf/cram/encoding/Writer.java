@@ -34,6 +34,9 @@ public class Writer {
 	@DataSeries(key = EncodingKey.RL_ReadLength, type = DataSeriesType.INT)
 	public DataWriter<Integer> readLengthC;
 
+	@DataSeries(key = EncodingKey.RI_RefId, type = DataSeriesType.INT)
+	public DataWriter<Integer> refIdC;
+
 	@DataSeries(key = EncodingKey.AP_AlignmentPositionOffset, type = DataSeriesType.INT)
 	public DataWriter<Integer> alStartC;
 
@@ -105,6 +108,7 @@ public class Writer {
 		compBitFlagsC.writeData(r.getCompressionFlags()) ;
 		
 		readLengthC.writeData(r.getReadLength());
+		refIdC.writeData(r.sequenceId);
 		alStartC.writeData(r.alignmentStartOffsetFromPreviousRecord);
 		readGroupC.writeData(r.getReadGroupID());
 
@@ -6,6 +6,19 @@ import java.io.Serializable;
 public class BaseChange implements Serializable{
 	private int change;
 
+	private static final BaseChange[] changes = new BaseChange[] {
+			new BaseChange(0), new BaseChange(1), new BaseChange(2),
+			new BaseChange(3) };
+
+	/**
+	 * Returns a shared instance for the base change code.
+	 */
+	public static BaseChange valueOf(int change) {
+		if (change >= 0 && change < changes.length)
+			return changes[change];
+		return new BaseChange(change);
+	}
+
 	public BaseChange(int change) {
 		this.change = change;
 	}
@@ -0,0 +1,149 @@
+/*******************************************************************************
+ * Copyright 2012 EMBL-EBI, Hinxton outstation
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ ******************************************************************************/
+package net.sf.cram.io;
+
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * A buffered output stream that writes full buffers to the underlying stream
+ * on a background thread. Two buffers are used in turns: one is filled while
+ * the other is being written, so compression and I/O overlap and the
+ * underlying stream only sees large writes. Errors of the background writes
+ * are thrown by the next call.
+ */
+public class AsyncBufferedOutputStream extends FilterOutputStream {
+	public static final int DEFAULT_BUFFER_SIZE = 4 * 1024 * 1024;
+
+	private byte[] buf;
+	private byte[] spare;
+	private int count = 0;
+	private long written = 0;
+
+	private final ExecutorService executor;
+	private Future<Void> pending;
+
+	public AsyncBufferedOutputStream(OutputStream out) {
+		this(out, DEFAULT_BUFFER_SIZE);
+	}
+
+	public AsyncBufferedOutputStream(OutputStream out, int bufferSize) {
+		super(out);
+		buf = new byte[bufferSize];
+		spare = new byte[bufferSize];
+		executor = Executors.newSingleThreadExecutor(new ThreadFactory() {
+
+			@Override
+			public Thread newThread(Runnable r) {
+				Thread thread = new Thread(r, "async-output");
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+	}
+
+	/**
+	 * @return the number of bytes written to this stream so far
+	 */
+	public long getBytesWritten() {
+		return written + count;
+	}
+
+	@Override
+	public void write(int b) throws IOException {
+		if (count == buf.length)
+			handOff();
+		buf[count++] = (byte) b;
+	}
+
+	@Override
+	public void write(byte[] b, int off, int len) throws IOException {
+		while (len > 0) {
+			if (count == buf.length)
+				handOff();
+			int chunk = Math.min(len, buf.length - count);
+			System.arraycopy(b, off, buf, count, chunk);
+			count += chunk;
+			off += chunk;
+			len -= chunk;
+		}
+	}
+
+	/**
+	 * Waits for the previous write, then passes the filled buffer to the
+	 * background thread and carries on with the spare one.
+	 */
+	private void handOff() throws IOException {
+		await();
+		if (count == 0)
+			return;
+
+		final byte[] full = buf;
+		final int length = count;
+		pending = executor.submit(new Callable<Void>() {
+
+			@Override
+			public Void call() throws IOException {
+				out.write(full, 0, length);
+				return null;
+			}
+		});
+		written += count;
+		buf = spare;
+		spare = full;
+		count = 0;
+	}
+
+	private void await() throws IOException {
+		if (pending == null)
+			return;
+		try {
+			pending.get();
+		} catch (InterruptedException e) {
+			throw new IOException("Interrupted while writing.", e);
+		} catch (ExecutionException e) {
+			if (e.getCause() instanceof IOException)
+				throw (IOException) e.getCause();
+			throw new RuntimeException(e.getCause());
+		} finally {
+			pending = null;
+		}
+	}
+
+	@Override
+	public void flush() throws IOException {
+		handOff();
+		await();
+		out.flush();
+	}
+
+	@Override
+	public void close() throws IOException {
+		try {
+			flush();
+		} finally {
+			executor.shutdown();
+			out.close();
+		}
+	}
+}
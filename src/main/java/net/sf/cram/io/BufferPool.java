@@ -0,0 +1,115 @@
+/*******************************************************************************
+ * Copyright 2012 EMBL-EBI, Hinxton outstation
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ ******************************************************************************/
+package net.sf.cram.io;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Byte arrays for encoding containers, reused from one container to the
+ * next. Every thread has its own pool, so arrays must be returned on the
+ * thread that took them. Arrays are kept by key, usually the content id of
+ * the blocks they hold. Streams are sized from the arrays last returned
+ * under the same key: the expected size is the largest size returned
+ * recently, which decays by an eighth with every return so that a single
+ * large block does not inflate the pool for good.
+ */
+public class BufferPool {
+	public static final int CORE = -1;
+	public static final int COMPRESSED = -2;
+	public static final int COMPRESSION_HEADER = -3;
+	public static final int ENCODING_MAP = -4;
+
+	private static final int MIN_SIZE = 1024;
+	private static final int MAX_FREE = 64;
+
+	private static final ThreadLocal<BufferPool> pools = new ThreadLocal<BufferPool>() {
+		@Override
+		protected BufferPool initialValue() {
+			return new BufferPool();
+		}
+	};
+
+	private final Map<Integer, List<byte[]>> free = new HashMap<Integer, List<byte[]>>();
+	private final Map<Integer, Integer> expected = new HashMap<Integer, Integer>();
+
+	/**
+	 * @return the pool of the current thread
+	 */
+	public static BufferPool get() {
+		return pools.get();
+	}
+
+	/**
+	 * @return an array of at least minSize bytes
+	 */
+	public byte[] getArray(int key, int minSize) {
+		return take(key, Math.max(MIN_SIZE, minSize));
+	}
+
+	/**
+	 * @return an empty stream writing into a pooled array of the expected
+	 *         size for the key plus some headroom, the array grows as usual
+	 *         if it turns out too small
+	 */
+	public ExposedByteArrayOutputStream getStream(int key) {
+		Integer size = expected.get(key);
+		int wanted = size == null ? MIN_SIZE : Math.max(MIN_SIZE, size
+				+ size / 8);
+		return new ExposedByteArrayOutputStream(take(key, wanted));
+	}
+
+	/**
+	 * @return the smallest free array of the key with at least size bytes,
+	 *         or a new one
+	 */
+	private byte[] take(int key, int size) {
+		List<byte[]> list = free.get(key);
+		if (list != null) {
+			int best = -1;
+			for (int i = 0; i < list.size(); i++)
+				if (list.get(i).length >= size
+						&& (best < 0 || list.get(i).length < list.get(best).length))
+					best = i;
+			if (best >= 0)
+				return list.remove(best);
+		}
+		return new byte[size];
+	}
+
+	/**
+	 * Returns an array, which must not be used afterwards.
+	 * 
+	 * @param size
+	 *            the number of bytes used in the array, sizing the following
+	 *            arrays of the key
+	 */
+	public void release(int key, byte[] array, int size) {
+		Integer previous = expected.get(key);
+		expected.put(key, previous == null ? size : Math.max(size, previous
+				- previous / 8));
+
+		List<byte[]> list = free.get(key);
+		if (list == null) {
+			list = new ArrayList<byte[]>();
+			free.put(key, list);
+		}
+		if (list.size() < MAX_FREE)
+			list.add(array);
+	}
+}
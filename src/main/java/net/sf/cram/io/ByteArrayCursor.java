@@ -0,0 +1,248 @@
+/*******************************************************************************
+ * Copyright 2012 EMBL-EBI, Hinxton outstation
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ ******************************************************************************/
+package net.sf.cram.io;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+
+/**
+ * Reads ITF8 and LTF8 integers straight from a byte array, as well as plain
+ * bytes as an input stream, so codecs sharing an external block share the
+ * position too. The one and two byte forms, by far the most common ones, are
+ * decoded without going through the general case.
+ * <p>
+ * The static write methods encode into arrays and heap byte buffers the
+ * same way {@link ByteBufferUtils} does.
+ */
+public class ByteArrayCursor extends InputStream {
+	private final byte[] data;
+	private int position;
+	private final int limit;
+
+	public ByteArrayCursor(byte[] data) {
+		this(data, 0, data.length);
+	}
+
+	public ByteArrayCursor(byte[] data, int offset, int length) {
+		this.data = data;
+		this.position = offset;
+		this.limit = offset + length;
+	}
+
+	/**
+	 * @return a cursor over the remaining bytes of a heap buffer, the
+	 *         buffer's position is not moved
+	 */
+	public static ByteArrayCursor wrap(ByteBuffer buf) {
+		return new ByteArrayCursor(buf.array(), buf.arrayOffset()
+				+ buf.position(), buf.remaining());
+	}
+
+	public int getPosition() {
+		return position;
+	}
+
+	private void require(int bytes) throws EOFException {
+		if (position + bytes > limit)
+			throw new EOFException();
+	}
+
+	public int readITF8() throws EOFException {
+		require(1);
+		int b1 = data[position] & 0xFF;
+		if (b1 < 0x80) {
+			position++;
+			return b1;
+		}
+		if (b1 < 0xC0) {
+			require(2);
+			int value = (b1 & 0x3F) << 8 | data[position + 1] & 0xFF;
+			position += 2;
+			return value;
+		}
+		return readLongITF8(b1);
+	}
+
+	private int readLongITF8(int b1) throws EOFException {
+		if (b1 < 0xE0) {
+			require(3);
+			int value = (b1 & 0x1F) << 16 | (data[position + 1] & 0xFF) << 8
+					| data[position + 2] & 0xFF;
+			position += 3;
+			return value;
+		}
+		if (b1 < 0xF0) {
+			require(4);
+			int value = (b1 & 0x0F) << 24 | (data[position + 1] & 0xFF) << 16
+					| (data[position + 2] & 0xFF) << 8 | data[position + 3]
+					& 0xFF;
+			position += 4;
+			return value;
+		}
+		require(5);
+		int value = (b1 & 0x0F) << 28 | (data[position + 1] & 0xFF) << 20
+				| (data[position + 2] & 0xFF) << 12
+				| (data[position + 3] & 0xFF) << 4 | data[position + 4] & 0x0F;
+		position += 5;
+		return value;
+	}
+
+	/**
+	 * Decodes count ITF8 integers into the array from offset on.
+	 */
+	public void readITF8(int[] values, int offset, int count)
+			throws EOFException {
+		for (int i = offset; i < offset + count; i++) {
+			// single byte values while there are surely enough bytes:
+			if (position < limit && data[position] >= 0)
+				values[i] = data[position++];
+			else
+				values[i] = readITF8();
+		}
+	}
+
+	/**
+	 * LTF8 keeps the ITF8 scheme for up to 9 bytes: the number of leading
+	 * ones in the first byte tells the number of bytes that follow.
+	 */
+	public long readLTF8() throws EOFException {
+		require(1);
+		int b1 = data[position] & 0xFF;
+		int extra = Math.min(8, Integer.numberOfLeadingZeros(~b1 << 24));
+		if (extra == 0) {
+			position++;
+			return b1;
+		}
+		require(1 + extra);
+		// extra 8 has no value bits in the first byte:
+		long value = extra < 8 ? b1 & (0xFF >>> (extra + 1)) : 0;
+		for (int i = 1; i <= extra; i++)
+			value = value << 8 | data[position + i] & 0xFF;
+		position += 1 + extra;
+		return value;
+	}
+
+	/**
+	 * @return a cursor over the next length bytes, which this one skips
+	 */
+	public ByteArrayCursor slice(int length) throws EOFException {
+		require(length);
+		ByteArrayCursor slice = new ByteArrayCursor(data, position, length);
+		position += length;
+		return slice;
+	}
+
+	@Override
+	public int read() {
+		if (position >= limit)
+			return -1;
+		return data[position++] & 0xFF;
+	}
+
+	@Override
+	public int read(byte[] b, int off, int len) {
+		if (len == 0)
+			return 0;
+		if (position >= limit)
+			return -1;
+		len = Math.min(len, limit - position);
+		System.arraycopy(data, position, b, off, len);
+		position += len;
+		return len;
+	}
+
+	@Override
+	public long skip(long n) {
+		int skipped = (int) Math.max(0, Math.min(n, limit - position));
+		position += skipped;
+		return skipped;
+	}
+
+	@Override
+	public int available() {
+		return limit - position;
+	}
+
+	/**
+	 * @return the position after the value, at most 5 bytes are written
+	 */
+	public static int writeITF8(int value, byte[] data, int pos) {
+		if ((value >>> 7) == 0) {
+			data[pos] = (byte) value;
+			return pos + 1;
+		}
+		if ((value >>> 14) == 0) {
+			data[pos] = (byte) (value >> 8 | 0x80);
+			data[pos + 1] = (byte) value;
+			return pos + 2;
+		}
+		if ((value >>> 21) == 0) {
+			data[pos] = (byte) (value >> 16 | 0xC0);
+			data[pos + 1] = (byte) (value >> 8);
+			data[pos + 2] = (byte) value;
+			return pos + 3;
+		}
+		if ((value >>> 28) == 0) {
+			data[pos] = (byte) (value >> 24 | 0xE0);
+			data[pos + 1] = (byte) (value >> 16);
+			data[pos + 2] = (byte) (value >> 8);
+			data[pos + 3] = (byte) value;
+			return pos + 4;
+		}
+		data[pos] = (byte) (value >>> 28 | 0xF0);
+		data[pos + 1] = (byte) (value >> 20);
+		data[pos + 2] = (byte) (value >> 12);
+		data[pos + 3] = (byte) (value >> 4);
+		// only the lower 4 bits are read back:
+		data[pos + 4] = (byte) value;
+		return pos + 5;
+	}
+
+	/**
+	 * @return the position after the value, at most 9 bytes are written
+	 */
+	public static int writeLTF8(long value, byte[] data, int pos) {
+		// bytes following the first one:
+		int extra = 0;
+		while (extra < 8 && (value >>> (7 * (extra + 1))) != 0)
+			extra++;
+		if (extra == 8) {
+			data[pos++] = (byte) 0xFF;
+			for (int shift = 56; shift >= 0; shift -= 8)
+				data[pos++] = (byte) (value >>> shift);
+			return pos;
+		}
+
+		data[pos++] = (byte) (0xFF00 >>> extra | value >>> (8 * extra));
+		for (int shift = 8 * (extra - 1); shift >= 0; shift -= 8)
+			data[pos++] = (byte) (value >>> shift);
+		return pos;
+	}
+
+	public static void writeITF8(int value, ByteBuffer buf) {
+		buf.position(writeITF8(value, buf.array(), buf.arrayOffset()
+				+ buf.position())
+				- buf.arrayOffset());
+	}
+
+	public static void writeLTF8(long value, ByteBuffer buf) {
+		buf.position(writeLTF8(value, buf.array(), buf.arrayOffset()
+				+ buf.position())
+				- buf.arrayOffset());
+	}
+}
@@ -12,6 +12,15 @@ public class ExposedByteArrayOutputStream extends ByteArrayOutputStream {
 		super(size);
 	}
 
+	/**
+	 * Writes into the given array from its start, a larger one replaces it
+	 * when it fills up.
+	 */
+	public ExposedByteArrayOutputStream(byte[] buf) {
+		super(0);
+		this.buf = buf;
+	}
+
 	public byte[] getBuffer() {
 		return buf;
 	}
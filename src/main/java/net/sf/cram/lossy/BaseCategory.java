@@ -28,6 +28,10 @@ public class BaseCategory {
 	public static BaseCategory lower_than_coverage(int coverage) {
 		return new BaseCategory(BaseCategoryType.LOWER_COVERAGE, coverage);
 	};
+
+	public static BaseCategory known_variant() {
+		return new BaseCategory(BaseCategoryType.KNOWN_VARIANT, -1);
+	}
 	
 	@Override
 	public String toString() {
@@ -2,7 +2,7 @@ package net.sf.cram.lossy;
 
 public enum BaseCategoryType {
 	MATCH('R'), MISMATCH('N'), FLANKING_DELETION('D'), PILEUP('P'), LOWER_COVERAGE(
-			'X');
+			'X'), KNOWN_VARIANT('V');
 
 	public char code;
 
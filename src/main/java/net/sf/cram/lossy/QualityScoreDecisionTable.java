@@ -0,0 +1,457 @@
+package net.sf.cram.lossy;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import net.sf.cram.ReferenceTracks;
+import net.sf.samtools.CigarElement;
+import net.sf.samtools.CigarOperator;
+import net.sf.samtools.SAMRecord;
+
+/**
+ * A list of preservation policies compiled into lookup tables. Every
+ * combination of read and base categories is evaluated once up front: reads
+ * are keyed by mapping quality bucket and placement, bases by match/mismatch,
+ * deletion flank, known variant site, coverage bucket and pileup bucket. Each
+ * cell of the table points to a decision holding a 256-entry table of
+ * resulting scores, so treating a base is a couple of array loads.
+ * <p>
+ * Policies are applied in list order with later policies overriding earlier
+ * ones, as QualityScorePreservation sorts them. Instances keep scratch
+ * buffers and must not be shared between threads.
+ */
+public class QualityScoreDecisionTable {
+	/**
+	 * Quality scores must be stored for the whole read.
+	 */
+	public static final int FORCE_PRESERVE = 1;
+	/**
+	 * A read level drop policy applies, the read bases should be discarded.
+	 * Unless {@link #FORCE_PRESERVE} is also set the quality scores should not
+	 * be forced.
+	 */
+	public static final int DROP_BASES = 2;
+
+	private static final int NONE = 0, MATCH = 1, MISMATCH = 2;
+
+	private final PreservationPolicy[] policies;
+	// policies with base categories:
+	private int baseLevelMask = 0;
+
+	private final boolean usesMatch;
+	private final boolean usesFlank;
+	private final boolean usesVariant;
+	private final Buckets coverage;
+	private final Buckets pileup;
+
+	private final int[] mapqBucket = new int[256];
+	private final int[] readMask;
+	private final int baseKeys;
+
+	// read key * baseKeys + base key -> decision:
+	private final int[] table;
+	private final byte[][] scoreTables;
+	private final int[] decisionMask;
+
+	private byte[] matches = new byte[0];
+	private boolean[] flanks = new boolean[0];
+	private boolean[] variants = new boolean[0];
+	private int[] counts;
+
+	public QualityScoreDecisionTable(List<PreservationPolicy> policyList) {
+		if (policyList.size() > 31)
+			throw new RuntimeException("Too many preservation policies: "
+					+ policyList.size());
+
+		policies = policyList.toArray(new PreservationPolicy[policyList
+				.size()]);
+
+		boolean match = false, flank = false, variant = false;
+		int coverageCategories = 0, pileupCategories = 0;
+		for (int i = 0; i < policies.length; i++) {
+			if (!isBaseLevel(policies[i]))
+				continue;
+			baseLevelMask |= 1 << i;
+			for (BaseCategory c : policies[i].baseCategories) {
+				switch (c.type) {
+				case MATCH:
+				case MISMATCH:
+					match = true;
+					break;
+				case FLANKING_DELETION:
+					flank = true;
+					break;
+				case KNOWN_VARIANT:
+					variant = true;
+					break;
+				case LOWER_COVERAGE:
+					coverageCategories++;
+					break;
+				case PILEUP:
+					pileupCategories++;
+					break;
+				default:
+					break;
+				}
+			}
+		}
+		usesMatch = match;
+		usesFlank = flank;
+		usesVariant = variant;
+
+		BaseCategory[] coverageList = new BaseCategory[coverageCategories];
+		BaseCategory[] pileupList = new BaseCategory[pileupCategories];
+		coverageCategories = pileupCategories = 0;
+		for (PreservationPolicy p : policies)
+			for (BaseCategory c : p.baseCategories) {
+				if (c.type == BaseCategoryType.LOWER_COVERAGE)
+					coverageList[coverageCategories++] = c;
+				else if (c.type == BaseCategoryType.PILEUP)
+					pileupList[pileupCategories++] = c;
+			}
+		coverage = new Buckets(coverageList);
+		pileup = new Buckets(pileupList);
+
+		// mapping quality buckets, each with the policies it satisfies:
+		Map<Integer, Integer> mapqMasks = new HashMap<Integer, Integer>();
+		int unplacedMask = 0;
+		for (int i = 0; i < policies.length; i++)
+			if (policies[i].readCategory != null
+					&& policies[i].readCategory.type == ReadCategoryType.UNPLACED)
+				unplacedMask |= 1 << i;
+		int[] bucketMasks = new int[256];
+		for (int mapq = 0; mapq < 256; mapq++) {
+			int mask = 0;
+			for (int i = 0; i < policies.length; i++)
+				if (appliesToMappingQuality(policies[i].readCategory, mapq))
+					mask |= 1 << i;
+			Integer bucket = mapqMasks.get(mask);
+			if (bucket == null) {
+				bucket = mapqMasks.size();
+				mapqMasks.put(mask, bucket);
+				bucketMasks[bucket] = mask;
+			}
+			mapqBucket[mapq] = bucket;
+		}
+
+		readMask = new int[mapqMasks.size() * 2];
+		for (int q = 0; q < mapqMasks.size(); q++) {
+			readMask[q * 2] = bucketMasks[q];
+			readMask[q * 2 + 1] = bucketMasks[q] | unplacedMask;
+		}
+
+		baseKeys = 3 * 2 * 2 * coverage.size() * pileup.size();
+		table = new int[readMask.length * baseKeys];
+		Map<Integer, Integer> decisions = new HashMap<Integer, Integer>();
+		for (int readKey = 0; readKey < readMask.length; readKey++) {
+			for (int baseKey = 0; baseKey < baseKeys; baseKey++) {
+				int mask = evaluate(readMask[readKey], baseKey);
+				Integer decision = decisions.get(mask);
+				if (decision == null) {
+					decision = decisions.size();
+					decisions.put(mask, decision);
+				}
+				table[readKey * baseKeys + baseKey] = decision;
+			}
+		}
+
+		scoreTables = new byte[decisions.size()][];
+		decisionMask = new int[decisions.size()];
+		for (Map.Entry<Integer, Integer> e : decisions.entrySet()) {
+			decisionMask[e.getValue()] = e.getKey();
+			scoreTables[e.getValue()] = buildScoreTable(e.getKey());
+		}
+		counts = new int[decisions.size()];
+	}
+
+	private static boolean isBaseLevel(PreservationPolicy p) {
+		return p.baseCategories != null && !p.baseCategories.isEmpty();
+	}
+
+	private static boolean appliesToMappingQuality(ReadCategory c, int mapq) {
+		if (c == null)
+			return true;
+		switch (c.type) {
+		case LOWER_MAPPING_SCORE:
+			return mapq < c.param;
+		case HIGHER_MAPPING_SCORE:
+			return mapq > c.param;
+		case UNPLACED:
+			return false;
+
+		default:
+			throw new RuntimeException("Unknown read category: "
+					+ c.type.name());
+		}
+	}
+
+	/**
+	 * @return the policies setting the score of a base with the given key
+	 *         in a read satisfying the read categories of applicable
+	 */
+	private int evaluate(int applicable, int baseKey) {
+		int p = baseKey % pileup.size();
+		baseKey /= pileup.size();
+		int c = baseKey % coverage.size();
+		baseKey /= coverage.size();
+		boolean variant = baseKey % 2 == 1;
+		boolean flank = baseKey / 2 % 2 == 1;
+		int match = baseKey / 4;
+
+		int mask = 0;
+		for (int i = 0; i < policies.length; i++) {
+			if ((applicable & 1 << i) == 0)
+				continue;
+
+			PreservationPolicy policy = policies[i];
+			if (!isBaseLevel(policy)) {
+				// a read level drop leaves the scores alone:
+				if (policy.treatment.type != QualityScoreTreatmentType.DROP)
+					mask |= 1 << i;
+				continue;
+			}
+
+			for (BaseCategory category : policy.baseCategories) {
+				boolean applies;
+				switch (category.type) {
+				case MATCH:
+					applies = match == MATCH;
+					break;
+				case MISMATCH:
+					applies = match == MISMATCH;
+					break;
+				case FLANKING_DELETION:
+					applies = flank;
+					break;
+				case KNOWN_VARIANT:
+					applies = variant;
+					break;
+				case LOWER_COVERAGE:
+					applies = coverage.satisfies(c, category);
+					break;
+				case PILEUP:
+					applies = pileup.satisfies(p, category);
+					break;
+
+				default:
+					throw new RuntimeException("Unknown base category: "
+							+ category.type.name());
+				}
+				if (applies) {
+					mask |= 1 << i;
+					break;
+				}
+			}
+		}
+		return mask;
+	}
+
+	/**
+	 * The last policy in the mask decides the score.
+	 */
+	private byte[] buildScoreTable(int mask) {
+		byte[] scores = new byte[256];
+		if (mask == 0) {
+			Arrays.fill(scores, (byte) -1);
+			return scores;
+		}
+
+		QualityScoreTreatment treatment = policies[31 - Integer
+				.numberOfLeadingZeros(mask)].treatment;
+		byte[] binning = Binning.Illumina_binning_matrix;
+		for (int q = 0; q < 256; q++) {
+			switch (treatment.type) {
+			case PRESERVE:
+				scores[q] = (byte) q;
+				break;
+			case BIN:
+				scores[q] = binning[Math.min(q, binning.length - 1)];
+				break;
+			case DROP:
+				scores[q] = -1;
+				break;
+
+			default:
+				throw new RuntimeException(
+						"Unknown quality score treatment type: "
+								+ treatment.type.name());
+			}
+		}
+		return scores;
+	}
+
+	/**
+	 * Computes the quality scores to be kept for a read.
+	 *
+	 * @param t
+	 *            reference tracks of the read, null for unplaced reads
+	 * @param scores
+	 *            receives the kept score for each base of the read or -1 if
+	 *            none of the policies keeps it, may be longer than the read
+	 * @return a combination of {@link #FORCE_PRESERVE} and
+	 *         {@link #DROP_BASES}
+	 */
+	public int apply(SAMRecord s, ReferenceTracks t, byte[] scores) {
+		byte[] qs = s.getBaseQualities();
+		int length = s.getReadLength();
+
+		int readKey = mapqBucket[s.getMappingQuality() & 0xFF] * 2
+				+ (s.getReadUnmappedFlag() ? 1 : 0);
+		int applicable = readMask[readKey];
+
+		Arrays.fill(counts, 0);
+		if ((applicable & baseLevelMask) == 0) {
+			int decision = table[readKey * baseKeys];
+			byte[] scoreTable = scoreTables[decision];
+			for (int i = 0; i < length; i++)
+				scores[i] = scoreTable[qs[i] & 0xFF];
+		} else {
+			if (usesMatch || usesFlank || usesVariant)
+				scanCigar(s, t, length);
+
+			int alStart = s.getAlignmentStart();
+			int offset = readKey * baseKeys;
+			for (int i = 0; i < length; i++) {
+				int key = usesMatch ? matches[i] : NONE;
+				key = key * 2 + (usesFlank && flanks[i] ? 1 : 0);
+				key = key * 2 + (usesVariant && variants[i] ? 1 : 0);
+				key = key * coverage.size()
+						+ (coverage.size() > 1 ? coverage.bucket(t == null ? 0
+								: t.coverageAt(alStart + i)) : 0);
+				key = key * pileup.size()
+						+ (pileup.size() > 1 ? pileup.bucket(t == null ? 0
+								: t.mismatchesAt(alStart + i)) : 0);
+
+				int decision = table[offset + key];
+				scores[i] = scoreTables[decision][qs[i] & 0xFF];
+				counts[decision]++;
+			}
+		}
+
+		// read level treatments and the safety latch, in policy order:
+		int flags = 0;
+		for (int i = 0; i < policies.length; i++) {
+			if ((applicable & 1 << i) == 0)
+				continue;
+
+			if ((baseLevelMask & 1 << i) != 0) {
+				// store all qs if there are too many individual scores:
+				int masked = 0;
+				for (int d = 0; d < counts.length; d++)
+					if ((decisionMask[d] & 1 << i) != 0)
+						masked += counts[d];
+				if (masked > s.getReadLength() / 2)
+					flags |= FORCE_PRESERVE;
+			} else if (policies[i].treatment.type == QualityScoreTreatmentType.DROP)
+				flags = DROP_BASES;
+			else
+				flags |= FORCE_PRESERVE;
+		}
+		return flags;
+	}
+
+	private void scanCigar(SAMRecord s, ReferenceTracks t, int length) {
+		if (matches.length < length) {
+			matches = new byte[length];
+			flanks = new boolean[length];
+			variants = new boolean[length];
+		}
+		Arrays.fill(matches, 0, length, (byte) NONE);
+		Arrays.fill(flanks, 0, length, false);
+		Arrays.fill(variants, 0, length, false);
+		// unplaced reads have no alignment:
+		if (t == null)
+			return;
+
+		byte[] bases = s.getReadBases();
+		int pos = 0;
+		int refPos = s.getAlignmentStart();
+		for (CigarElement ce : s.getCigar().getCigarElements()) {
+			CigarOperator op = ce.getOperator();
+			switch (op) {
+			case M:
+			case X:
+			case EQ:
+				if (usesMatch)
+					for (int i = 0; i < ce.getLength(); i++)
+						matches[pos + i] = (byte) (bases[pos + i] == t
+								.baseAt(refPos + i) ? MATCH : MISMATCH);
+				if (usesVariant)
+					for (int i = 0; i < ce.getLength(); i++)
+						variants[pos + i] = t.isKnownVariant(refPos + i);
+				break;
+			case D:
+				if (usesFlank) {
+					if (pos < length)
+						flanks[pos] = true;
+					if (pos + 1 < length)
+						flanks[pos + 1] = true;
+				}
+				break;
+
+			default:
+				break;
+			}
+
+			pos += op.consumesReadBases() ? ce.getLength() : 0;
+			refPos += op.consumesReferenceBases() ? ce.getLength() : 0;
+		}
+	}
+
+	/**
+	 * Splits counts into ranges over which all threshold categories of one
+	 * kind give the same answer.
+	 */
+	private static class Buckets {
+		private final BaseCategory[] categories;
+		private final int[] lut;
+		// bit k set if categories[k] is satisfied in the bucket:
+		private final int[] masks;
+
+		Buckets(BaseCategory[] categories) {
+			this.categories = categories;
+			int limit = 0;
+			for (BaseCategory c : categories)
+				limit = Math.max(limit, c.param + 1);
+
+			lut = new int[limit + 1];
+			int[] bucketMasks = new int[limit + 1];
+			int size = 0;
+			for (int v = 0; v <= limit; v++) {
+				int mask = 0;
+				for (int k = 0; k < categories.length; k++)
+					if (test(categories[k], v))
+						mask |= 1 << k;
+				if (v == 0 || mask != bucketMasks[size - 1])
+					bucketMasks[size++] = mask;
+				lut[v] = size - 1;
+			}
+			masks = Arrays.copyOf(bucketMasks, size);
+		}
+
+		private static boolean test(BaseCategory c, int value) {
+			if (c.type == BaseCategoryType.LOWER_COVERAGE)
+				return value < c.param;
+			return value > c.param;
+		}
+
+		int size() {
+			return masks.length;
+		}
+
+		int bucket(int value) {
+			if (value < 0)
+				value = 0;
+			return lut[Math.min(value, lut.length - 1)];
+		}
+
+		boolean satisfies(int bucket, BaseCategory c) {
+			for (int k = 0; k < categories.length; k++)
+				if (categories[k] == c)
+					return (masks[bucket] & 1 << k) != 0;
+			return false;
+		}
+	}
+}
@@ -1,7 +1,6 @@
 package net.sf.cram.lossy;
 
 import java.util.ArrayList;
-import java.util.Arrays;
 import java.util.Collections;
 import java.util.Comparator;
 import java.util.LinkedList;
@@ -11,17 +10,23 @@ import net.sf.cram.CramRecord;
 import net.sf.cram.ReferenceTracks;
 import net.sf.cram.encoding.read_features.BaseQualityScore;
 import net.sf.cram.encoding.read_features.ReadFeature;
-import net.sf.samtools.CigarElement;
-import net.sf.samtools.CigarOperator;
 import net.sf.samtools.SAMRecord;
 
 public class QualityScorePreservation {
 	private String specification;
 	private List<PreservationPolicy> policyList;
+	private QualityScoreDecisionTable decisionTable;
 
 	public QualityScorePreservation(String specification) {
 		this.specification = specification;
 		policyList = new ArrayList<PreservationPolicy>();
+		addPolicies(specification);
+	}
+
+	/**
+	 * Adds the policies of another specification to this one.
+	 */
+	public void addPolicies(String specification) {
 		for (String s : specification.split("-")) {
 			if (s.length() == 0)
 				continue;
@@ -44,6 +49,8 @@ public class QualityScorePreservation {
 				return 0;
 			}
 		});
+
+		decisionTable = new QualityScoreDecisionTable(policyList);
 	}
 
 	private static final int readParam(LinkedList<Character> list) {
@@ -108,6 +115,10 @@ public class QualityScorePreservation {
 				p.baseCategories.add(BaseCategory.flanking_deletion());
 				p.treatment = readTreament(list);
 				break;
+			case 'V':
+				p.baseCategories.add(BaseCategory.known_variant());
+				p.treatment = readTreament(list);
+				break;
 			case 'M':
 				int score = readParam(list);
 				p.readCategory = ReadCategory.higher_than_mapping_score(score);
@@ -188,30 +199,34 @@ public class QualityScorePreservation {
 	// });
 	// }
 
-	private static final void applyBinning(byte[] scores) {
-		for (int i = 0; i < scores.length; i++)
-			scores[i] = Binning.Illumina_binning_matrix[scores[i]];
+	public List<PreservationPolicy> getPolicyList() {
+		return policyList;
 	}
 
-	private static final byte applyTreatment(byte score, QualityScoreTreatment t) {
-		switch (t.type) {
-		case BIN:
-			return (byte) (Binning.Illumina_binning_matrix[score]);
-		case DROP:
-			return -1;
-		case PRESERVE:
-			return score;
-
-		}
-		throw new RuntimeException("Unknown quality score treatment type: "
-				+ t.type.name());
+	public boolean hasBaseCategory(BaseCategoryType type) {
+		for (PreservationPolicy p : policyList)
+			for (BaseCategory c : p.baseCategories)
+				if (c.type == type)
+					return true;
+		return false;
 	}
 
 	public void addQualityScores(SAMRecord s, CramRecord r, ReferenceTracks t) {
 		byte[] scores = new byte[s.getReadLength()];
-		Arrays.fill(scores, (byte) -1);
-		for (PreservationPolicy p : policyList)
-			addQS(s, r, scores, t, p);
+		int flags = decisionTable.apply(s, t, scores);
+		if (r.segmentUnmapped) {
+			// unplaced reads have no read features and carry their own
+			// bases, scores are stored in full if any is kept:
+			for (int i = 0; i < scores.length
+					&& !r.forcePreserveQualityScores; i++)
+				if (scores[i] > -1)
+					r.forcePreserveQualityScores = true;
+		} else if ((flags & QualityScoreDecisionTable.DROP_BASES) != 0) {
+			r.setReadBases(null);
+			r.forcePreserveQualityScores = false;
+		}
+		if ((flags & QualityScoreDecisionTable.FORCE_PRESERVE) != 0)
+			r.forcePreserveQualityScores = true;
 
 		if (!r.forcePreserveQualityScores) {
 			for (int i = 0; i < scores.length; i++) {
@@ -233,140 +248,4 @@ public class QualityScorePreservation {
 			return o1.getPosition() - o2.getPosition();
 		}
 	};
-
-	private static final void addQS(SAMRecord s, CramRecord r, byte[] scores,
-			ReferenceTracks t, PreservationPolicy p) {
-		int alSpan = s.getAlignmentEnd() - s.getAlignmentStart();
-		t.ensureRange(s.getAlignmentStart(), alSpan);
-		byte[] qs = s.getBaseQualities();
-
-		// check if read is falling into the read category:
-		if (p.readCategory != null) {
-			boolean properRead = false;
-			switch (p.readCategory.type) {
-			case UNPLACED:
-				properRead = s.getReadUnmappedFlag();
-				break;
-			case LOWER_MAPPING_SCORE:
-				properRead = s.getMappingQuality() < p.readCategory.param;
-				break;
-			case HIGHER_MAPPING_SCORE:
-				properRead = s.getMappingQuality() > p.readCategory.param;
-				break;
-
-			default:
-				throw new RuntimeException("Unknown read category: "
-						+ p.readCategory.type.name());
-			}
-
-			if (!properRead) // nothing to do here:
-				return;
-		}
-
-		// apply treamtent if there is no per-base policy:
-		if (p.baseCategories == null || p.baseCategories.isEmpty()) {
-			switch (p.treatment.type) {
-			case BIN:
-				if (r.getQualityScores() == null)
-					r.setQualityScores(s.getBaseQualities());
-				System.arraycopy(s.getBaseQualities(), 0, scores, 0,
-						scores.length);
-				applyBinning(scores);
-				r.forcePreserveQualityScores = true;
-				break;
-			case PRESERVE:
-				System.arraycopy(s.getBaseQualities(), 0, scores, 0,
-						scores.length);
-				r.forcePreserveQualityScores = true;
-				break;
-			case DROP:
-				r.setReadBases(null);
-				r.forcePreserveQualityScores = false;
-				break;
-
-			default:
-				throw new RuntimeException(
-						"Unknown quality score treatment type: "
-								+ p.treatment.type.name());
-			}
-
-			// nothing else to do here:
-			return;
-		}
-
-		// here we go, scan all bases to check if the policy applies:
-		boolean[] mask = new boolean[qs.length];
-		int alStart = s.getAlignmentStart();
-
-		for (BaseCategory c : p.baseCategories) {
-			int pos;
-			int refPos;
-			switch (c.type) {
-			case FLANKING_DELETION:
-				pos = 0;
-				for (CigarElement ce : s.getCigar().getCigarElements()) {
-					if (ce.getOperator() == CigarOperator.D) {
-						// if (pos > 0)
-						mask[pos] = true;
-						if (pos + 1 < mask.length)
-							mask[pos + 1] = true;
-					}
-
-					pos += ce.getOperator().consumesReadBases() ? ce
-							.getLength() : 0;
-				}
-				break;
-			case MATCH:
-			case MISMATCH:
-				pos = 0;
-				refPos = s.getAlignmentStart();
-				for (CigarElement ce : s.getCigar().getCigarElements()) {
-					switch (ce.getOperator()) {
-					case M:
-					case X:
-					case EQ:
-						for (int i = 0; i < ce.getLength(); i++) {
-							boolean match = s.getReadBases()[pos + i] == t
-									.baseAt(refPos + i);
-							if ((c.type == BaseCategoryType.MATCH && match)
-									|| (c.type == BaseCategoryType.MISMATCH && !match)) {
-								mask[pos + i] = true;
-							}
-						}
-						break;
-					}
-
-					pos += ce.getOperator().consumesReadBases() ? ce
-							.getLength() : 0;
-					refPos += ce.getOperator().consumesReferenceBases() ? ce
-							.getLength() : 0;
-				}
-				break;
-			case LOWER_COVERAGE:
-				for (int i = 0; i < qs.length; i++)
-					if (t.coverageAt(alStart + i) < c.param)
-						mask[i] = true;
-				break;
-			case PILEUP:
-				for (int i = 0; i < qs.length; i++)
-					if (t.mismatchesAt(alStart + i) > c.param)
-						mask[i] = true;
-				break;
-
-			default:
-				break;
-			}
-
-			int maskedCount = 0;
-			for (int i = 0; i < mask.length; i++)
-				if (mask[i]) {
-					scores[i] = applyTreatment(qs[i], p.treatment);
-					maskedCount++;
-				}
-			// safety latch, store all qs if there are too many individual score
-			// to store:
-			if (maskedCount > s.getReadLength() / 2)
-				r.forcePreserveQualityScores = true;
-		}
-	}
 }
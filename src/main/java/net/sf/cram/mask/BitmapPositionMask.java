@@ -0,0 +1,415 @@
+/*******************************************************************************
+ * Copyright 2012 EMBL-EBI, Hinxton outstation
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ ******************************************************************************/
+package net.sf.cram.mask;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * A position mask stored as a compressed bitmap. Positions are split by their
+ * upper 16 bits into containers; a container with up to 4096 positions keeps
+ * them as a sorted array of their lower 16 bits, a fuller one as a 65536 bit
+ * bitmap. The mask lives in a single buffer in its serialized form, so a
+ * memory-mapped file is used as is.
+ * <p>
+ * Layout: magic, container count, then key, cardinality and data offset for
+ * every container, followed by the container data. All ints are big endian.
+ */
+public class BitmapPositionMask implements PositionMask {
+	private static final int MAGIC = ('P' << 24) | ('M' << 16) | ('B' << 8)
+			| '1';
+	private static final int ARRAY_LIMIT = 4096;
+	private static final int BITMAP_BYTES = 8192;
+	private static final int HEADER_SIZE = 8;
+	private static final int ENTRY_SIZE = 12;
+
+	private final ByteBuffer buf;
+	private final int[] keys;
+	private final int[] cardinalities;
+	private final int[] offsets;
+	// masked positions in the containers before each one:
+	private final int[] ranks;
+	// container index by key, -1 if absent:
+	private final int[] keyIndex;
+	private final int count;
+
+	private BitmapPositionMask(ByteBuffer buf) {
+		this.buf = buf;
+		if (buf.limit() < HEADER_SIZE || buf.getInt(0) != MAGIC)
+			throw new RuntimeException("Not a bitmap position mask.");
+
+		int containers = buf.getInt(4);
+		keys = new int[containers];
+		cardinalities = new int[containers];
+		offsets = new int[containers];
+		ranks = new int[containers];
+		int total = 0;
+		for (int i = 0; i < containers; i++) {
+			int entry = HEADER_SIZE + i * ENTRY_SIZE;
+			keys[i] = buf.getInt(entry);
+			cardinalities[i] = buf.getInt(entry + 4);
+			offsets[i] = buf.getInt(entry + 8);
+			ranks[i] = total;
+			total += cardinalities[i];
+		}
+		count = total;
+
+		keyIndex = new int[containers == 0 ? 0 : keys[containers - 1] + 1];
+		Arrays.fill(keyIndex, -1);
+		for (int i = 0; i < containers; i++)
+			keyIndex[keys[i]] = i;
+	}
+
+	public static BitmapPositionMask wrap(ByteBuffer buf) {
+		return new BitmapPositionMask(buf);
+	}
+
+	/**
+	 * Maps a mask file written with {@link #write(File)} into memory.
+	 */
+	public static BitmapPositionMask read(File file) throws IOException {
+		RandomAccessFile raf = new RandomAccessFile(file, "r");
+		try {
+			FileChannel channel = raf.getChannel();
+			return new BitmapPositionMask(channel.map(MapMode.READ_ONLY, 0,
+					channel.size()));
+		} finally {
+			raf.close();
+		}
+	}
+
+	public static BitmapPositionMask fromArray(int[] positions) {
+		Builder builder = new Builder();
+		for (int pos : positions)
+			builder.add(pos);
+		return builder.build();
+	}
+
+	public void write(File file) throws IOException {
+		FileOutputStream fos = new FileOutputStream(file);
+		try {
+			writeTo(fos);
+		} finally {
+			fos.close();
+		}
+	}
+
+	public void writeTo(OutputStream os) throws IOException {
+		ByteBuffer data = buf.duplicate();
+		data.clear();
+		byte[] chunk = new byte[64 * 1024];
+		while (data.hasRemaining()) {
+			int len = Math.min(chunk.length, data.remaining());
+			data.get(chunk, 0, len);
+			os.write(chunk, 0, len);
+		}
+	}
+
+	private boolean isBitmap(int container) {
+		return cardinalities[container] > ARRAY_LIMIT;
+	}
+
+	private int arrayValue(int container, int index) {
+		return buf.getChar(offsets[container] + 2 * index);
+	}
+
+	/**
+	 * @return index of low in the array container, or -(insertion point) - 1
+	 */
+	private int arraySearch(int container, int low) {
+		int from = 0;
+		int to = cardinalities[container] - 1;
+		while (from <= to) {
+			int mid = (from + to) >>> 1;
+			int value = arrayValue(container, mid);
+			if (value < low)
+				from = mid + 1;
+			else if (value > low)
+				to = mid - 1;
+			else
+				return mid;
+		}
+		return -(from + 1);
+	}
+
+	private long word(int container, int index) {
+		return buf.getLong(offsets[container] + 8 * index);
+	}
+
+	private int container(int position) {
+		int key = position >>> 16;
+		return key < keyIndex.length ? keyIndex[key] : -1;
+	}
+
+	@Override
+	public boolean isMasked(int position) {
+		if (position < 0)
+			return false;
+		int c = container(position);
+		if (c < 0)
+			return false;
+
+		int low = position & 0xFFFF;
+		if (isBitmap(c))
+			return (word(c, low >>> 6) >>> (low & 63) & 1) != 0;
+		return arraySearch(c, low) >= 0;
+	}
+
+	/**
+	 * @return the number of masked positions up to and including position
+	 */
+	public int rank(int position) {
+		if (position < 0)
+			return 0;
+		int key = position >>> 16;
+		int c = Arrays.binarySearch(keys, key);
+		if (c < 0) {
+			int next = -c - 1;
+			return next < keys.length ? ranks[next] : count;
+		}
+
+		int low = position & 0xFFFF;
+		int rank = ranks[c];
+		if (isBitmap(c)) {
+			int lastWord = low >>> 6;
+			for (int w = 0; w < lastWord; w++)
+				rank += Long.bitCount(word(c, w));
+			long bits = word(c, lastWord);
+			int shift = 63 - (low & 63);
+			rank += Long.bitCount(bits << shift);
+		} else {
+			int index = arraySearch(c, low);
+			rank += index >= 0 ? index + 1 : -index - 1;
+		}
+		return rank;
+	}
+
+	/**
+	 * @return the masked position with the given zero-based rank
+	 */
+	public int select(int rank) {
+		if (rank < 0 || rank >= count)
+			throw new IndexOutOfBoundsException("Rank out of range: " + rank);
+
+		int c = Arrays.binarySearch(ranks, rank);
+		if (c < 0)
+			c = -c - 2;
+		// skip empty containers sharing the rank:
+		while (c + 1 < ranks.length && ranks[c + 1] <= rank)
+			c++;
+
+		int remaining = rank - ranks[c];
+		int high = keys[c] << 16;
+		if (!isBitmap(c))
+			return high | arrayValue(c, remaining);
+
+		for (int w = 0;; w++) {
+			long bits = word(c, w);
+			int bitCount = Long.bitCount(bits);
+			if (remaining < bitCount) {
+				for (int i = 0; i < remaining; i++)
+					bits &= bits - 1;
+				return high | (w << 6) | Long.numberOfTrailingZeros(bits);
+			}
+			remaining -= bitCount;
+		}
+	}
+
+	/**
+	 * @return the first masked position not less than position, -1 if none
+	 */
+	public int nextMasked(int position) {
+		if (position < 0)
+			position = 0;
+		int c = Arrays.binarySearch(keys, position >>> 16);
+		int low = position & 0xFFFF;
+		if (c < 0) {
+			c = -c - 1;
+			low = 0;
+		}
+
+		for (; c < keys.length; c++, low = 0) {
+			int high = keys[c] << 16;
+			if (isBitmap(c)) {
+				int w = low >>> 6;
+				long bits = word(c, w) & (-1L << (low & 63));
+				while (true) {
+					if (bits != 0)
+						return high | (w << 6)
+								| Long.numberOfTrailingZeros(bits);
+					if (++w == BITMAP_BYTES / 8)
+						break;
+					bits = word(c, w);
+				}
+			} else {
+				int index = arraySearch(c, low);
+				if (index < 0)
+					index = -index - 1;
+				if (index < cardinalities[c])
+					return high | arrayValue(c, index);
+			}
+		}
+		return -1;
+	}
+
+	/**
+	 * Materializes all masked positions, prefer {@link #nextMasked(int)} for
+	 * large masks.
+	 */
+	@Override
+	public int[] getMaskedPositions() {
+		int[] positions = new int[count];
+		int i = 0;
+		for (int pos = nextMasked(0); pos >= 0 && i < count; pos = nextMasked(pos + 1))
+			positions[i++] = pos;
+		return positions;
+	}
+
+	@Override
+	public boolean isEmpty() {
+		return count == 0;
+	}
+
+	@Override
+	public int getMaskedCount() {
+		return count;
+	}
+
+	@Override
+	public int getMinMaskedPosition() {
+		return count == 0 ? -1 : select(0);
+	}
+
+	@Override
+	public int getMaxMaskedPosition() {
+		return count == 0 ? -1 : select(count - 1);
+	}
+
+	@Override
+	public byte[] toByteArrayUsing(byte mask, byte nonMask) {
+		byte[] ba = new byte[Math.max(0, getMaxMaskedPosition())];
+		Arrays.fill(ba, nonMask);
+		for (int pos = nextMasked(1); pos >= 0; pos = nextMasked(pos + 1))
+			ba[pos - 1] = mask;
+		return ba;
+	}
+
+	/**
+	 * Collects positions in any order, sorted input is the fast path.
+	 */
+	public static class Builder {
+		private Map<Integer, ContainerBuilder> containers = new TreeMap<Integer, ContainerBuilder>();
+		private int lastKey = -1;
+		private ContainerBuilder last;
+
+		public void add(int position) {
+			if (position < 0)
+				throw new IllegalArgumentException("Negative position: "
+						+ position);
+
+			int key = position >>> 16;
+			if (key != lastKey) {
+				last = containers.get(key);
+				if (last == null) {
+					last = new ContainerBuilder();
+					containers.put(key, last);
+				}
+				lastKey = key;
+			}
+			last.add((char) position);
+		}
+
+		public BitmapPositionMask build() {
+			int size = HEADER_SIZE + containers.size() * ENTRY_SIZE;
+			for (ContainerBuilder c : containers.values())
+				size += c.bits != null ? BITMAP_BYTES : 2 * c.size;
+
+			ByteBuffer buf = ByteBuffer.allocate(size);
+			buf.putInt(MAGIC);
+			buf.putInt(containers.size());
+			int offset = HEADER_SIZE + containers.size() * ENTRY_SIZE;
+			for (Map.Entry<Integer, ContainerBuilder> e : containers
+					.entrySet()) {
+				ContainerBuilder c = e.getValue();
+				buf.putInt(e.getKey());
+				buf.putInt(c.size);
+				buf.putInt(offset);
+				offset += c.bits != null ? BITMAP_BYTES : 2 * c.size;
+			}
+			for (ContainerBuilder c : containers.values()) {
+				if (c.bits != null)
+					for (long word : c.bits)
+						buf.putLong(word);
+				else
+					for (int i = 0; i < c.size; i++)
+						buf.putChar(c.values[i]);
+			}
+			buf.flip();
+			return new BitmapPositionMask(buf);
+		}
+	}
+
+	private static class ContainerBuilder {
+		private char[] values = new char[4];
+		private long[] bits;
+		private int size = 0;
+
+		void add(char low) {
+			if (bits != null) {
+				long bit = 1L << (low & 63);
+				if ((bits[low >>> 6] & bit) == 0) {
+					bits[low >>> 6] |= bit;
+					size++;
+				}
+				return;
+			}
+
+			int index = size;
+			if (size > 0 && values[size - 1] >= low) {
+				index = Arrays.binarySearch(values, 0, size, low);
+				if (index >= 0)
+					return;
+				index = -index - 1;
+			}
+
+			if (size == ARRAY_LIMIT) {
+				bits = new long[BITMAP_BYTES / 8];
+				for (int i = 0; i < size; i++)
+					bits[values[i] >>> 6] |= 1L << (values[i] & 63);
+				values = null;
+				size = ARRAY_LIMIT;
+				add(low);
+				return;
+			}
+
+			if (size == values.length)
+				values = Arrays.copyOf(values, Math.min(ARRAY_LIMIT,
+						size * 2));
+			System.arraycopy(values, index, values, index + 1, size - index);
+			values[index] = low;
+			size++;
+		}
+	}
+}
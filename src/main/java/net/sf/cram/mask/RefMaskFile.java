@@ -0,0 +1,250 @@
+/*******************************************************************************
+ * Copyright 2012 EMBL-EBI, Hinxton outstation
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ ******************************************************************************/
+package net.sf.cram.mask;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ShortBuffer;
+import java.nio.channels.FileChannel.MapMode;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Reference masks kept on disk and memory-mapped when used. For every
+ * sequence the file may hold a mask of known variant sites, stored as a
+ * {@link BitmapPositionMask}, and pile counters with 4 bits per base as
+ * defined by {@link RefMaskUtils}. Nothing is copied to the heap, queries read
+ * the mapped pages.
+ * <p>
+ * Layout: magic, the data of all sequences, a directory with name, length,
+ * mask offset and size and pile offset for every sequence (offset -1 when
+ * absent), and the offset of the directory as the last 8 bytes.
+ */
+public class RefMaskFile {
+	private static final int MAGIC = ('C' << 24) | ('R' << 16) | ('M' << 8)
+			| '1';
+
+	private final File file;
+	private final Map<String, Entry> entries = new HashMap<String, Entry>();
+
+	private static class Entry {
+		int length;
+		long maskOffset;
+		int maskSize;
+		long pileOffset;
+	}
+
+	public RefMaskFile(File file) throws IOException {
+		this.file = file;
+
+		RandomAccessFile raf = new RandomAccessFile(file, "r");
+		try {
+			if (raf.length() < 12 || raf.readInt() != MAGIC)
+				throw new RuntimeException("Not a reference mask file: "
+						+ file.getAbsolutePath());
+
+			raf.seek(raf.length() - 8);
+			long directoryOffset = raf.readLong();
+			byte[] directory = new byte[(int) (raf.length() - 8 - directoryOffset)];
+			raf.seek(directoryOffset);
+			raf.readFully(directory);
+
+			DataInputStream dis = new DataInputStream(new ByteArrayInputStream(
+					directory));
+			int count = dis.readInt();
+			for (int i = 0; i < count; i++) {
+				String name = dis.readUTF();
+				Entry e = new Entry();
+				e.length = dis.readInt();
+				e.maskOffset = dis.readLong();
+				e.maskSize = dis.readInt();
+				e.pileOffset = dis.readLong();
+				entries.put(name, e);
+			}
+		} finally {
+			raf.close();
+		}
+	}
+
+	public static boolean isRefMaskFile(File file) {
+		if (!file.isFile() || file.length() < 12)
+			return false;
+		try {
+			RandomAccessFile raf = new RandomAccessFile(file, "r");
+			try {
+				return raf.readInt() == MAGIC;
+			} finally {
+				raf.close();
+			}
+		} catch (IOException e) {
+			return false;
+		}
+	}
+
+	private ByteBuffer map(long offset, long size) throws IOException {
+		RandomAccessFile raf = new RandomAccessFile(file, "r");
+		try {
+			return raf.getChannel().map(MapMode.READ_ONLY, offset, size);
+		} finally {
+			raf.close();
+		}
+	}
+
+	/**
+	 * @return the known variant sites of the sequence, 1-based, or null
+	 */
+	public PositionMask getVariantMask(String sequenceName) throws IOException {
+		Entry e = entries.get(sequenceName);
+		if (e == null || e.maskOffset < 0)
+			return null;
+		return BitmapPositionMask.wrap(map(e.maskOffset, e.maskSize));
+	}
+
+	/**
+	 * @return read-only pile counters of the sequence, 0-based, or null
+	 */
+	public RefMaskUtils.RefMask getPile(String sequenceName, int minHits)
+			throws IOException {
+		Entry e = entries.get(sequenceName);
+		if (e == null || e.pileOffset < 0)
+			return null;
+		return new MappedRefMask(map(e.pileOffset, 2L * e.length)
+				.asShortBuffer(), minHits);
+	}
+
+	private static class MappedRefMask extends RefMaskUtils.RefMask {
+		private final ShortBuffer counters;
+
+		MappedRefMask(ShortBuffer counters, int minHits) {
+			super(minHits);
+			this.counters = counters;
+		}
+
+		@Override
+		public int length() {
+			return counters.limit();
+		}
+
+		@Override
+		public short getCounters(int pos) {
+			return counters.get(pos);
+		}
+
+		@Override
+		protected void setCounters(int pos, short value) {
+			throw new UnsupportedOperationException(
+					"Mapped reference masks are read-only.");
+		}
+	}
+
+	/**
+	 * Writes sequences one after another, each sequence is added once.
+	 */
+	public static class Writer implements Closeable {
+		private final CountingOutputStream cos;
+		private final DataOutputStream dos;
+		private final List<String> names = new ArrayList<String>();
+		private final List<Entry> written = new ArrayList<Entry>();
+
+		public Writer(File file) throws IOException {
+			cos = new CountingOutputStream(new BufferedOutputStream(
+					new FileOutputStream(file)));
+			dos = new DataOutputStream(cos);
+			dos.writeInt(MAGIC);
+		}
+
+		/**
+		 * @param variants
+		 *            known variant sites, may be null
+		 * @param pile
+		 *            counters for length positions, may be null
+		 */
+		public void addSequence(String name, int length, PositionMask variants,
+				RefMaskUtils.RefMask pile) throws IOException {
+			Entry e = new Entry();
+			e.length = length;
+			e.maskOffset = -1;
+			e.pileOffset = -1;
+
+			if (variants != null) {
+				BitmapPositionMask mask = variants instanceof BitmapPositionMask ? (BitmapPositionMask) variants
+						: BitmapPositionMask.fromArray(variants
+								.getMaskedPositions());
+				e.maskOffset = cos.count;
+				mask.writeTo(dos);
+				e.maskSize = (int) (cos.count - e.maskOffset);
+			}
+
+			if (pile != null) {
+				e.pileOffset = cos.count;
+				for (int pos = 0; pos < length; pos++)
+					dos.writeShort(pos < pile.length() ? pile.getCounters(pos)
+							: 0);
+			}
+
+			names.add(name);
+			written.add(e);
+		}
+
+		@Override
+		public void close() throws IOException {
+			long directoryOffset = cos.count;
+			dos.writeInt(names.size());
+			for (int i = 0; i < names.size(); i++) {
+				Entry e = written.get(i);
+				dos.writeUTF(names.get(i));
+				dos.writeInt(e.length);
+				dos.writeLong(e.maskOffset);
+				dos.writeInt(e.maskSize);
+				dos.writeLong(e.pileOffset);
+			}
+			dos.writeLong(directoryOffset);
+			dos.close();
+		}
+	}
+
+	private static class CountingOutputStream extends FilterOutputStream {
+		long count = 0;
+
+		CountingOutputStream(OutputStream out) {
+			super(out);
+		}
+
+		@Override
+		public void write(int b) throws IOException {
+			out.write(b);
+			count++;
+		}
+
+		@Override
+		public void write(byte[] b, int off, int len) throws IOException {
+			out.write(b, off, len);
+			count += len;
+		}
+	}
+}
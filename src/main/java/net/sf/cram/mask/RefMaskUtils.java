@@ -161,6 +161,10 @@ public class RefMaskUtils {
 		return false;
 	}
 
+	/**
+	 * Per position counters of read bases, 4 bits per base. Subclasses may
+	 * keep the counters elsewhere, for example in a mapped file.
+	 */
 	public static class RefMask {
 		private short[] mask;
 		private int minHits;
@@ -172,26 +176,41 @@ public class RefMaskUtils {
 			this.minHits = minHits;
 		}
 
+		protected RefMask(int minHits) {
+			this.minHits = minHits;
+		}
+
+		public int length() {
+			return mask.length;
+		}
+
+		public short getCounters(int pos) {
+			return mask[pos];
+		}
+
+		protected void setCounters(int pos, short counters) {
+			mask[pos] = counters;
+		}
+
 		public void addReadBase(int pos, byte readBase, byte refBase) {
-			mask[pos] = RefMaskUtils.addReadBase(mask[pos], readBase, refBase);
+			setCounters(pos, RefMaskUtils.addReadBase(getCounters(pos),
+					readBase, refBase));
 		}
 
 		public boolean shouldStore(int pos, byte refBase) {
-			short maskAtPos = mask[pos];
+			if (pos < 0 || pos >= length())
+				return false;
+			short maskAtPos = getCounters(pos);
 			if (maskAtPos == 0)
 				return false;
 
 			if (minCoverageEstimate(maskAtPos) > 10)
 				return false;
-			int[] counts = new int[3];
-			int i = 0;
 			for (byte base : bases) {
 				if (base == refBase)
 					continue;
-				counts[i] = getBaseCount(maskAtPos, base);
-				if (counts[i] >= minHits)
+				if (getBaseCount(maskAtPos, base) >= minHits)
 					return true;
-				i++;
 			}
 
 			return false;
@@ -0,0 +1,212 @@
+/*******************************************************************************
+ * Copyright 2012 EMBL-EBI, Hinxton outstation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ ******************************************************************************/
+package net.sf.cram.ref;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Scanner;
+
+import net.sf.picard.reference.ReferenceSequence;
+import net.sf.samtools.SAMSequenceDictionary;
+import net.sf.samtools.SAMSequenceRecord;
+
+/**
+ * A FASTA file indexed with a .fai file and memory-mapped per sequence. Any
+ * region of a sequence can be read without loading the rest of it, line
+ * breaks are skipped and bases are upper-cased while copying.
+ */
+public class MappedFastaSequenceFile implements RandomAccessReference {
+	private final File file;
+	private final FileChannel channel;
+	private final List<Entry> entries = new ArrayList<Entry>();
+	private final Map<String, Entry> entryMap = new HashMap<String, Entry>();
+	private final SAMSequenceDictionary dictionary;
+	private int nextIndex = 0;
+
+	private static class Entry {
+		String name;
+		int index;
+		int length;
+		long offset;
+		int lineBases;
+		int lineWidth;
+		MappedByteBuffer buffer;
+	}
+
+	public MappedFastaSequenceFile(File file) throws IOException {
+		this(file, new File(file.getAbsolutePath() + ".fai"));
+	}
+
+	public MappedFastaSequenceFile(File file, File indexFile)
+			throws IOException {
+		this.file = file;
+		readIndex(indexFile);
+
+		List<SAMSequenceRecord> records = new ArrayList<SAMSequenceRecord>();
+		for (Entry e : entries)
+			records.add(new SAMSequenceRecord(e.name, e.length));
+		dictionary = new SAMSequenceDictionary(records);
+
+		channel = new RandomAccessFile(file, "r").getChannel();
+	}
+
+	public static boolean canOpen(File file) {
+		return file.isFile()
+				&& new File(file.getAbsolutePath() + ".fai").isFile();
+	}
+
+	private void readIndex(File indexFile) throws IOException {
+		Scanner scanner = new Scanner(new FileInputStream(indexFile));
+		try {
+			while (scanner.hasNextLine()) {
+				String line = scanner.nextLine();
+				if (line.length() == 0)
+					continue;
+				String[] words = line.split("\t");
+				if (words.length < 5)
+					throw new RuntimeException("Malformed fasta index line: "
+							+ line);
+
+				Entry e = new Entry();
+				e.name = words[0];
+				e.index = entries.size();
+				e.length = Integer.parseInt(words[1]);
+				e.offset = Long.parseLong(words[2]);
+				e.lineBases = Integer.parseInt(words[3]);
+				e.lineWidth = Integer.parseInt(words[4]);
+				entries.add(e);
+				entryMap.put(e.name, e);
+			}
+		} finally {
+			scanner.close();
+		}
+	}
+
+	private Entry getEntry(String name) {
+		Entry e = entryMap.get(name);
+		if (e == null)
+			throw new RuntimeException("Sequence not found in " + file + ": "
+					+ name);
+		return e;
+	}
+
+	private synchronized MappedByteBuffer getBuffer(Entry e) {
+		if (e.buffer == null) {
+			long size = (long) (e.length / e.lineBases) * e.lineWidth
+					+ e.length % e.lineBases;
+			try {
+				// a full last line may have no line break at the end of file:
+				size = Math.min(size, channel.size() - e.offset);
+				e.buffer = channel.map(MapMode.READ_ONLY, e.offset, size);
+			} catch (IOException x) {
+				throw new RuntimeException(x);
+			}
+		}
+		return e.buffer;
+	}
+
+	@Override
+	public void getBases(String name, int start, byte[] dest, int destOffset,
+			int length) {
+		Entry e = getEntry(name);
+		if (start < 0 || start + length > e.length)
+			throw new IllegalArgumentException(String.format(
+					"Region %d-%d is outside of sequence %s of length %d",
+					start, start + length, name, e.length));
+
+		// a private view so that concurrent readers don't share a position:
+		ByteBuffer buffer = getBuffer(e).duplicate();
+		int pos = start;
+		int end = start + length;
+		int to = destOffset;
+		while (pos < end) {
+			int column = pos % e.lineBases;
+			int count = Math.min(e.lineBases - column, end - pos);
+			buffer.position((pos / e.lineBases) * e.lineWidth + column);
+			buffer.get(dest, to, count);
+			pos += count;
+			to += count;
+		}
+
+		for (int i = destOffset; i < to; i++)
+			if (dest[i] >= 'a' && dest[i] <= 'z')
+				dest[i] -= 'a' - 'A';
+	}
+
+	@Override
+	public void load(String name) {
+		getBuffer(getEntry(name)).load();
+	}
+
+	@Override
+	public int getSequenceLength(String name) {
+		return getEntry(name).length;
+	}
+
+	@Override
+	public SAMSequenceDictionary getSequenceDictionary() {
+		return dictionary;
+	}
+
+	@Override
+	public ReferenceSequence nextSequence() {
+		if (nextIndex >= entries.size())
+			return null;
+		return getSequence(entries.get(nextIndex++).name);
+	}
+
+	@Override
+	public void reset() {
+		nextIndex = 0;
+	}
+
+	@Override
+	public boolean isIndexed() {
+		return true;
+	}
+
+	@Override
+	public ReferenceSequence getSequence(String contig) {
+		Entry e = getEntry(contig);
+		byte[] bases = new byte[e.length];
+		getBases(contig, 0, bases, 0, e.length);
+		return new ReferenceSequence(contig, e.index, bases);
+	}
+
+	@Override
+	public ReferenceSequence getSubsequenceAt(String contig, long start,
+			long stop) {
+		Entry e = getEntry(contig);
+		byte[] bases = new byte[(int) (stop - start + 1)];
+		getBases(contig, (int) start - 1, bases, 0, bases.length);
+		return new ReferenceSequence(contig, e.index, bases);
+	}
+
+	@Override
+	public String toString() {
+		return file.getAbsolutePath();
+	}
+}
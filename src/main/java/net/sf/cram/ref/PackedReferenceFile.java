@@ -0,0 +1,401 @@
+/*******************************************************************************
+ * Copyright 2012 EMBL-EBI, Hinxton outstation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ ******************************************************************************/
+package net.sf.cram.ref;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import net.sf.picard.reference.ReferenceSequence;
+import net.sf.samtools.SAMSequenceDictionary;
+import net.sf.samtools.SAMSequenceRecord;
+
+/**
+ * A reference stored with 2 bits per base. Bases other than A, C, G and T are
+ * kept as a sorted list of runs, each a start, a length and the base. The
+ * file is memory-mapped so that processes reading the same reference share
+ * its pages.
+ * 
+ * Layout: magic, sequence count, then per sequence its name, length, offset
+ * of the packed bases and offset and count of the runs. Packed bases hold 4
+ * bases per byte, the first base in the highest bits.
+ */
+public class PackedReferenceFile implements RandomAccessReference {
+	private static final byte[] MAGIC = "CRP1".getBytes();
+	private static final byte[] CODES = "ACGT".getBytes();
+	private static final int RUN_SIZE = 4 + 4 + 1;
+	private static final int CHUNK_SIZE = 1 << 20;
+
+	// 4 decoded bases for every byte value:
+	private static final byte[] DECODE = new byte[256 * 4];
+	static {
+		for (int b = 0; b < 256; b++)
+			for (int i = 0; i < 4; i++)
+				DECODE[b * 4 + i] = CODES[(b >> (6 - 2 * i)) & 3];
+	}
+
+	private final File file;
+	private final FileChannel channel;
+	private final List<Entry> entries = new ArrayList<Entry>();
+	private final Map<String, Entry> entryMap = new HashMap<String, Entry>();
+	private final SAMSequenceDictionary dictionary;
+	private int nextIndex = 0;
+
+	private static class Entry {
+		String name;
+		int index;
+		int length;
+		long packedOffset;
+		long runsOffset;
+		int runCount;
+		MappedByteBuffer packed;
+		MappedByteBuffer runs;
+	}
+
+	public PackedReferenceFile(File file) throws IOException {
+		this.file = file;
+		DataInputStream dis = new DataInputStream(new FileInputStream(file));
+		try {
+			byte[] magic = new byte[MAGIC.length];
+			dis.readFully(magic);
+			if (!Arrays.equals(MAGIC, magic))
+				throw new RuntimeException("Not a packed reference file: "
+						+ file);
+
+			int count = dis.readInt();
+			List<SAMSequenceRecord> records = new ArrayList<SAMSequenceRecord>();
+			for (int i = 0; i < count; i++) {
+				Entry e = new Entry();
+				e.name = dis.readUTF();
+				e.index = i;
+				e.length = dis.readInt();
+				e.packedOffset = dis.readLong();
+				e.runsOffset = dis.readLong();
+				e.runCount = dis.readInt();
+				entries.add(e);
+				entryMap.put(e.name, e);
+				records.add(new SAMSequenceRecord(e.name, e.length));
+			}
+			dictionary = new SAMSequenceDictionary(records);
+		} finally {
+			dis.close();
+		}
+
+		channel = new RandomAccessFile(file, "r").getChannel();
+	}
+
+	public static boolean isPackedReferenceFile(File file) {
+		if (!file.isFile())
+			return false;
+		byte[] magic = new byte[MAGIC.length];
+		try {
+			InputStream is = new FileInputStream(file);
+			try {
+				if (is.read(magic) != magic.length)
+					return false;
+			} finally {
+				is.close();
+			}
+		} catch (IOException e) {
+			return false;
+		}
+		return Arrays.equals(MAGIC, magic);
+	}
+
+	private Entry getEntry(String name) {
+		Entry e = entryMap.get(name);
+		if (e == null)
+			throw new RuntimeException("Sequence not found in " + file + ": "
+					+ name);
+		return e;
+	}
+
+	private synchronized void map(Entry e) {
+		if (e.packed != null)
+			return;
+		try {
+			e.packed = channel.map(MapMode.READ_ONLY, e.packedOffset,
+					(e.length + 3) / 4);
+			e.runs = channel.map(MapMode.READ_ONLY, e.runsOffset,
+					(long) e.runCount * RUN_SIZE);
+		} catch (IOException x) {
+			throw new RuntimeException(x);
+		}
+	}
+
+	@Override
+	public void load(String name) {
+		Entry e = getEntry(name);
+		map(e);
+		e.packed.load();
+		e.runs.load();
+	}
+
+	@Override
+	public int getSequenceLength(String name) {
+		return getEntry(name).length;
+	}
+
+	@Override
+	public void getBases(String name, int start, byte[] dest, int destOffset,
+			int length) {
+		Entry e = getEntry(name);
+		if (start < 0 || start + length > e.length)
+			throw new IllegalArgumentException(String.format(
+					"Region %d-%d is outside of sequence %s of length %d",
+					start, start + length, name, e.length));
+		map(e);
+
+		// absolute gets only, the buffers are shared between threads:
+		ByteBuffer packed = e.packed;
+		int pos = start;
+		int end = start + length;
+		int to = destOffset;
+		while (pos < end && (pos & 3) != 0) {
+			dest[to++] = DECODE[((packed.get(pos >> 2) & 0xFF) << 2)
+					+ (pos & 3)];
+			pos++;
+		}
+		while (pos + 4 <= end) {
+			int i = (packed.get(pos >> 2) & 0xFF) << 2;
+			dest[to] = DECODE[i];
+			dest[to + 1] = DECODE[i + 1];
+			dest[to + 2] = DECODE[i + 2];
+			dest[to + 3] = DECODE[i + 3];
+			to += 4;
+			pos += 4;
+		}
+		while (pos < end) {
+			dest[to++] = DECODE[((packed.get(pos >> 2) & 0xFF) << 2)
+					+ (pos & 3)];
+			pos++;
+		}
+
+		applyRuns(e, start, end, dest, destOffset);
+	}
+
+	private static void applyRuns(Entry e, int start, int end, byte[] dest,
+			int destOffset) {
+		ByteBuffer runs = e.runs;
+		// the last run starting at or before the region start:
+		int low = 0, high = e.runCount - 1, first = 0;
+		while (low <= high) {
+			int mid = (low + high) >>> 1;
+			if (runs.getInt(mid * RUN_SIZE) <= start) {
+				first = mid;
+				low = mid + 1;
+			} else
+				high = mid - 1;
+		}
+
+		for (int i = first; i < e.runCount; i++) {
+			int runStart = runs.getInt(i * RUN_SIZE);
+			if (runStart >= end)
+				break;
+			int runEnd = runStart + runs.getInt(i * RUN_SIZE + 4);
+			if (runEnd <= start)
+				continue;
+
+			byte base = runs.get(i * RUN_SIZE + 8);
+			Arrays.fill(dest, destOffset + Math.max(start, runStart) - start,
+					destOffset + Math.min(end, runEnd) - start, base);
+		}
+	}
+
+	@Override
+	public SAMSequenceDictionary getSequenceDictionary() {
+		return dictionary;
+	}
+
+	@Override
+	public ReferenceSequence nextSequence() {
+		if (nextIndex >= entries.size())
+			return null;
+		return getSequence(entries.get(nextIndex++).name);
+	}
+
+	@Override
+	public void reset() {
+		nextIndex = 0;
+	}
+
+	@Override
+	public boolean isIndexed() {
+		return true;
+	}
+
+	@Override
+	public ReferenceSequence getSequence(String contig) {
+		Entry e = getEntry(contig);
+		byte[] bases = new byte[e.length];
+		getBases(contig, 0, bases, 0, e.length);
+		return new ReferenceSequence(contig, e.index, bases);
+	}
+
+	@Override
+	public ReferenceSequence getSubsequenceAt(String contig, long start,
+			long stop) {
+		Entry e = getEntry(contig);
+		byte[] bases = new byte[(int) (stop - start + 1)];
+		getBases(contig, (int) start - 1, bases, 0, bases.length);
+		return new ReferenceSequence(contig, e.index, bases);
+	}
+
+	@Override
+	public String toString() {
+		return file.getAbsolutePath();
+	}
+
+	/**
+	 * Packs all sequences of the source into a new file.
+	 */
+	public static void write(RandomAccessReference source, File file)
+			throws IOException {
+		List<SAMSequenceRecord> sequences = source.getSequenceDictionary()
+				.getSequences();
+		int count = sequences.size();
+		long[] packedOffsets = new long[count];
+		long[] runsOffsets = new long[count];
+		int[] runCounts = new int[count];
+
+		RandomAccessFile raf = new RandomAccessFile(file, "rw");
+		try {
+			raf.setLength(0);
+			raf.seek(writeHeader(sequences, packedOffsets, runsOffsets,
+					runCounts).length);
+
+			byte[] chunk = new byte[CHUNK_SIZE];
+			byte[] packed = new byte[CHUNK_SIZE / 4];
+			for (int s = 0; s < count; s++) {
+				SAMSequenceRecord sequence = sequences.get(s);
+				String name = sequence.getSequenceName();
+				int length = source.getSequenceLength(name);
+				RunList runs = new RunList();
+
+				packedOffsets[s] = raf.getFilePointer();
+				for (int pos = 0; pos < length; pos += CHUNK_SIZE) {
+					int size = Math.min(CHUNK_SIZE, length - pos);
+					source.getBases(name, pos, chunk, 0, size);
+					raf.write(packed, 0, pack(chunk, size, pos, packed, runs));
+				}
+
+				runsOffsets[s] = raf.getFilePointer();
+				runCounts[s] = runs.size;
+				raf.write(runs.toByteArray());
+			}
+
+			raf.seek(0);
+			raf.write(writeHeader(sequences, packedOffsets, runsOffsets,
+					runCounts));
+		} finally {
+			raf.close();
+		}
+	}
+
+	private static int pack(byte[] bases, int size, int offset, byte[] packed,
+			RunList runs) {
+		Arrays.fill(packed, 0, (size + 3) / 4, (byte) 0);
+		for (int i = 0; i < size; i++) {
+			int code;
+			switch (bases[i]) {
+			case 'A':
+				code = 0;
+				break;
+			case 'C':
+				code = 1;
+				break;
+			case 'G':
+				code = 2;
+				break;
+			case 'T':
+				code = 3;
+				break;
+			default:
+				code = 0;
+				runs.add(offset + i, bases[i]);
+				break;
+			}
+			packed[i >> 2] |= code << (6 - 2 * (i & 3));
+		}
+		return (size + 3) / 4;
+	}
+
+	private static byte[] writeHeader(List<SAMSequenceRecord> sequences,
+			long[] packedOffsets, long[] runsOffsets, int[] runCounts)
+			throws IOException {
+		ByteArrayOutputStream baos = new ByteArrayOutputStream();
+		DataOutputStream dos = new DataOutputStream(baos);
+		dos.write(MAGIC);
+		dos.writeInt(sequences.size());
+		for (int i = 0; i < sequences.size(); i++) {
+			dos.writeUTF(sequences.get(i).getSequenceName());
+			dos.writeInt(sequences.get(i).getSequenceLength());
+			dos.writeLong(packedOffsets[i]);
+			dos.writeLong(runsOffsets[i]);
+			dos.writeInt(runCounts[i]);
+		}
+		dos.flush();
+		return baos.toByteArray();
+	}
+
+	private static class RunList {
+		int[] starts = new int[16];
+		int[] lengths = new int[16];
+		byte[] bases = new byte[16];
+		int size = 0;
+
+		void add(int pos, byte base) {
+			if (size > 0 && bases[size - 1] == base
+					&& starts[size - 1] + lengths[size - 1] == pos) {
+				lengths[size - 1]++;
+				return;
+			}
+			if (size == starts.length) {
+				starts = Arrays.copyOf(starts, size * 2);
+				lengths = Arrays.copyOf(lengths, size * 2);
+				bases = Arrays.copyOf(bases, size * 2);
+			}
+			starts[size] = pos;
+			lengths[size] = 1;
+			bases[size] = base;
+			size++;
+		}
+
+		byte[] toByteArray() {
+			ByteBuffer buf = ByteBuffer.allocate(size * RUN_SIZE);
+			for (int i = 0; i < size; i++) {
+				buf.putInt(starts[i]);
+				buf.putInt(lengths[i]);
+				buf.put(bases[i]);
+			}
+			return buf.array();
+		}
+	}
+}
@@ -0,0 +1,39 @@
+/*******************************************************************************
+ * Copyright 2012 EMBL-EBI, Hinxton outstation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ ******************************************************************************/
+package net.sf.cram.ref;
+
+import net.sf.picard.reference.ReferenceSequenceFile;
+
+/**
+ * A reference file that can copy any region of a sequence without reading the
+ * rest of it.
+ */
+public interface RandomAccessReference extends ReferenceSequenceFile {
+
+	public int getSequenceLength(String name);
+
+	/**
+	 * Copies upper-case bases [start, start + length) of the sequence into
+	 * dest, start is zero-based.
+	 */
+	public void getBases(String name, int start, byte[] dest, int destOffset,
+			int length);
+
+	/**
+	 * Brings the sequence into memory ahead of use.
+	 */
+	public void load(String name);
+}
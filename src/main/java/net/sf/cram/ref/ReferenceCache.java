@@ -0,0 +1,154 @@
+/*******************************************************************************
+ * Copyright 2012 EMBL-EBI, Hinxton outstation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ ******************************************************************************/
+package net.sf.cram.ref;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+
+import net.sf.picard.util.Log;
+
+/**
+ * A process-wide cache of reference sequence bases. Entries are evicted in
+ * least recently used order once the total size goes over the byte budget,
+ * set with the system property {@value #BUDGET_PROPERTY} and defaulting to
+ * half of the maximum heap. A sequence requested by several threads at once is
+ * loaded only once, the other threads wait for it.
+ */
+public class ReferenceCache {
+	private static Log log = Log.getInstance(ReferenceCache.class);
+
+	public static final String BUDGET_PROPERTY = "cram.reference.cache.bytes";
+
+	private static ReferenceCache instance;
+
+	private final long budget;
+	private long size = 0;
+	private final LinkedHashMap<String, FutureTask<byte[]>> entries = new LinkedHashMap<String, FutureTask<byte[]>>(
+			16, 0.75f, true);
+
+	public ReferenceCache(long budget) {
+		this.budget = budget;
+	}
+
+	public static synchronized ReferenceCache getInstance() {
+		if (instance == null) {
+			long budget = Runtime.getRuntime().maxMemory() / 2;
+			String value = System.getProperty(BUDGET_PROPERTY);
+			if (value != null)
+				budget = Long.parseLong(value);
+			instance = new ReferenceCache(budget);
+		}
+		return instance;
+	}
+
+	/**
+	 * Returns the cached bases for the key, calling the loader if they are not
+	 * in the cache yet.
+	 */
+	public byte[] get(String key, Callable<byte[]> loader) {
+		FutureTask<byte[]> task;
+		boolean owner = false;
+		synchronized (this) {
+			task = entries.get(key);
+			if (task == null) {
+				task = new FutureTask<byte[]>(new SizedLoader(loader));
+				entries.put(key, task);
+				owner = true;
+			}
+		}
+
+		if (owner)
+			task.run();
+
+		byte[] bases;
+		try {
+			bases = task.get();
+		} catch (ExecutionException e) {
+			synchronized (this) {
+				if (entries.get(key) == task)
+					entries.remove(key);
+			}
+			throw new RuntimeException("Failed to load reference " + key,
+					e.getCause());
+		} catch (InterruptedException e) {
+			throw new RuntimeException(e);
+		}
+
+		if (owner) {
+			log.debug(String.format("Loaded reference %s, %d bytes.", key,
+					bases.length));
+			evict(key);
+		}
+		return bases;
+	}
+
+	public synchronized boolean contains(String key) {
+		return entries.containsKey(key);
+	}
+
+	public synchronized long getSize() {
+		return size;
+	}
+
+	public long getBudget() {
+		return budget;
+	}
+
+	public synchronized void clear() {
+		entries.clear();
+		size = 0;
+	}
+
+	private synchronized void evict(String keep) {
+		Iterator<Map.Entry<String, FutureTask<byte[]>>> iterator = entries
+				.entrySet().iterator();
+		while (size > budget && iterator.hasNext()) {
+			Map.Entry<String, FutureTask<byte[]>> entry = iterator.next();
+			FutureTask<byte[]> task = entry.getValue();
+			if (entry.getKey().equals(keep) || !task.isDone())
+				continue;
+
+			iterator.remove();
+			try {
+				size -= task.get().length;
+			} catch (Exception e) {
+				// failed loads are not counted
+			}
+			log.debug("Evicted reference " + entry.getKey());
+		}
+	}
+
+	private class SizedLoader implements Callable<byte[]> {
+		private Callable<byte[]> loader;
+
+		SizedLoader(Callable<byte[]> loader) {
+			this.loader = loader;
+		}
+
+		@Override
+		public byte[] call() throws Exception {
+			byte[] bases = loader.call();
+			synchronized (ReferenceCache.this) {
+				size += bases.length;
+			}
+			return bases;
+		}
+	}
+}
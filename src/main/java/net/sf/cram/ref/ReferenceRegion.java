@@ -0,0 +1,44 @@
+/*******************************************************************************
+ * Copyright 2012 EMBL-EBI, Hinxton outstation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ ******************************************************************************/
+package net.sf.cram.ref;
+
+/**
+ * A stretch of reference bases. bases[0] is the base at zero-based position
+ * offset in the reference sequence.
+ */
+public class ReferenceRegion {
+	public final byte[] bases;
+	public final int offset;
+
+	public ReferenceRegion(byte[] bases, int offset) {
+		this.bases = bases;
+		this.offset = offset;
+	}
+
+	/**
+	 * @return the base at the given one-based position in the sequence
+	 */
+	public byte baseAt(int position) {
+		return bases[position - 1 - offset];
+	}
+
+	/**
+	 * @return zero-based exclusive end of the region in the sequence
+	 */
+	public int getEnd() {
+		return offset + bases.length;
+	}
+}
@@ -0,0 +1,187 @@
+/*******************************************************************************
+ * Copyright 2012 EMBL-EBI, Hinxton outstation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ ******************************************************************************/
+package net.sf.cram.ref;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+import net.sf.picard.reference.ReferenceSequence;
+import net.sf.picard.reference.ReferenceSequenceFile;
+import net.sf.picard.reference.ReferenceSequenceFileFactory;
+import net.sf.picard.util.Log;
+import net.sf.samtools.SAMFileHeader;
+import net.sf.samtools.SAMSequenceRecord;
+
+/**
+ * Reference bases backed by a {@link ReferenceSequenceFile} and shared
+ * through a {@link ReferenceCache}. Sequences are keyed by their MD5 when the
+ * sequence dictionary has one, otherwise by file and sequence name.
+ */
+public class ReferenceSource {
+	private static Log log = Log.getInstance(ReferenceSource.class);
+
+	private static ExecutorService prefetchExecutor;
+
+	private final ReferenceSequenceFile rsFile;
+	private final ReferenceCache cache;
+
+	public ReferenceSource(ReferenceSequenceFile rsFile) {
+		this(rsFile, ReferenceCache.getInstance());
+	}
+
+	public ReferenceSource(ReferenceSequenceFile rsFile, ReferenceCache cache) {
+		this.rsFile = rsFile;
+		this.cache = cache;
+	}
+
+	public ReferenceSequenceFile getReferenceSequenceFile() {
+		return rsFile;
+	}
+
+	public byte[] getReferenceBases(SAMSequenceRecord record) {
+		return cache.get(getKey(record), newLoader(record.getSequenceName()));
+	}
+
+	public byte[] getReferenceBases(String name) {
+		return cache.get(getKey(name), newLoader(name));
+	}
+
+	/**
+	 * Loads the sequence in the background, so that a later request for it
+	 * finds it ready. Random access files are paged into memory, others are
+	 * loaded into the cache.
+	 */
+	public void prefetch(final SAMSequenceRecord record) {
+		getPrefetchExecutor().submit(new Runnable() {
+
+			@Override
+			public void run() {
+				long time = System.nanoTime();
+				try {
+					if (rsFile instanceof RandomAccessReference)
+						((RandomAccessReference) rsFile).load(record
+								.getSequenceName());
+					else
+						getReferenceBases(record);
+				} catch (RuntimeException e) {
+					log.warn("Failed to prefetch reference sequence "
+							+ record.getSequenceName() + ": " + e.getMessage());
+					return;
+				}
+				log.debug(String.format("Prefetched %s in %dms.",
+						record.getSequenceName(),
+						(System.nanoTime() - time) / 1000000));
+			}
+		});
+	}
+
+	/**
+	 * Prefetches the sequence following the given one in the header's
+	 * sequence dictionary, if any.
+	 */
+	public void prefetchNext(SAMFileHeader header, int sequenceId) {
+		if (sequenceId < 0)
+			return;
+		int next = sequenceId + 1;
+		if (next < header.getSequenceDictionary().size())
+			prefetch(header.getSequence(next));
+	}
+
+	private static synchronized ExecutorService getPrefetchExecutor() {
+		if (prefetchExecutor == null)
+			prefetchExecutor = Executors
+					.newSingleThreadExecutor(new ThreadFactory() {
+
+						@Override
+						public Thread newThread(Runnable r) {
+							Thread thread = new Thread(r, "reference-prefetch");
+							thread.setDaemon(true);
+							return thread;
+						}
+					});
+		return prefetchExecutor;
+	}
+
+	/**
+	 * Reference bases for the zero-based range [start, end) of the sequence,
+	 * clipped to the sequence length. Random access files return just the
+	 * range, others the whole cached sequence.
+	 */
+	public ReferenceRegion getRegion(SAMSequenceRecord record, int start,
+			int end) {
+		if (rsFile instanceof RandomAccessReference) {
+			RandomAccessReference raFile = (RandomAccessReference) rsFile;
+			String name = record.getSequenceName();
+			start = Math.max(0, start);
+			end = Math.max(start,
+					Math.min(end, raFile.getSequenceLength(name)));
+			byte[] bases = new byte[end - start];
+			raFile.getBases(name, start, bases, 0, bases.length);
+			return new ReferenceRegion(bases, start);
+		}
+		return new ReferenceRegion(getReferenceBases(record), 0);
+	}
+
+	/**
+	 * Opens a packed reference file or a fasta file, memory-mapped if it has
+	 * a .fai index.
+	 */
+	public static ReferenceSequenceFile openReferenceFile(File file) {
+		if (PackedReferenceFile.isPackedReferenceFile(file))
+			try {
+				return new PackedReferenceFile(file);
+			} catch (IOException e) {
+				throw new RuntimeException(e);
+			}
+		if (MappedFastaSequenceFile.canOpen(file))
+			try {
+				return new MappedFastaSequenceFile(file);
+			} catch (IOException e) {
+				throw new RuntimeException(e);
+			}
+		return ReferenceSequenceFileFactory.getReferenceSequenceFile(file);
+	}
+
+	public String getKey(SAMSequenceRecord record) {
+		String md5 = record.getAttribute(SAMSequenceRecord.MD5_TAG);
+		if (md5 != null)
+			return "M5:" + md5;
+		return getKey(record.getSequenceName());
+	}
+
+	public String getKey(String name) {
+		return rsFile.toString() + ":" + name;
+	}
+
+	private Callable<byte[]> newLoader(final String name) {
+		return new Callable<byte[]>() {
+
+			@Override
+			public byte[] call() throws Exception {
+				ReferenceSequence sequence;
+				// reference files keep a read position and are not thread safe:
+				synchronized (rsFile) {
+					sequence = rsFile.getSequence(name);
+				}
+				return sequence.getBases();
+			}
+		};
+	}
+}
@@ -99,9 +99,22 @@ public class CompressionHeaderFactory {
 					.toParam(calculator.values(), calculator.bitLens()));
 		}
 
-		{ // alignment offset:
+		{ // reference sequence id, no bits unless there are several:
+			HuffmanParamsCalculator calculator = new HuffmanParamsCalculator();
+			for (CramRecord r : records)
+				calculator.add(r.sequenceId);
+			calculator.calculate();
+
+			h.eMap.put(EncodingKey.RI_RefId, HuffmanIntegerEncoding.toParam(
+					calculator.values(), calculator.bitLens()));
+		}
+
+		{ // alignment offset, negative for unsorted records:
+			int min = 0;
+			for (CramRecord r : records)
+				min = Math.min(min, r.alignmentStartOffsetFromPreviousRecord);
 			IntegerEncodingCalculator calc = new IntegerEncodingCalculator(
-					"alignment offset");
+					"alignment offset", 255, min);
 			for (CramRecord r : records) {
 				calc.addValue(r.alignmentStartOffsetFromPreviousRecord);
 			}
@@ -245,8 +258,27 @@ public class CompressionHeaderFactory {
 		}
 
 		{ // bases:
-			h.eMap.put(EncodingKey.BA_Base,
-					ExternalByteEncoding.toParam(baseID));
+			boolean unplacedOnly = !records.isEmpty();
+			for (CramRecord r : records)
+				if (!r.segmentUnmapped) {
+					unplacedOnly = false;
+					break;
+				}
+
+			if (unplacedOnly) {
+				// reads without a reference are all bases, about 2 bits
+				// each:
+				HuffmanParamsCalculator calculator = new HuffmanParamsCalculator();
+				for (CramRecord r : records)
+					for (byte b : r.getReadBases())
+						calculator.add(b);
+				calculator.calculate();
+
+				h.eMap.put(EncodingKey.BA_Base, HuffmanByteEncoding.toParam(
+						calculator.valuesAsBytes(), calculator.bitLens()));
+			} else
+				h.eMap.put(EncodingKey.BA_Base,
+						ExternalByteEncoding.toParam(baseID));
 		}
 
 		{ // quality scores:
@@ -496,13 +528,25 @@ public class CompressionHeaderFactory {
 	private static class IntegerEncodingCalculator {
 		private List<EncodingLengthCalculator> calcs = new ArrayList<EncodingLengthCalculator>();
 		private int max = 0;
+		// added to values before encoding, lifts negative values:
+		private final int offset;
 		private int count = 0;
 		private String name;
 		private HashMap<Integer, MutableInt> dictionary = new HashMap<Integer, MutableInt>();
 		private int dictionaryThreshold = 100;
 
 		public IntegerEncodingCalculator(String name, int dictionaryThreshold) {
+			this(name, dictionaryThreshold, 0);
+		}
+
+		/**
+		 * @param minValue
+		 *            the smallest value to be added
+		 */
+		public IntegerEncodingCalculator(String name, int dictionaryThreshold,
+				int minValue) {
 			this.name = name;
+			offset = Math.max(0, -minValue);
 			// for (int i = 2; i < 20; i++)
 			// calcs.add(new EncodingLengthCalculator(
 			// new GolombIntegerEncoding(i)));
@@ -511,11 +555,12 @@ public class CompressionHeaderFactory {
 			// calcs.add(new EncodingLengthCalculator(
 			// new GolombRiceIntegerEncoding(i)));
 
-			calcs.add(new EncodingLengthCalculator(new GammaIntegerEncoding(1)));
+			calcs.add(new EncodingLengthCalculator(new GammaIntegerEncoding(
+					1 + offset)));
 
 			for (int i = 2; i < 5; i++)
 				calcs.add(new EncodingLengthCalculator(
-						new SubexpIntegerEncoding(i)));
+						new SubexpIntegerEncoding(offset, i)));
 		}
 
 		public IntegerEncodingCalculator(String name) {
@@ -557,10 +602,10 @@ public class CompressionHeaderFactory {
 
 			{ // check if beta is better:
 
-				int betaLength = (int) Math.round(Math.log(max) / Math.log(2)
-						+ 0.5);
+				int betaLength = (int) Math.round(Math.log(max + offset)
+						/ Math.log(2) + 0.5);
 				if (bits > betaLength * count) {
-					bestEncoding = new BetaIntegerEncoding(betaLength);
+					bestEncoding = new BetaIntegerEncoding(offset, betaLength);
 					bits = betaLength * count;
 				}
 			}
@@ -11,6 +11,15 @@ public class Block {
 	public int rawContentSize ;
 	public int compressedContentSize ;
 
+	/**
+	 * Takes the first size bytes of the array as the content, the array is
+	 * kept as is rather than trimmed.
+	 */
+	public void setContent(byte[] content, int size) {
+		this.content = content;
+		this.rawContentSize = size;
+	}
+
 	@Override
 	public String toString() {
 		return String.format(
@@ -4,12 +4,24 @@ import java.util.Map;
 
 
 public class Slice {
+	/**
+	 * Sequence id of slices and containers holding records of several
+	 * reference sequences, each record then carries its own.
+	 */
+	public static final int MULTI_REFERENCE = -2;
+
 	public int sequenceId = -1;
 	public int alignmentStart = -1;
 	public int alignmentSpan = -1;
 
 	public int nofRecords = -1;
 
+	/**
+	 * Content id of the external block holding the reference bases the slice
+	 * spans, from alignmentStart on, or -1 if the reference is not embedded.
+	 */
+	public int embeddedRefBlockContentId = -1;
+
 	public BlockContentType contentType;
 	public Block coreBlock;
 	public Map<Integer, Block> external;
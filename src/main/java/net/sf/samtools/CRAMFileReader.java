@@ -16,6 +16,7 @@ public class CRAMFileReader extends SAMFileReader.ReaderImplementation {
 	private File file;
 	private ReferenceSequenceFile referenceSequenceFile;
 	private CramHeader header;
+	private SAMRecordFactory samRecordFactory;
 
 	public CRAMFileReader(File file, ReferenceSequenceFile referenceSequenceFile) {
 		super();
@@ -53,8 +54,7 @@ public class CRAMFileReader extends SAMFileReader.ReaderImplementation {
 
 	@Override
 	void setSAMRecordFactory(SAMRecordFactory factory) {
-		// TODO Auto-generated method stub
-
+		this.samRecordFactory = factory;
 	}
 
 	@Override
@@ -86,6 +86,7 @@ public class CRAMFileReader extends SAMFileReader.ReaderImplementation {
 		try {
 			it = new SAMIterator(new FileInputStream(file),
 					referenceSequenceFile);
+			it.setSAMRecordFactory(samRecordFactory);
 			return it;
 		} catch (Exception e) {
 			throw new RuntimeException(e);
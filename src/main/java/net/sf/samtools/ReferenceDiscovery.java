@@ -17,27 +17,50 @@ package net.sf.samtools;
 
 import java.io.File;
 import java.io.FileNotFoundException;
-import java.util.HashMap;
 import java.util.Map;
 import java.util.Scanner;
+import java.util.concurrent.ConcurrentHashMap;
 
+import net.sf.cram.ref.ReferenceSource;
 import net.sf.picard.reference.ReferenceSequenceFile;
-import net.sf.picard.reference.ReferenceSequenceFileFactory;
 import net.sf.samtools.util.SeekableStream;
 
 public class ReferenceDiscovery {
-	public static Map<Object, ReferenceSequenceFile> referenceFactory = new HashMap<Object, ReferenceSequenceFile>();
+	/**
+	 * Reference files already found, keyed by the location or source they
+	 * were found for, so that readers of the same reference share it and its
+	 * cached sequences.
+	 */
+	public static Map<Object, ReferenceSequenceFile> referenceFactory = new ConcurrentHashMap<Object, ReferenceSequenceFile>();
 
 	public static ReferenceSequenceFile probeLocation(String location) {
 		ReferenceSequenceFile referenceSequenceFile = referenceFactory.get(location);
 		if (referenceSequenceFile != null)
 			return referenceSequenceFile;
 
+		referenceSequenceFile = findReferenceFile(location);
+		if (referenceSequenceFile != null)
+			referenceFactory.put(location, referenceSequenceFile);
+		return referenceSequenceFile;
+	}
+
+	private static ReferenceSequenceFile getReferenceFile(File file) {
+		String path = file.getAbsolutePath();
+		ReferenceSequenceFile referenceSequenceFile = referenceFactory.get(path);
+		if (referenceSequenceFile == null) {
+			referenceSequenceFile = ReferenceSource.openReferenceFile(file);
+			referenceFactory.put(path, referenceSequenceFile);
+		}
+		return referenceSequenceFile;
+	}
+
+	private static ReferenceSequenceFile findReferenceFile(String location) {
+
 		String baseName = location.replaceFirst(".cram$", "");
 
 		File file = new File(baseName + ".fa");
 		if (file.exists())
-			return ReferenceSequenceFileFactory.getReferenceSequenceFile(file);
+			return getReferenceFile(file);
 
 		file = new File(baseName + ".ref");
 		if (file.exists()) {
@@ -50,7 +73,7 @@ public class ReferenceDiscovery {
 			if (scanner.hasNextLine()) {
 				file = new File(scanner.nextLine());
 				if (file.exists()) {
-					return ReferenceSequenceFileFactory.getReferenceSequenceFile(file);
+					return getReferenceFile(file);
 				}
 			}
 		}
@@ -84,13 +107,17 @@ public class ReferenceDiscovery {
 					continue;
 
 				referenceSequenceFile = probeLocation(name);
-				if (referenceSequenceFile != null)
+				if (referenceSequenceFile != null) {
+					referenceFactory.put(source, referenceSequenceFile);
 					return referenceSequenceFile;
+				}
 
 				// could be an index file:
 				referenceSequenceFile = probeLocation(name.replaceAll(".crai$", ""));
-				if (referenceSequenceFile != null)
+				if (referenceSequenceFile != null) {
+					referenceFactory.put(source, referenceSequenceFile);
 					return referenceSequenceFile;
+				}
 			}
 
 		// try default rsf from java properties:
@@ -98,7 +125,7 @@ public class ReferenceDiscovery {
 		if (refProperty != null) {
 			File file = new File(refProperty);
 			if (file.isFile())
-				return ReferenceSequenceFileFactory.getReferenceSequenceFile(file);
+				return getReferenceFile(file);
 		}
 
 		throw new RuntimeException("Reference sequence file not found.");
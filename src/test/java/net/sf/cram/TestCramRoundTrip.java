@@ -0,0 +1,618 @@
+package net.sf.cram;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import net.sf.cram.ReadWrite.CramHeader;
+import net.sf.cram.ref.ReferenceSource;
+import net.sf.cram.structure.Container;
+import net.sf.cram.structure.Slice;
+import net.sf.samtools.BAMRecord;
+import net.sf.samtools.DefaultSAMRecordFactory;
+import net.sf.samtools.SAMFileHeader;
+import net.sf.samtools.SAMFileHeader.SortOrder;
+import net.sf.samtools.SAMFileReader;
+import net.sf.samtools.SAMFileWriter;
+import net.sf.samtools.SAMFileWriterFactory;
+import net.sf.samtools.SAMRecord;
+import net.sf.samtools.SAMRecord.SAMTagAndValue;
+import net.sf.samtools.SAMRecordFactory;
+import net.sf.samtools.SAMSequenceRecord;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class TestCramRoundTrip {
+	private static final int SEQUENCE_LENGTH = 2000;
+	private static final int READ_LENGTH = 50;
+
+	private final Random random = new Random(11);
+	private File dir;
+	private File fasta;
+	private SAMFileHeader header;
+
+	@Before
+	public void createDir() throws IOException {
+		dir = File.createTempFile("roundtrip", "");
+		dir.delete();
+		dir.mkdir();
+	}
+
+	@After
+	public void deleteDir() {
+		for (File file : dir.listFiles())
+			file.delete();
+		dir.delete();
+	}
+
+	/**
+	 * Writes a random reference of the given number of sequences with its
+	 * .fai index.
+	 */
+	private void createReference(int sequences) throws IOException {
+		fasta = new File(dir, "ref.fa");
+		Writer fa = new FileWriter(fasta);
+		Writer fai = new FileWriter(new File(dir, "ref.fa.fai"));
+		header = new SAMFileHeader();
+		header.setSortOrder(SortOrder.coordinate);
+		long offset = 0;
+		for (int i = 0; i < sequences; i++) {
+			String name = "seq" + i;
+			header.addSequence(new SAMSequenceRecord(name, SEQUENCE_LENGTH));
+
+			String line = ">" + name + "\n";
+			fa.write(line);
+			offset += line.length();
+			fai.write(name + "\t" + SEQUENCE_LENGTH + "\t" + offset + "\t60\t61\n");
+			for (int pos = 0; pos < SEQUENCE_LENGTH; pos += 60) {
+				StringBuilder sb = new StringBuilder();
+				for (int j = pos; j < Math.min(pos + 60, SEQUENCE_LENGTH); j++)
+					sb.append("ACGT".charAt(random.nextInt(4)));
+				sb.append('\n');
+				fa.write(sb.toString());
+				offset += sb.length();
+			}
+		}
+		fa.close();
+		fai.close();
+	}
+
+	private byte[] referenceBases(int sequenceId) throws IOException {
+		return ReferenceSource.openReferenceFile(fasta)
+				.getSequence("seq" + sequenceId).getBases();
+	}
+
+	private byte[] randomScores(int length) {
+		byte[] scores = new byte[length];
+		for (int i = 0; i < length; i++)
+			scores[i] = (byte) (2 + random.nextInt(38));
+		return scores;
+	}
+
+	/**
+	 * @return pairs of reads on every sequence with a mismatch each
+	 */
+	private List<SAMRecord> mappedPairs(int pairsPerSequence)
+			throws IOException {
+		List<SAMRecord> records = new ArrayList<SAMRecord>();
+		for (int seq = 0; seq < header.getSequenceDictionary().size(); seq++) {
+			byte[] ref = referenceBases(seq);
+			for (int i = 0; i < pairsPerSequence; i++) {
+				int start = 1 + random.nextInt(SEQUENCE_LENGTH - 3
+						* READ_LENGTH);
+				int mateStart = start + random.nextInt(2 * READ_LENGTH);
+				String name = "r" + seq + "_" + i;
+				SAMRecord first = mapped(name, seq, start, ref);
+				SAMRecord second = mapped(name, seq, mateStart, ref);
+				pair(first, second, true);
+				pair(second, first, false);
+				records.add(first);
+				records.add(second);
+			}
+		}
+		return records;
+	}
+
+	private SAMRecord mapped(String name, int seq, int start, byte[] ref) {
+		SAMRecord r = new SAMRecord(header);
+		r.setReadName(name);
+		r.setReferenceIndex(seq);
+		r.setAlignmentStart(start);
+		r.setCigarString(READ_LENGTH + "M");
+		r.setMappingQuality(60);
+		byte[] bases = new byte[READ_LENGTH];
+		System.arraycopy(ref, start - 1, bases, 0, READ_LENGTH);
+		int mismatch = random.nextInt(READ_LENGTH);
+		bases[mismatch] = (byte) (bases[mismatch] == 'A' ? 'C' : 'A');
+		r.setReadBases(bases);
+		r.setBaseQualities(randomScores(READ_LENGTH));
+		return r;
+	}
+
+	private SAMRecord unplaced(String name) {
+		SAMRecord r = new SAMRecord(header);
+		r.setReadName(name);
+		r.setReadUnmappedFlag(true);
+		byte[] bases = new byte[READ_LENGTH];
+		for (int i = 0; i < bases.length; i++)
+			bases[i] = (byte) "ACGT".charAt(random.nextInt(4));
+		r.setReadBases(bases);
+		r.setBaseQualities(randomScores(READ_LENGTH));
+		return r;
+	}
+
+	private static void pair(SAMRecord r, SAMRecord mate, boolean first) {
+		r.setReadPairedFlag(true);
+		r.setProperPairFlag(true);
+		r.setFirstOfPairFlag(first);
+		r.setSecondOfPairFlag(!first);
+		r.setReadNegativeStrandFlag(!first);
+		r.setMateNegativeStrandFlag(first);
+		r.setMateReferenceIndex(mate.getReferenceIndex());
+		r.setMateAlignmentStart(mate.getAlignmentStart());
+	}
+
+	private File writeBam(List<SAMRecord> records) {
+		File bam = new File(dir, "in.bam");
+		SAMFileWriter writer = new SAMFileWriterFactory().makeBAMWriter(
+				header, false, bam);
+		for (SAMRecord r : records)
+			writer.addAlignment(r);
+		writer.close();
+		return bam;
+	}
+
+	private static List<SAMRecord> readBam(File bam) {
+		SAMFileReader reader = new SAMFileReader(bam);
+		List<SAMRecord> records = new ArrayList<SAMRecord>();
+		for (SAMRecord r : reader)
+			records.add(r);
+		reader.close();
+		return records;
+	}
+
+	private File toCram(File bam, String... args) throws Exception {
+		File cram = new File(dir, "out.cram");
+		List<String> list = new ArrayList<String>();
+		list.add("--input-bam-file");
+		list.add(bam.getAbsolutePath());
+		list.add("--reference-fasta-file");
+		list.add(fasta.getAbsolutePath());
+		list.add("--output-cram-file");
+		list.add(cram.getAbsolutePath());
+		list.add("--preserve-read-names");
+		// keep all quality scores:
+		list.add("--lossy-quality-score-spec");
+		list.add("R40-N40-U40");
+		for (String arg : args)
+			list.add(arg);
+		Bam2Cram.main(list.toArray(new String[list.size()]));
+		return cram;
+	}
+
+	private File toBam(File cram, boolean withReference) throws Exception {
+		File bam = new File(dir, "out.bam");
+		List<String> list = new ArrayList<String>();
+		list.add("--input-cram-file");
+		list.add(cram.getAbsolutePath());
+		if (withReference) {
+			list.add("--reference-fasta-file");
+			list.add(fasta.getAbsolutePath());
+		}
+		list.add("--output-bam-file");
+		list.add(bam.getAbsolutePath());
+		Cram2Bam.main(list.toArray(new String[list.size()]));
+		return bam;
+	}
+
+	private static void assertSameRecords(List<SAMRecord> expected,
+			List<SAMRecord> actual) {
+		assertEquals(expected.size(), actual.size());
+		for (int i = 0; i < expected.size(); i++) {
+			SAMRecord e = expected.get(i);
+			SAMRecord a = actual.get(i);
+			String name = e.getReadName();
+			assertEquals(name, e.getReadName(), a.getReadName());
+			assertEquals(name, e.getFlags(), a.getFlags());
+			assertEquals(name, e.getReferenceIndex(), a.getReferenceIndex());
+			assertEquals(name, e.getAlignmentStart(), a.getAlignmentStart());
+			assertEquals(name, e.getCigarString(), a.getCigarString());
+			assertEquals(name, e.getMateReferenceIndex(),
+					a.getMateReferenceIndex());
+			assertEquals(name, e.getMateAlignmentStart(),
+					a.getMateAlignmentStart());
+			assertArrayEquals(name, e.getReadBases(), a.getReadBases());
+			assertArrayEquals(name, e.getBaseQualities(), a.getBaseQualities());
+		}
+	}
+
+	/**
+	 * Sequence ids above 127 are beyond the cached Integer instances.
+	 */
+	@Test
+	public void testManySequences() throws Exception {
+		createReference(150);
+		File bam = writeBam(mappedPairs(3));
+		List<SAMRecord> expected = readBam(bam);
+
+		File cram = toCram(bam);
+		assertSameRecords(expected, readBam(toBam(cram, true)));
+	}
+
+	/**
+	 * Mates placed on the neighbouring sequence, past the cached Integer
+	 * instances.
+	 */
+	@Test
+	public void testMatesOnOtherSequences() throws Exception {
+		createReference(140);
+		List<SAMRecord> records = new ArrayList<SAMRecord>();
+		for (int seq = 120; seq < 139; seq++) {
+			int start = 1 + random.nextInt(SEQUENCE_LENGTH - READ_LENGTH);
+			String name = "r" + seq;
+			SAMRecord first = mapped(name, seq, start, referenceBases(seq));
+			SAMRecord second = mapped(name, seq + 1, start,
+					referenceBases(seq + 1));
+			pair(first, second, true);
+			pair(second, first, false);
+			first.setProperPairFlag(false);
+			second.setProperPairFlag(false);
+			records.add(first);
+			records.add(second);
+		}
+		File bam = writeBam(records);
+		List<SAMRecord> expected = readBam(bam);
+
+		File cram = toCram(bam);
+		assertSameRecords(expected, readBam(toBam(cram, true)));
+	}
+
+	/**
+	 * @return records of several sequences taken in turns, each sequence in
+	 *         coordinate order, the first and the last record on the same
+	 *         sequence
+	 */
+	private List<SAMRecord> interleavedSequences() throws IOException {
+		List<List<SAMRecord>> bySequence = new ArrayList<List<SAMRecord>>();
+		for (int seq = 0; seq < 3; seq++) {
+			byte[] ref = referenceBases(seq);
+			List<SAMRecord> list = new ArrayList<SAMRecord>();
+			for (int i = 0; i < 20; i++)
+				list.add(mapped("s" + seq + "_" + i, seq, 1 + 50 * i, ref));
+			bySequence.add(list);
+		}
+		List<SAMRecord> records = new ArrayList<SAMRecord>();
+		for (int i = 0; i < 20; i++)
+			for (List<SAMRecord> list : bySequence)
+				records.add(list.get(i));
+		records.add(mapped("last", 0, 1001, referenceBases(0)));
+		return records;
+	}
+
+	/**
+	 * Containers switch back to sequences they already hold.
+	 */
+	@Test
+	public void testInterleavedSequences() throws Exception {
+		createReference(3);
+		header.setSortOrder(SortOrder.unsorted);
+		File bam = writeBam(interleavedSequences());
+		List<SAMRecord> expected = readBam(bam);
+		assertEquals(1, expected.get(1).getReferenceIndex().intValue());
+
+		File cram = toCram(bam);
+		assertSameRecords(expected, readBam(toBam(cram, true)));
+	}
+
+	/**
+	 * Name sorted records go back and forth on the reference.
+	 */
+	@Test
+	public void testQuerynameSorted() throws Exception {
+		createReference(2);
+		header.setSortOrder(SortOrder.queryname);
+		File bam = writeBam(mappedAndUnplaced());
+		List<SAMRecord> expected = readBam(bam);
+
+		File cram = toCram(bam);
+		assertSameRecords(expected, readBam(toBam(cram, true)));
+	}
+
+	/**
+	 * Enough distinct negative alignment offsets to rule out a dictionary
+	 * encoding.
+	 */
+	@Test
+	public void testShuffled() throws Exception {
+		createReference(2);
+		List<SAMRecord> records = mappedPairs(200);
+		Collections.shuffle(records, random);
+		header.setSortOrder(SortOrder.unsorted);
+		File bam = writeBam(records);
+		List<SAMRecord> expected = readBam(bam);
+
+		File cram = toCram(bam);
+		assertSameRecords(expected, readBam(toBam(cram, true)));
+	}
+
+	/**
+	 * Tags of every type, read from a BAM file so that their values are
+	 * copied from the undecoded BAM record data. Ignored tags of variable
+	 * length come first and have to be skipped.
+	 */
+	@Test
+	public void testTagsFromBinary() throws Exception {
+		createReference(2);
+		List<SAMRecord> records = mappedAndUnplaced();
+		for (int i = 0; i < records.size(); i++) {
+			SAMRecord r = records.get(i);
+			if (i % 5 == 4)
+				continue;
+			r.setAttribute("YZ", "ignored" + i);
+			r.setAttribute("YB", new int[] { i, -i });
+			r.setAttribute("XZ", "value" + i);
+			r.setAttribute("XA", 'A');
+			r.setAttribute("XC", i);
+			r.setAttribute("XS", -300 * i);
+			r.setAttribute("XI", 100000 * i);
+			r.setAttribute("XF", 1.5f * i);
+			r.setAttribute("XB", new byte[] { 1, (byte) -i, 3 });
+			r.setAttribute("XH", new short[] { (short) (-1000 * i) });
+			r.setAttribute("XN", new int[] { i, 1 << 30, -1 });
+			r.setAttribute("XG", new float[] { 0.5f, -i });
+			r.setUnsignedArrayAttribute("XV", new byte[] { (byte) 200, 7 });
+		}
+		File bam = writeBam(records);
+		List<SAMRecord> expected = readBam(bam);
+		assertTrue(expected.get(0) instanceof BAMRecord);
+
+		File cram = toCram(bam, "--capture-all-tags", "--ignore-tags",
+				"YZ:YB");
+		List<SAMRecord> actual = readBam(toBam(cram, true));
+		assertSameRecords(expected, actual);
+		for (int i = 0; i < expected.size(); i++) {
+			SAMRecord e = expected.get(i);
+			SAMRecord a = actual.get(i);
+			String name = e.getReadName();
+			assertNull(name, a.getAttribute("YZ"));
+			assertNull(name, a.getAttribute("YB"));
+			List<SAMTagAndValue> tags = new ArrayList<SAMTagAndValue>();
+			for (SAMTagAndValue tv : e.getAttributes())
+				if (!tv.tag.startsWith("Y"))
+					tags.add(tv);
+			assertEquals(name, tags.size(), a.getAttributes().size());
+			for (SAMTagAndValue tv : tags) {
+				Object value = a.getAttribute(tv.tag);
+				assertTrue(name + ":" + tv.tag, Arrays.deepEquals(
+						new Object[] { tv.value }, new Object[] { value }));
+				assertEquals(name + ":" + tv.tag,
+						e.isUnsignedArrayAttribute(tv.tag),
+						a.isUnsignedArrayAttribute(tv.tag));
+			}
+		}
+	}
+
+	private List<SAMRecord> mappedAndUnplaced() throws IOException {
+		List<SAMRecord> records = mappedPairs(5);
+		for (int i = 0; i < 20; i++)
+			records.add(unplaced("u" + i));
+		return records;
+	}
+
+	@Test
+	public void testUnplacedReads() throws Exception {
+		createReference(2);
+		File bam = writeBam(mappedAndUnplaced());
+		List<SAMRecord> expected = readBam(bam);
+
+		File cram = toCram(bam);
+		assertSameRecords(expected, readBam(toBam(cram, true)));
+	}
+
+	@Test
+	public void testEmbeddedReference() throws Exception {
+		createReference(3);
+		File bam = writeBam(mappedAndUnplaced());
+		List<SAMRecord> expected = readBam(bam);
+
+		File cram = toCram(bam, "--embed-reference");
+		assertSameRecords(expected, readBam(toBam(cram, false)));
+	}
+
+	/**
+	 * Reads the attributes of every record, MD and NM are restored for
+	 * mapped reads only.
+	 */
+	private void iterate(File cram, List<SAMRecord> expected,
+			SAMRecordFactory factory) throws IOException {
+		Map<String, SAMRecord> byName = new HashMap<String, SAMRecord>();
+		for (SAMRecord r : expected)
+			byName.put(r.getReadName() + r.getFlags(), r);
+
+		FileInputStream is = new FileInputStream(cram);
+		SAMIterator iterator = new SAMIterator(is,
+				ReferenceSource.openReferenceFile(fasta));
+		iterator.setSAMRecordFactory(factory);
+		int unplaced = 0;
+		while (iterator.hasNext()) {
+			SAMRecord a = iterator.next();
+			SAMRecord e = byName.get(a.getReadName() + a.getFlags());
+			assertNotNull(a.getReadName(), e);
+			assertEquals(e.getCigarString(), a.getCigarString());
+			assertArrayEquals(e.getReadBases(), a.getReadBases());
+			if (a.getReadUnmappedFlag()) {
+				assertNull(a.getAttribute("MD"));
+				assertNull(a.getAttribute("NM"));
+				unplaced++;
+			} else {
+				assertEquals(1, a.getAttribute("NM"));
+				assertNotNull(a.getAttribute("MD"));
+			}
+			a.getAttributes();
+		}
+		iterator.close();
+		assertTrue(unplaced > 0);
+	}
+
+	@Test
+	public void testIterateUnplacedReads() throws Exception {
+		createReference(2);
+		File bam = writeBam(mappedAndUnplaced());
+		List<SAMRecord> expected = readBam(bam);
+		File cram = toCram(bam);
+
+		// lazy records:
+		iterate(cram, expected, null);
+		// restored upfront:
+		iterate(cram, expected, new SAMRecordFactory() {
+			@Override
+			public SAMRecord createSAMRecord(SAMFileHeader header) {
+				return new SAMRecord(header);
+			}
+
+			@Override
+			public BAMRecord createBAMRecord(SAMFileHeader header,
+					int referenceSequenceIndex, int alignmentStart,
+					short readNameLength, short mappingQuality,
+					int indexingBin, int cigarLen, int flags, int readLen,
+					int mateReferenceSequenceIndex, int mateAlignmentStart,
+					int insertSize, byte[] variableLengthBlock) {
+				return new DefaultSAMRecordFactory().createBAMRecord(
+						header, referenceSequenceIndex, alignmentStart,
+						readNameLength, mappingQuality, indexingBin, cigarLen,
+						flags, readLen, mateReferenceSequenceIndex,
+						mateAlignmentStart, insertSize, variableLengthBlock);
+			}
+		});
+	}
+
+	/**
+	 * Decodes every slice into columns and compares them with the records
+	 * decoded the usual way.
+	 */
+	@Test
+	public void testColumns() throws Exception {
+		createReference(3);
+		header.setSortOrder(SortOrder.unsorted);
+		List<SAMRecord> records = interleavedSequences();
+		records.addAll(mappedAndUnplaced());
+		File cram = toCram(writeBam(records), "--max-slice-size", "20");
+
+		FileInputStream is = new FileInputStream(cram);
+		CramHeader cramHeader = ReadWrite.readCramHeader(is);
+		ColumnarSlice columns = null;
+		int slices = 0;
+		while (true) {
+			Container c = null;
+			try {
+				c = ReadWrite.readContainer(cramHeader.samFileHeader, is);
+			} catch (EOFException e) {
+				break;
+			}
+			List<CramRecord> cramRecords = BLOCK_PROTO.getRecords(c.h, c,
+					cramHeader.samFileHeader);
+			new CramNormalizer(cramHeader.samFileHeader, null,
+					c.alignmentStart).restorePositionsAndPairing(cramRecords,
+					true);
+
+			int index = 0;
+			for (Slice s : c.slices) {
+				columns = BLOCK_PROTO.getColumns(s, c.h, columns);
+				assertEquals(s.nofRecords, columns.size);
+				ColumnarSlice.Cursor cursor = columns.cursor();
+				while (cursor.next()) {
+					CramRecord r = cramRecords.get(index++);
+					int i = cursor.getIndex();
+					String name = new String(columns.names,
+							columns.nameOffset[i], columns.nameOffset[i + 1]
+									- columns.nameOffset[i]);
+					assertEquals(r.getReadName(), name);
+					assertEquals(name, r.getFlags(), cursor.getFlags());
+					assertEquals(name, r.getReadLength(),
+							cursor.getReadLength());
+					assertEquals(name, r.sequenceId, cursor.getSequenceId());
+					if (!r.segmentUnmapped) {
+						assertEquals(name, r.getAlignmentStart(),
+								cursor.getAlignmentStart());
+						assertEquals(name, READ_LENGTH,
+								cursor.getAlignmentSpan());
+					}
+					assertEquals(name, r.getMappingQuality() & 0xFF,
+							cursor.getMappingQuality());
+					assertEquals(name, r.getReadGroupID(),
+							cursor.getReadGroup());
+					assertEquals(name, r.getReadFeatures() == null ? 0 : r
+							.getReadFeatures().size(), cursor.getFeatureCount());
+					assertEquals(name, r.tags == null ? 0 : r.tags.size(),
+							cursor.getTagCount());
+				}
+				slices++;
+			}
+			assertEquals(cramRecords.size(), index);
+		}
+		is.close();
+		assertTrue(slices > 1);
+	}
+
+	@Test
+	public void testFlagStat() throws Exception {
+		createReference(3);
+		header.setSortOrder(SortOrder.unsorted);
+		List<SAMRecord> records = interleavedSequences();
+		records.addAll(mappedAndUnplaced());
+		records.get(0).setDuplicateReadFlag(true);
+		records.get(1).setNotPrimaryAlignmentFlag(true);
+		File bam = writeBam(records);
+		File cram = toCram(bam);
+
+		FileInputStream is = new FileInputStream(cram);
+		FlagStat stat = FlagStat.read(is);
+		is.close();
+
+		long[] mapped = new long[3];
+		long duplicates = 0, secondary = 0, paired = 0, unplaced = 0;
+		for (SAMRecord r : readBam(bam)) {
+			if (r.getDuplicateReadFlag())
+				duplicates++;
+			if (r.getNotPrimaryAlignmentFlag())
+				secondary++;
+			if (r.getReadPairedFlag())
+				paired++;
+			if (r.getReadUnmappedFlag())
+				unplaced++;
+			else
+				mapped[r.getReferenceIndex()]++;
+		}
+		assertEquals(records.size(), stat.total);
+		assertEquals(1, duplicates);
+		assertEquals(duplicates, stat.duplicates);
+		assertEquals(1, secondary);
+		assertEquals(secondary, stat.secondary);
+		assertEquals(paired, stat.paired);
+		assertEquals(paired / 2, stat.read1);
+		assertEquals(paired / 2, stat.read2);
+		assertEquals(paired, stat.properlyPaired);
+		assertEquals(records.size() - unplaced, stat.mapped);
+		assertEquals(unplaced, stat.unplaced);
+		assertArrayEquals(mapped, stat.mappedBySequence);
+		assertArrayEquals(new long[3], stat.unmappedBySequence);
+	}
+}
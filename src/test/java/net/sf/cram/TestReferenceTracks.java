@@ -0,0 +1,115 @@
+package net.sf.cram;
+
+import static org.junit.Assert.assertEquals;
+
+import java.util.Random;
+
+import org.junit.Test;
+
+public class TestReferenceTracks {
+
+	/**
+	 * Coordinate sorted reads of random lengths, compared with plain arrays
+	 * over the whole sequence. Reads longer than the initial window make the
+	 * ring buffer grow.
+	 */
+	@Test
+	public void testAgainstArrays() {
+		Random random = new Random(3);
+		int length = 100000;
+		int[] coverage = new int[length + 5000];
+		int[] mismatches = new int[length + 5000];
+
+		ReferenceTracks tracks = new ReferenceTracks(0, "seq", new byte[0], 16);
+		int start = 1;
+		while (start < length) {
+			start += random.nextInt(20);
+			int readLength = random.nextInt(10) == 0 ? 1 + random.nextInt(4000)
+					: 1 + random.nextInt(150);
+
+			tracks.ensureRange(start, readLength);
+			tracks.addCoverage(start, readLength, 1);
+			for (int pos = start; pos < start + readLength; pos++)
+				coverage[pos]++;
+			int mismatch = start + random.nextInt(readLength);
+			tracks.addMismatches(mismatch, 1);
+			mismatches[mismatch]++;
+
+			// interleave queries with updates:
+			for (int i = 0; i < 5; i++) {
+				int pos = start + random.nextInt(readLength);
+				assertEquals(coverage[pos], tracks.coverageAt(pos));
+				assertEquals(mismatches[pos], tracks.mismatchesAt(pos));
+			}
+
+			if (random.nextInt(50) == 0) {
+				ReferenceTracks snapshot = tracks.snapshot(start, readLength);
+				for (int pos = start; pos < start + readLength; pos++) {
+					assertEquals(coverage[pos], snapshot.coverageAt(pos));
+					assertEquals(mismatches[pos], snapshot.mismatchesAt(pos));
+				}
+			}
+		}
+	}
+
+	@Test
+	public void testRetiredPositions() {
+		ReferenceTracks tracks = new ReferenceTracks(0, "seq", new byte[0], 16);
+		tracks.ensureRange(10, 100);
+		tracks.addCoverage(10, 100, 2);
+		tracks.moveForwardTo(50);
+		assertEquals(0, tracks.coverageAt(20));
+		assertEquals(2, tracks.coverageAt(50));
+		assertEquals(2, tracks.coverageAt(109));
+		assertEquals(0, tracks.coverageAt(110));
+
+		// slots of retired positions are reused cleared:
+		tracks.moveForwardTo(2000);
+		tracks.ensureRange(2000, 1024);
+		for (int pos = 2000; pos < 2000 + 1024; pos++)
+			assertEquals(0, tracks.coverageAt(pos));
+	}
+
+	@Test
+	public void testRestartBehindWindow() {
+		ReferenceTracks tracks = new ReferenceTracks(0, "seq", new byte[0], 16);
+		tracks.ensureRange(1000, 100);
+		tracks.addCoverage(1000, 100, 1);
+		tracks.restartAt(10);
+		assertEquals(10, tracks.getWindowPosition());
+		assertEquals(0, tracks.coverageAt(1050));
+
+		tracks.ensureRange(10, 50);
+		tracks.addCoverage(10, 50, 3);
+		assertEquals(3, tracks.coverageAt(59));
+		assertEquals(0, tracks.coverageAt(60));
+		for (int pos = 1000; pos < 1100; pos++)
+			assertEquals(0, tracks.coverageAt(pos));
+	}
+
+	@Test(expected = RuntimeException.class)
+	public void testCannotMoveBack() {
+		ReferenceTracks tracks = new ReferenceTracks(0, "seq", new byte[0], 16);
+		tracks.moveForwardTo(100);
+		tracks.ensureRange(50, 10);
+	}
+
+	@Test
+	public void testReferenceRegion() {
+		// bases at 1-based positions 101..104:
+		ReferenceTracks tracks = new ReferenceTracks(0, "seq",
+				"ACGT".getBytes(), 100, 16);
+		assertEquals('N', tracks.baseAt(100));
+		assertEquals('A', tracks.baseAt(101));
+		assertEquals('T', tracks.baseAt(104));
+		assertEquals('N', tracks.baseAt(105));
+		assertEquals(104, tracks.getReferenceLength());
+
+		// counts survive switching the region:
+		tracks.ensureRange(101, 4);
+		tracks.addCoverage(101, 4, 1);
+		tracks.setReference("GG".getBytes(), 104);
+		assertEquals('G', tracks.baseAt(105));
+		assertEquals(1, tracks.coverageAt(103));
+	}
+}
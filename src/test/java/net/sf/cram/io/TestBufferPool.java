@@ -0,0 +1,66 @@
+package net.sf.cram.io;
+
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+public class TestBufferPool {
+
+	@Test
+	public void testArraysAreReused() {
+		BufferPool pool = new BufferPool();
+		byte[] small = pool.getArray(1, 2000);
+		byte[] large = pool.getArray(1, 10000);
+		assertTrue(small.length >= 2000);
+		assertTrue(large.length >= 10000);
+		pool.release(1, large, 10000);
+		pool.release(1, small, 2000);
+
+		// the smallest array that fits:
+		assertSame(small, pool.getArray(1, 1500));
+		assertSame(large, pool.getArray(1, 3000));
+		assertNotSame(large, pool.getArray(1, 3000));
+	}
+
+	@Test
+	public void testKeysAreSeparate() {
+		BufferPool pool = new BufferPool();
+		byte[] array = pool.getArray(BufferPool.CORE, 5000);
+		pool.release(BufferPool.CORE, array, 5000);
+
+		assertNotSame(array, pool.getArray(BufferPool.COMPRESSED, 5000));
+		assertSame(array, pool.getArray(BufferPool.CORE, 5000));
+	}
+
+	@Test
+	public void testStreamSize() {
+		BufferPool pool = new BufferPool();
+		pool.release(7, new byte[0], 80000);
+		// the expected size plus some headroom:
+		byte[] array = pool.getStream(7).getBuffer();
+		assertTrue(array.length >= 80000);
+
+		// a single large block is forgotten over time:
+		for (int i = 0; i < 40; i++)
+			pool.release(7, new byte[0], 100);
+		assertTrue(pool.getStream(7).getBuffer().length < 2000);
+	}
+
+	@Test
+	public void testThreadPools() throws InterruptedException {
+		final BufferPool[] other = new BufferPool[1];
+		Thread thread = new Thread() {
+			@Override
+			public void run() {
+				other[0] = BufferPool.get();
+			}
+		};
+		thread.start();
+		thread.join();
+
+		assertSame(BufferPool.get(), BufferPool.get());
+		assertNotSame(BufferPool.get(), other[0]);
+	}
+}
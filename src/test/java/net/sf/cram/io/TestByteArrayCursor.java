@@ -0,0 +1,92 @@
+package net.sf.cram.io;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Random;
+
+import org.junit.Test;
+
+public class TestByteArrayCursor {
+
+	private static int[] values() {
+		Random random = new Random(5);
+		int[] values = new int[2000];
+		int[] edges = { 0, 1, 127, 128, (1 << 14) - 1, 1 << 14,
+				(1 << 21) - 1, 1 << 21, (1 << 28) - 1, 1 << 28,
+				Integer.MAX_VALUE, -1, Integer.MIN_VALUE };
+		System.arraycopy(edges, 0, values, 0, edges.length);
+		for (int i = edges.length; i < values.length; i++)
+			values[i] = random.nextInt() >>> random.nextInt(32);
+		return values;
+	}
+
+	@Test
+	public void testITF8() throws IOException {
+		int[] values = values();
+		ByteBuffer expected = ByteBuffer.allocate(5 * values.length);
+		byte[] data = new byte[5 * values.length];
+		int pos = 0;
+		for (int value : values) {
+			ByteBufferUtils.writeUnsignedITF8(value, expected);
+			pos = ByteArrayCursor.writeITF8(value, data, pos);
+		}
+		// same bytes as ByteBufferUtils:
+		assertEquals(expected.position(), pos);
+		byte[] expectedBytes = new byte[pos];
+		System.arraycopy(expected.array(), 0, expectedBytes, 0, pos);
+		byte[] bytes = new byte[pos];
+		System.arraycopy(data, 0, bytes, 0, pos);
+		assertArrayEquals(expectedBytes, bytes);
+
+		ByteArrayCursor cursor = new ByteArrayCursor(data, 0, pos);
+		for (int value : values)
+			assertEquals(value, cursor.readITF8());
+		assertEquals(0, cursor.available());
+
+		int[] decoded = new int[values.length + 1];
+		new ByteArrayCursor(data, 0, pos).readITF8(decoded, 1, values.length);
+		for (int i = 0; i < values.length; i++)
+			assertEquals(values[i], decoded[i + 1]);
+	}
+
+	@Test
+	public void testLTF8() throws IOException {
+		long[] values = { 0, 1, 127, 128, (1L << 14) - 1, 1L << 14,
+				(1L << 35) - 1, 1L << 35, (1L << 56) - 1, 1L << 56,
+				Long.MAX_VALUE, -1, Long.MIN_VALUE, 123456789012L };
+		ByteBuffer buf = ByteBuffer.allocate(9 * values.length);
+		for (long value : values)
+			ByteArrayCursor.writeLTF8(value, buf);
+		buf.flip();
+
+		ByteArrayCursor cursor = ByteArrayCursor.wrap(buf);
+		for (long value : values)
+			assertEquals(value, cursor.readLTF8());
+		assertEquals(0, cursor.available());
+	}
+
+	@Test
+	public void testSharedStream() throws IOException {
+		byte[] data = new byte[16];
+		int pos = ByteArrayCursor.writeITF8(300, data, 0);
+		data[pos++] = 'A';
+		pos = ByteArrayCursor.writeITF8(5, data, pos);
+
+		ByteArrayCursor cursor = new ByteArrayCursor(data, 0, pos);
+		assertEquals(300, cursor.readITF8());
+		assertEquals('A', cursor.read());
+		assertEquals(5, cursor.readITF8());
+		assertEquals(-1, cursor.read());
+	}
+
+	@Test(expected = EOFException.class)
+	public void testTruncated() throws IOException {
+		byte[] data = new byte[5];
+		int pos = ByteArrayCursor.writeITF8(1 << 20, data, 0);
+		new ByteArrayCursor(data, 0, pos - 1).readITF8();
+	}
+}
@@ -0,0 +1,100 @@
+package net.sf.cram.lossy;
+
+import static org.junit.Assert.assertEquals;
+
+import java.util.Arrays;
+
+import net.sf.cram.ReferenceTracks;
+import net.sf.samtools.SAMFileHeader;
+import net.sf.samtools.SAMRecord;
+import net.sf.samtools.SAMSequenceRecord;
+
+import org.junit.Test;
+
+public class TestQualityScoreDecisionTable {
+	private static final byte[] REF = "ACGTACGTACGTACGTACGT".getBytes();
+
+	private static QualityScoreDecisionTable table(String spec) {
+		return new QualityScoreDecisionTable(new QualityScorePreservation(spec)
+				.getPolicyList());
+	}
+
+	private static SAMRecord read(String bases, int start) {
+		SAMFileHeader header = new SAMFileHeader();
+		header.addSequence(new SAMSequenceRecord("seq", REF.length));
+		SAMRecord r = new SAMRecord(header);
+		r.setReadName("r");
+		r.setReadBases(bases.getBytes());
+		byte[] scores = new byte[bases.length()];
+		for (int i = 0; i < scores.length; i++)
+			scores[i] = (byte) (10 + i);
+		r.setBaseQualities(scores);
+		if (start > 0) {
+			r.setReferenceIndex(0);
+			r.setAlignmentStart(start);
+			r.setCigarString(bases.length() + "M");
+			r.setMappingQuality(60);
+		} else
+			r.setReadUnmappedFlag(true);
+		return r;
+	}
+
+	private static ReferenceTracks tracks() {
+		return new ReferenceTracks(0, "seq", REF, 10);
+	}
+
+	@Test
+	public void testMismatches() {
+		// mismatches at offsets 1 and 4:
+		SAMRecord r = read("GAACCTAC", 3);
+		byte[] qs = r.getBaseQualities();
+		// longer than the read, the tail must be left alone:
+		byte[] scores = new byte[20];
+		Arrays.fill(scores, (byte) 99);
+
+		int flags = table("N40").apply(r, tracks(), scores);
+		assertEquals(0, flags);
+		for (int i = 0; i < qs.length; i++)
+			assertEquals(i == 1 || i == 4 ? qs[i] : -1, scores[i]);
+		for (int i = qs.length; i < scores.length; i++)
+			assertEquals(99, scores[i]);
+	}
+
+	@Test
+	public void testReadsOfDifferentLength() {
+		QualityScoreDecisionTable table = table("R40-N40");
+		byte[] scores = new byte[20];
+		for (SAMRecord r : new SAMRecord[] { read("GTACGTACGTAC", 3),
+				read("GTAC", 7) }) {
+			table.apply(r, tracks(), scores);
+			for (int i = 0; i < r.getReadLength(); i++)
+				assertEquals(r.getBaseQualities()[i], scores[i]);
+		}
+	}
+
+	@Test
+	public void testBinning() {
+		SAMRecord r = read("GTACGTAC", 3);
+		byte[] scores = new byte[r.getReadLength()];
+		table("R8").apply(r, tracks(), scores);
+		for (int i = 0; i < scores.length; i++)
+			assertEquals(Binning.Illumina_binning_matrix[r.getBaseQualities()[i]],
+					scores[i]);
+	}
+
+	@Test
+	public void testUnplaced() {
+		QualityScoreDecisionTable table = table("U40");
+		SAMRecord unplaced = read("GTACGTAC", 0);
+		byte[] scores = new byte[unplaced.getReadLength()];
+		assertEquals(QualityScoreDecisionTable.FORCE_PRESERVE,
+				table.apply(unplaced, null, scores));
+		for (int i = 0; i < scores.length; i++)
+			assertEquals(unplaced.getBaseQualities()[i], scores[i]);
+
+		SAMRecord placed = read("GTACGTAC", 3);
+		assertEquals(0, table.apply(placed, tracks(), scores));
+		for (int i = 0; i < scores.length; i++)
+			assertEquals(-1, scores[i]);
+	}
+}
@@ -0,0 +1,90 @@
+package net.sf.cram.mask;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Random;
+import java.util.TreeSet;
+
+import org.junit.Test;
+
+public class TestBitmapPositionMask {
+
+	private static TreeSet<Integer> randomPositions() {
+		Random random = new Random(7);
+		TreeSet<Integer> set = new TreeSet<Integer>();
+		// sparse, array containers:
+		for (int i = 0; i < 3000; i++)
+			set.add(1 + random.nextInt(10000000));
+		// dense, a bitmap container:
+		for (int i = 0; i < 20000; i++)
+			set.add(300000 + random.nextInt(60000));
+		return set;
+	}
+
+	private static int[] toArray(TreeSet<Integer> set) {
+		int[] array = new int[set.size()];
+		int i = 0;
+		for (int pos : set)
+			array[i++] = pos;
+		return array;
+	}
+
+	private static void check(TreeSet<Integer> set, BitmapPositionMask mask) {
+		assertEquals(set.size(), mask.getMaskedCount());
+		assertEquals((int) set.first(), mask.getMinMaskedPosition());
+		assertEquals((int) set.last(), mask.getMaxMaskedPosition());
+		assertArrayEquals(toArray(set), mask.getMaskedPositions());
+
+		int rank = 0;
+		for (int pos : set) {
+			assertTrue(mask.isMasked(pos));
+			assertEquals(set.contains(pos + 1), mask.isMasked(pos + 1));
+			assertEquals(rank + 1, mask.rank(pos));
+			assertEquals(rank, mask.rank(pos - 1));
+			assertEquals(pos, mask.select(rank));
+			Integer previous = set.lower(pos);
+			assertEquals(pos, mask.nextMasked(previous == null ? 0
+					: previous + 1));
+			rank++;
+		}
+		assertEquals(-1, mask.nextMasked(set.last() + 1));
+	}
+
+	@Test
+	public void test() {
+		TreeSet<Integer> set = randomPositions();
+		check(set, BitmapPositionMask.fromArray(toArray(set)));
+
+		// unsorted input builds the same mask:
+		int[] reversed = toArray(set);
+		for (int i = 0; i < reversed.length / 2; i++) {
+			int tmp = reversed[i];
+			reversed[i] = reversed[reversed.length - 1 - i];
+			reversed[reversed.length - 1 - i] = tmp;
+		}
+		check(set, BitmapPositionMask.fromArray(reversed));
+	}
+
+	@Test
+	public void testMappedFile() throws IOException {
+		TreeSet<Integer> set = randomPositions();
+		File file = File.createTempFile("mask", ".bpm");
+		file.deleteOnExit();
+		BitmapPositionMask.fromArray(toArray(set)).write(file);
+
+		check(set, BitmapPositionMask.read(file));
+	}
+
+	@Test
+	public void testFastaLine() throws ReadMaskFormatException {
+		PositionMask mask = new FastaByteArrayMaskFactory()
+				.createMask("__x_xx___x");
+		assertArrayEquals(new int[] { 3, 5, 6, 10 }, mask.getMaskedPositions());
+		assertEquals("__x_xx___x",
+				new String(mask.toByteArrayUsing((byte) 'x', (byte) '_')));
+	}
+}
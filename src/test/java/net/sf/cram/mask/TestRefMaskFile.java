@@ -0,0 +1,79 @@
+package net.sf.cram.mask;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+
+import org.junit.Test;
+
+public class TestRefMaskFile {
+
+	@Test
+	public void testWriteAndRead() throws IOException {
+		File file = File.createTempFile("refmask", ".crm");
+		file.deleteOnExit();
+
+		int[] positions = { 3, 17, 1000, 65536, 70000 };
+		RefMaskUtils.RefMask pile = new RefMaskUtils.RefMask(50, 2);
+		// two non-reference bases at position 10, one at 20:
+		pile.addReadBase(10, (byte) 'C', (byte) 'A');
+		pile.addReadBase(10, (byte) 'C', (byte) 'A');
+		pile.addReadBase(20, (byte) 'G', (byte) 'A');
+
+		RefMaskFile.Writer writer = new RefMaskFile.Writer(file);
+		writer.addSequence("variants", 100000,
+				BitmapPositionMask.fromArray(positions), null);
+		writer.addSequence("pile", 60, null, pile);
+		writer.addSequence("both", 100, new ArrayPositionMask(new int[] { 5 }),
+				pile);
+		writer.close();
+
+		assertTrue(RefMaskFile.isRefMaskFile(file));
+		RefMaskFile refMask = new RefMaskFile(file);
+
+		PositionMask mask = refMask.getVariantMask("variants");
+		assertArrayEquals(positions, mask.getMaskedPositions());
+		assertTrue(mask.isMasked(65536));
+		assertFalse(mask.isMasked(65537));
+		assertNull(refMask.getPile("variants", 2));
+
+		assertNull(refMask.getVariantMask("pile"));
+		RefMaskUtils.RefMask mapped = refMask.getPile("pile", 2);
+		assertEquals(60, mapped.length());
+		for (int pos = 0; pos < 60; pos++)
+			assertEquals(pos < pile.length() ? pile.getCounters(pos) : 0,
+					mapped.getCounters(pos));
+		assertTrue(mapped.shouldStore(10, (byte) 'A'));
+		assertFalse(mapped.shouldStore(20, (byte) 'A'));
+
+		assertTrue(refMask.getVariantMask("both").isMasked(5));
+		assertTrue(refMask.getPile("both", 2).shouldStore(10, (byte) 'A'));
+
+		assertNull(refMask.getVariantMask("missing"));
+		assertNull(refMask.getPile("missing", 2));
+	}
+
+	@Test(expected = UnsupportedOperationException.class)
+	public void testMappedPileIsReadOnly() throws IOException {
+		File file = File.createTempFile("refmask", ".crm");
+		file.deleteOnExit();
+		RefMaskFile.Writer writer = new RefMaskFile.Writer(file);
+		writer.addSequence("pile", 10, null, new RefMaskUtils.RefMask(10, 2));
+		writer.close();
+
+		new RefMaskFile(file).getPile("pile", 2).addReadBase(1, (byte) 'C',
+				(byte) 'A');
+	}
+
+	@Test
+	public void testNotARefMaskFile() throws IOException {
+		File file = File.createTempFile("refmask", ".txt");
+		file.deleteOnExit();
+		assertFalse(RefMaskFile.isRefMaskFile(file));
+	}
+}
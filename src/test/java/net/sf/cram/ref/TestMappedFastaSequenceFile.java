@@ -0,0 +1,53 @@
+package net.sf.cram.ref;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.Writer;
+
+import org.junit.Test;
+
+public class TestMappedFastaSequenceFile {
+
+	private static File write(String fasta, String fai) throws IOException {
+		File file = File.createTempFile("ref", ".fa");
+		file.deleteOnExit();
+		Writer writer = new FileWriter(file);
+		writer.write(fasta);
+		writer.close();
+
+		File index = new File(file.getAbsolutePath() + ".fai");
+		index.deleteOnExit();
+		writer = new FileWriter(index);
+		writer.write(fai);
+		writer.close();
+		return file;
+	}
+
+	@Test
+	public void testBasesAcrossLines() throws IOException {
+		File file = write(">a\nACGT\nacgt\nAC\n>b\nTTTT\n",
+				"a\t10\t3\t4\t5\nb\t4\t19\t4\t5\n");
+		MappedFastaSequenceFile ref = new MappedFastaSequenceFile(file);
+		assertEquals(10, ref.getSequenceLength("a"));
+		assertArrayEquals("ACGTACGTAC".getBytes(), ref.getSequence("a")
+				.getBases());
+
+		byte[] dest = new byte[6];
+		ref.getBases("a", 3, dest, 1, 5);
+		assertArrayEquals("\0TACGT".getBytes(), dest);
+		assertArrayEquals("TTTT".getBytes(), ref.getSequence("b").getBases());
+	}
+
+	@Test
+	public void testFullLastLineWithoutLineBreak() throws IOException {
+		File file = write(">a\nACGT\nACGT\n>b\nGGGG\nCCCC",
+				"a\t8\t3\t4\t5\nb\t8\t16\t4\t5\n");
+		MappedFastaSequenceFile ref = new MappedFastaSequenceFile(file);
+		assertArrayEquals("GGGGCCCC".getBytes(), ref.getSequence("b")
+				.getBases());
+	}
+}
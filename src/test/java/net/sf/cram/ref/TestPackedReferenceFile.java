@@ -0,0 +1,203 @@
+package net.sf.cram.ref;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import net.sf.cram.PackReference;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class TestPackedReferenceFile {
+	// the bases are packed in chunks of this size:
+	private static final int CHUNK_SIZE = 1 << 20;
+	private static final int LINE_LENGTH = 60;
+
+	private final Random random = new Random(5);
+	private File fasta;
+	private File index;
+	private File packed;
+	private List<String> names = new ArrayList<String>();
+	private List<byte[]> sequences = new ArrayList<byte[]>();
+
+	@Before
+	public void createFiles() throws IOException {
+		fasta = File.createTempFile("ref", ".fa");
+		index = new File(fasta.getAbsolutePath() + ".fai");
+		packed = File.createTempFile("ref", ".crp");
+	}
+
+	@After
+	public void deleteFiles() {
+		fasta.delete();
+		index.delete();
+		packed.delete();
+	}
+
+	private byte[] randomBases(int length) {
+		byte[] bases = new byte[length];
+		for (int i = 0; i < length; i++)
+			bases[i] = (byte) "ACGT".charAt(random.nextInt(4));
+		return bases;
+	}
+
+	private void add(String name, byte[] bases) {
+		names.add(name);
+		sequences.add(bases);
+	}
+
+	/**
+	 * Writes the sequences added so far with the .fai index and packs them
+	 * the way the packref command does.
+	 */
+	private PackedReferenceFile pack() throws IOException {
+		Writer fa = new FileWriter(fasta);
+		Writer fai = new FileWriter(index);
+		long offset = 0;
+		for (int s = 0; s < names.size(); s++) {
+			byte[] bases = sequences.get(s);
+			String line = ">" + names.get(s) + "\n";
+			fa.write(line);
+			offset += line.length();
+			fai.write(names.get(s) + "\t" + bases.length + "\t" + offset
+					+ "\t" + LINE_LENGTH + "\t" + (LINE_LENGTH + 1) + "\n");
+			for (int pos = 0; pos < bases.length; pos += LINE_LENGTH) {
+				int length = Math.min(LINE_LENGTH, bases.length - pos);
+				fa.write(new String(bases, pos, length) + "\n");
+				offset += length + 1;
+			}
+		}
+		fa.close();
+		fai.close();
+
+		PackReference.main(new String[] { "--reference-fasta-file",
+				fasta.getAbsolutePath(), "--output-file",
+				packed.getAbsolutePath() });
+		assertTrue(PackedReferenceFile.isPackedReferenceFile(packed));
+		return new PackedReferenceFile(packed);
+	}
+
+	private static int runCount(byte[] bases) {
+		int runs = 0;
+		for (int i = 0; i < bases.length; i++)
+			if ("ACGT".indexOf(bases[i]) < 0
+					&& (i == 0 || bases[i - 1] != bases[i]))
+				runs++;
+		return runs;
+	}
+
+	@Test
+	public void testOddLengths() throws IOException {
+		add("one", "N".getBytes());
+		add("three", "GTN".getBytes());
+		add("six", "ACGTAC".getBytes());
+		add("eight", "TTGGCCAA".getBytes());
+		PackedReferenceFile ref = pack();
+
+		long size = 4 + 4;
+		for (int s = 0; s < names.size(); s++) {
+			String name = names.get(s);
+			byte[] bases = sequences.get(s);
+			assertEquals(bases.length, ref.getSequenceLength(name));
+			assertEquals(bases.length, ref.getSequenceDictionary()
+					.getSequence(name).getSequenceLength());
+			assertArrayEquals(name, bases, ref.getSequence(name).getBases());
+
+			// name, length, offsets and run count:
+			size += 2 + name.length() + 4 + 8 + 8 + 4;
+			// a partially filled last byte:
+			size += (bases.length + 3) / 4;
+			size += 9 * runCount(bases);
+		}
+		assertEquals(size, packed.length());
+
+		// sequences in file order:
+		for (int s = 0; s < names.size(); s++)
+			assertEquals(names.get(s), ref.nextSequence().getName());
+		assertEquals(null, ref.nextSequence());
+		ref.reset();
+		assertEquals(names.get(0), ref.nextSequence().getName());
+	}
+
+	@Test
+	public void testRunsOfOtherBases() throws IOException {
+		byte[] bases = randomBases(1000);
+		// runs at the start, back to back and at the end:
+		Arrays.fill(bases, 0, 7, (byte) 'N');
+		Arrays.fill(bases, 100, 113, (byte) 'N');
+		Arrays.fill(bases, 113, 115, (byte) 'R');
+		bases[200] = 'Y';
+		bases[201] = 'K';
+		bases[202] = 'Y';
+		Arrays.fill(bases, 990, 1000, (byte) 'N');
+		add("iupac", bases);
+		PackedReferenceFile ref = pack();
+
+		assertArrayEquals(bases, ref.getSequence("iupac").getBases());
+		for (int start = 0; start < 20; start++)
+			for (int length = 0; length < 20; length++)
+				assertRegion(ref, "iupac", bases, 100 + start - 10, length);
+		assertRegion(ref, "iupac", bases, 985, 15);
+		assertRegion(ref, "iupac", bases, 199, 5);
+		assertRegion(ref, "iupac", bases, 3, 2);
+	}
+
+	@Test
+	public void testRegionsAcrossChunks() throws IOException {
+		byte[] bases = randomBases(2 * CHUNK_SIZE + 7);
+		Arrays.fill(bases, CHUNK_SIZE - 5, CHUNK_SIZE + 6, (byte) 'N');
+		Arrays.fill(bases, 2 * CHUNK_SIZE - 1, 2 * CHUNK_SIZE + 2, (byte) 'M');
+		add("long", bases);
+		add("short", "ACGTN".getBytes());
+		PackedReferenceFile ref = pack();
+
+		assertArrayEquals(bases, ref.getSequence("long").getBases());
+		for (int start = CHUNK_SIZE - 9; start < CHUNK_SIZE + 9; start++)
+			assertRegion(ref, "long", bases, start, 13);
+		assertRegion(ref, "long", bases, 2 * CHUNK_SIZE - 3, 10);
+		assertRegion(ref, "long", bases, 0, bases.length);
+		assertArrayEquals("ACGTN".getBytes(), ref.getSequence("short")
+				.getBases());
+
+		// 1-based and inclusive:
+		assertArrayEquals(
+				Arrays.copyOfRange(bases, CHUNK_SIZE - 2, CHUNK_SIZE + 3),
+				ref.getSubsequenceAt("long", CHUNK_SIZE - 1, CHUNK_SIZE + 3)
+						.getBases());
+	}
+
+	@Test
+	public void testNotPacked() throws IOException {
+		add("a", "ACGT".getBytes());
+		pack();
+		assertFalse(PackedReferenceFile.isPackedReferenceFile(fasta));
+		assertFalse(PackedReferenceFile.isPackedReferenceFile(new File(fasta
+				.getAbsolutePath() + ".none")));
+	}
+
+	/**
+	 * Reads the region into the middle of a larger array and checks that
+	 * nothing around it is touched.
+	 */
+	private static void assertRegion(PackedReferenceFile ref, String name,
+			byte[] bases, int start, int length) {
+		byte[] dest = new byte[length + 6];
+		ref.getBases(name, start, dest, 3, length);
+
+		byte[] expected = new byte[length + 6];
+		System.arraycopy(bases, start, expected, 3, length);
+		assertArrayEquals(name + ":" + start + "+" + length, expected, dest);
+	}
+}